@@ -0,0 +1,115 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Throughput of complete authentications, when Bitbucket responds instantly. Responses are served by
+ * {@link InMemoryTransport}, so only the CPU cost of the plugin is measured: token exchange, parsing of
+ * responses, team restriction and generation of the identity.
+ * <p/>
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=AuthenticationBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AuthenticationBenchmark {
+
+  /**
+   * Number of teams of the user
+   */
+  @Param({"1", "100"})
+  public int teams;
+
+  private BitbucketExecutor executor;
+  private BitbucketIdentityProvider provider;
+
+  @Setup
+  public void setUp() {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team" + (teams - 1));
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+
+    StringBuilder teamsJson = new StringBuilder("{\"values\":[");
+    for (int i = 0; i < teams; i++) {
+      teamsJson.append(i == 0 ? "" : ",").append("{\"username\":\"team").append(i).append("\",\"type\":\"team\"}");
+    }
+    teamsJson.append("]}");
+    InMemoryTransport transport = new InMemoryTransport()
+      .on("/site/oauth2/access_token", 200, "{\"access_token\":\"the_token\",\"token_type\":\"bearer\",\"expires_in\":7200}")
+      .on("/2.0/user", 200, "{\"username\":\"john\",\"display_name\":\"John\",\"uuid\":\"{4d7e0d5c-1f8a-4bd3-9a1e-1e8e3b9c2d70}\"}")
+      .on("/2.0/user/emails", 200, "{\"values\":[{\"email\":\"john@bitbucket.org\",\"is_primary\":true,\"is_confirmed\":true}]}")
+      .on("/2.0/teams", 200, teamsJson.toString());
+
+    UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+    BitbucketMetrics metrics = new BitbucketMetrics();
+    BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+    executor = new BitbucketExecutor();
+    provider = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, new BitbucketScribeApi(bitbucketSettings), transport, metrics,
+      mock(AuditLog.class),
+      new AuthenticationPipeline(userIdentityFactory, metrics, new ConcurrencyLimiter(metrics, System2.INSTANCE),
+        new MembershipSelector(bitbucketSettings, System2.INSTANCE), new MembershipProbe(bitbucketSettings, executor),
+        new MembershipFilter(bitbucketSettings, executor), new TeamMembers(bitbucketSettings, caches, executor, System2.INSTANCE),
+        new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE),
+        new VerifiedProfiles(bitbucketSettings, caches, System2.INSTANCE), System2.INSTANCE),
+      System2.INSTANCE);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.stop();
+  }
+
+  @Benchmark
+  public UserIdentity authenticate() {
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("the_code");
+    provider.callback(context);
+    return context.userIdentity;
+  }
+}
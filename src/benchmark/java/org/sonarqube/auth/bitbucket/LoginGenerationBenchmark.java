@@ -0,0 +1,87 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static java.lang.String.format;
+
+/**
+ * Compares the generation of logins by {@link LoginTemplate} with the previous implementation,
+ * based on {@link String#format(String, Object...)}.
+ * <p/>
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=LoginGenerationBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginGenerationBenchmark {
+
+  private GsonUser user = new GsonUser("john", "John", "{4d7e0d5c-1f8a-4bd3-9a1e-1e8e3b9c2d70}");
+  private LoginTemplate uniqueTemplate;
+  private LoginTemplate customTemplate;
+  private UserIdentityFactory userIdentityFactory;
+
+  @Setup
+  public void setUp() {
+    uniqueTemplate = LoginTemplate.compile(UserIdentityFactory.UNIQUE_LOGIN_TEMPLATE);
+    customTemplate = LoginTemplate.compile("{email-local-part}-{uuid}@{provider}");
+    MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+    userIdentityFactory = new UserIdentityFactory(new BitbucketSettings(settings.asConfig()));
+  }
+
+  @Benchmark
+  public String unique_login_with_string_format() {
+    return format("%s@%s", user.getUsername(), BitbucketIdentityProvider.KEY);
+  }
+
+  @Benchmark
+  public String unique_login_with_compiled_template() {
+    return uniqueTemplate.generate(user, null);
+  }
+
+  @Benchmark
+  public String custom_login_with_compiled_template() {
+    return customTemplate.generate(user, "john.doe@corp.com");
+  }
+
+  /**
+   * Includes the lookup of settings and the check that the compiled template is up-to-date
+   */
+  @Benchmark
+  public String unique_login_with_identity_factory() {
+    return userIdentityFactory.create(user, null).getLogin();
+  }
+}
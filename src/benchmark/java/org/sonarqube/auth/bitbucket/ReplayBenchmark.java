@@ -0,0 +1,106 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Throughput of complete authentications on production-shaped data: responses are replayed by {@link ReplayTransport}
+ * from a file recorded by {@link TrafficRecorder}. Teams are synchronized as groups, so that all the teams of the
+ * recorded users are parsed.
+ * <p/>
+ * Run with {@code BITBUCKET_RECORDING=/path/to/bitbucket-traffic.jsonl mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=ReplayBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ReplayBenchmark {
+
+  // environment variables are inherited by the forked JVM, contrary to system properties
+  static final String RECORDING_VARIABLE = "BITBUCKET_RECORDING";
+
+  private BitbucketExecutor executor;
+  private BitbucketIdentityProvider provider;
+
+  @Setup
+  public void setUp() throws IOException {
+    String recording = System.getenv(RECORDING_VARIABLE);
+    if (recording == null) {
+      throw new IllegalStateException("Environment variable " + RECORDING_VARIABLE + " must be set to the path of the recording");
+    }
+    MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+
+    ReplayTransport transport = ReplayTransport.load(Paths.get(recording));
+    UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+    BitbucketMetrics metrics = new BitbucketMetrics();
+    BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+    executor = new BitbucketExecutor();
+    provider = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, new BitbucketScribeApi(bitbucketSettings), transport, metrics,
+      mock(AuditLog.class),
+      new AuthenticationPipeline(userIdentityFactory, metrics, new ConcurrencyLimiter(metrics, System2.INSTANCE),
+        new MembershipSelector(bitbucketSettings, System2.INSTANCE), new MembershipProbe(bitbucketSettings, executor),
+        new MembershipFilter(bitbucketSettings, executor), new TeamMembers(bitbucketSettings, caches, executor, System2.INSTANCE),
+        new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE),
+        new VerifiedProfiles(bitbucketSettings, caches, System2.INSTANCE), System2.INSTANCE),
+      System2.INSTANCE);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.stop();
+  }
+
+  @Benchmark
+  public UserIdentity authenticate() {
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("the_code");
+    provider.callback(context);
+    return context.userIdentity;
+  }
+}
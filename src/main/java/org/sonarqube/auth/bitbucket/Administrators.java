@@ -0,0 +1,140 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * The plugin API does not expose the permissions of the current user, so they are requested
+ * to the web service api/users/current, through the {@link LocalConnector} of the request.
+ */
+final class Administrators {
+
+  private static final String ADMIN_PERMISSION = "admin";
+
+  private Administrators() {
+    // only static methods
+  }
+
+  /**
+   * @return true if the current user has the global permission 'Administer System', else the
+   * response is a HTTP 403 and false is returned.
+   */
+  static boolean checkAdministrator(Request request, Response response) {
+    if (isAdministrator(request)) {
+      return true;
+    }
+    response.stream()
+      .setStatus(HTTP_FORBIDDEN)
+      .setMediaType("application/json");
+    try (OutputStream output = response.stream().output()) {
+      output.write("{\"errors\":[{\"msg\":\"Insufficient privileges\"}]}".getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return false;
+  }
+
+  static boolean isAdministrator(Request request) {
+    LocalConnector.LocalResponse response = request.localConnector().call(new CurrentUserRequest());
+    if (response.getStatus() != HTTP_OK) {
+      return false;
+    }
+    try {
+      JsonElement currentUser = new JsonParser().parse(new String(response.getBytes(), StandardCharsets.UTF_8));
+      JsonElement permissions = currentUser.isJsonObject() ? currentUser.getAsJsonObject().get("permissions") : null;
+      if (permissions == null || !permissions.isJsonObject()) {
+        return false;
+      }
+      JsonElement global = ((JsonObject) permissions).get("global");
+      if (global == null || !global.isJsonArray()) {
+        return false;
+      }
+      for (JsonElement permission : (JsonArray) global) {
+        if (permission.isJsonPrimitive() && ADMIN_PERMISSION.equals(permission.getAsString())) {
+          return true;
+        }
+      }
+      return false;
+    } catch (JsonParseException e) {
+      return false;
+    }
+  }
+
+  private static class CurrentUserRequest implements LocalConnector.LocalRequest {
+    @Override
+    public String getPath() {
+      return "api/users/current";
+    }
+
+    @Override
+    public String getMediaType() {
+      return "application/json";
+    }
+
+    @Override
+    public String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    public boolean hasParam(String key) {
+      return false;
+    }
+
+    @Override
+    public String getParam(String key) {
+      return null;
+    }
+
+    @Override
+    public List<String> getMultiParam(String key) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Optional<String> getHeader(String name) {
+      return Optional.empty();
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+      return Collections.emptyMap();
+    }
+  }
+}
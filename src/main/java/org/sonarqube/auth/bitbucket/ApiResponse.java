@@ -0,0 +1,195 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Response of the Bitbucket API. The body is decompressed while being read, according to
+ * the header Content-Encoding, so that it can be consumed as a stream by the JSON parsers.
+ */
+public class ApiResponse implements Closeable {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  static final int ABBREVIATED_BODY_LENGTH = 500;
+
+  private final int code;
+  @Nullable
+  private final String contentEncoding;
+  private final CountingInputStream wire;
+  private LongConsumer closeListener;
+  private InputStream decoded;
+  private boolean closed = false;
+
+  public ApiResponse(int code, @Nullable String contentEncoding, @Nullable InputStream wire) {
+    this.code = code;
+    this.contentEncoding = contentEncoding;
+    this.wire = new CountingInputStream(wire == null ? new ByteArrayInputStream(new byte[0]) : wire);
+    this.closeListener = bytes -> {
+    };
+  }
+
+  /**
+   * Adds a listener notified of the number of bytes received when response is closed
+   */
+  public ApiResponse onClose(LongConsumer listener) {
+    closeListener = closeListener.andThen(listener);
+    return this;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+  public boolean isSuccessful() {
+    return code >= 200 && code < 400;
+  }
+
+  /**
+   * Decompressed body, decoded as UTF-8
+   */
+  public Reader reader() {
+    return new BufferedReader(new InputStreamReader(stream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+  }
+
+  /**
+   * Whole decompressed body. Should be used only for small payloads, for example error messages.
+   */
+  public String body() {
+    return body(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Body truncated to {@link #ABBREVIATED_BODY_LENGTH} characters, to be included in logs and in error messages.
+   * The remaining of the body is not read.
+   */
+  public String abbreviatedBody() {
+    String body = body(ABBREVIATED_BODY_LENGTH + 1);
+    return body.length() > ABBREVIATED_BODY_LENGTH ? (body.substring(0, ABBREVIATED_BODY_LENGTH) + "...") : body;
+  }
+
+  private String body(int maxLength) {
+    StringBuilder sb = new StringBuilder();
+    char[] buffer = new char[BUFFER_SIZE];
+    try (Reader reader = reader()) {
+      int read;
+      while (sb.length() < maxLength && (read = reader.read(buffer, 0, Math.min(buffer.length, maxLength - sb.length()))) != -1) {
+        sb.append(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Fail to read Bitbucket response", e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Number of bytes read from the network so far, before decompression
+   */
+  public long bytesReceived() {
+    return wire.count;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      wire.close();
+    } catch (IOException e) {
+      // ignored, the body has already been consumed
+    }
+    closeListener.accept(wire.count);
+  }
+
+  private InputStream stream() {
+    if (decoded == null) {
+      try {
+        decoded = decode(wire, contentEncoding);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Fail to decompress Bitbucket response", e);
+      }
+    }
+    return decoded;
+  }
+
+  private static InputStream decode(InputStream wire, @Nullable String contentEncoding) throws IOException {
+    if (contentEncoding == null) {
+      return wire;
+    }
+    switch (contentEncoding.trim().toLowerCase(Locale.ENGLISH)) {
+      case "gzip":
+      case "x-gzip":
+        return new GZIPInputStream(wire, BUFFER_SIZE);
+      case "deflate":
+        return new InflaterInputStream(wire);
+      default:
+        return wire;
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long count = 0L;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
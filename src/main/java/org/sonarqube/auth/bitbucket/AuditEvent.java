@@ -0,0 +1,98 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.time.Instant;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of an authentication through Bitbucket, recorded by {@link AuditLog}
+ */
+public class AuditEvent {
+
+  public enum Outcome {
+    AUTHENTICATED, TEAM_DENIED, EMAIL_DENIED, UPSTREAM_ERROR
+  }
+
+  private final long date;
+  private final Outcome outcome;
+  @Nullable
+  private final String uuid;
+  @Nullable
+  private final String login;
+  @Nullable
+  private final String detail;
+
+  public AuditEvent(long date, Outcome outcome, @Nullable String uuid, @Nullable String login, @Nullable String detail) {
+    this.date = date;
+    this.outcome = outcome;
+    this.uuid = uuid;
+    this.login = login;
+    this.detail = detail;
+  }
+
+  public long getDate() {
+    return date;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  @CheckForNull
+  public String getUuid() {
+    return uuid;
+  }
+
+  @CheckForNull
+  public String getLogin() {
+    return login;
+  }
+
+  @CheckForNull
+  public String getDetail() {
+    return detail;
+  }
+
+  /**
+   * Tab-separated line: date, outcome, UUID, login and detail. Missing values are replaced by "-".
+   */
+  String toLine() {
+    StringBuilder sb = new StringBuilder(128)
+      .append(Instant.ofEpochMilli(date)).append('\t')
+      .append(outcome).append('\t');
+    appendValue(sb, uuid).append('\t');
+    appendValue(sb, login).append('\t');
+    return appendValue(sb, detail).toString();
+  }
+
+  private static StringBuilder appendValue(StringBuilder sb, @Nullable String value) {
+    if (value == null || value.isEmpty()) {
+      return sb.append('-');
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      // one event per line
+      sb.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+    }
+    return sb;
+  }
+}
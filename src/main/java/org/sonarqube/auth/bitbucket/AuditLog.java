@@ -0,0 +1,282 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.Startable;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Records the outcome of authentications in the file logs/bitbucket-audit.log, when enabled by
+ * {@link BitbucketSettings#auditEnabled()}.
+ * <p/>
+ * Authentication threads never do I/O: events are pushed to a bounded {@link RingBuffer}, which is
+ * drained by a single background thread writing events by batches. Events are dropped, and counted in
+ * {@link BitbucketMetrics}, when the buffer is full. The file is rotated when its size exceeds
+ * {@link #MAX_FILE_SIZE}.
+ * <p/>
+ * The buffer and the thread are created on the first event, and are released by {@link #release()}
+ * when Bitbucket authentication is disabled.
+ */
+@ServerSide
+public class AuditLog implements Startable {
+
+  private static final Logger LOGGER = Loggers.get(AuditLog.class);
+
+  static final String FILENAME = "bitbucket-audit.log";
+  static final int BUFFER_CAPACITY = 8192;
+  static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+  static final int MAX_ROTATED_FILES = 5;
+  private static final int BATCH_SIZE = 256;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final BitbucketSettings settings;
+  private final ServerFileSystem fileSystem;
+  private final BitbucketMetrics metrics;
+  private final System2 system2;
+  private final RateLimitedLogger rateLimitedLogger;
+  private final int bufferCapacity;
+  @CheckForNull
+  private volatile RingBuffer<AuditEvent> buffer;
+  private volatile boolean stopped = false;
+  @CheckForNull
+  private volatile Thread writerThread;
+  @CheckForNull
+  private Drainer drainer;
+
+  public AuditLog(BitbucketSettings settings, ServerFileSystem fileSystem, BitbucketMetrics metrics, System2 system2) {
+    this(settings, fileSystem, metrics, system2, BUFFER_CAPACITY);
+  }
+
+  AuditLog(BitbucketSettings settings, ServerFileSystem fileSystem, BitbucketMetrics metrics, System2 system2, int bufferCapacity) {
+    this.settings = settings;
+    this.fileSystem = fileSystem;
+    this.metrics = metrics;
+    this.system2 = system2;
+    this.rateLimitedLogger = new RateLimitedLogger(LOGGER, system2);
+    this.bufferCapacity = bufferCapacity;
+  }
+
+  @Override
+  public void start() {
+    // the writer thread is started on the first event
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+    stopWriter();
+  }
+
+  /**
+   * Writes the pending events, then stops the writer thread and drops the buffer. They are created
+   * again on the next event. Events recorded during the release are counted as dropped.
+   */
+  public void release() {
+    stopWriter();
+  }
+
+  /**
+   * Whether the writer thread is running
+   */
+  boolean isActive() {
+    return writerThread != null;
+  }
+
+  public void authenticated(@Nullable String uuid, String login) {
+    record(AuditEvent.Outcome.AUTHENTICATED, uuid, login, null);
+  }
+
+  public void teamDenied(@Nullable String uuid, @Nullable String login) {
+    record(AuditEvent.Outcome.TEAM_DENIED, uuid, login, null);
+  }
+
+  public void emailDenied(@Nullable String uuid, @Nullable String login) {
+    record(AuditEvent.Outcome.EMAIL_DENIED, uuid, login, null);
+  }
+
+  public void upstreamError(@Nullable String uuid, @Nullable String login, @Nullable String message) {
+    record(AuditEvent.Outcome.UPSTREAM_ERROR, uuid, login, message);
+  }
+
+  private void record(AuditEvent.Outcome outcome, @Nullable String uuid, @Nullable String login, @Nullable String detail) {
+    if (stopped || !settings.auditEnabled()) {
+      return;
+    }
+    RingBuffer<AuditEvent> events = buffer;
+    if (events == null || writerThread == null) {
+      events = startWriter();
+    }
+    if (!events.offer(new AuditEvent(system2.now(), outcome, uuid, login, detail))) {
+      metrics.onAuditEventDropped();
+    }
+  }
+
+  File file() {
+    return new File(settings.logsDir().map(File::new).orElseGet(() -> new File(fileSystem.getHomeDir(), "logs")), FILENAME);
+  }
+
+  private synchronized RingBuffer<AuditEvent> startWriter() {
+    RingBuffer<AuditEvent> events = buffer;
+    if (events == null) {
+      events = new RingBuffer<>(bufferCapacity);
+      buffer = events;
+    }
+    if (writerThread == null && !stopped) {
+      drainer = new Drainer(file(), events);
+      Thread thread = new Thread(drainer, "bitbucket-audit-writer");
+      thread.setDaemon(true);
+      writerThread = thread;
+      thread.start();
+    }
+    return events;
+  }
+
+  private synchronized void stopWriter() {
+    Thread thread = writerThread;
+    if (thread == null || drainer == null) {
+      return;
+    }
+    // events offered from now on are counted as dropped, the writer thread writes the accepted ones
+    drainer.events.close();
+    drainer.stopRequested = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writerThread = null;
+    drainer = null;
+    buffer = null;
+  }
+
+  private class Drainer implements Runnable {
+    private final File file;
+    private final RingBuffer<AuditEvent> events;
+    private final List<AuditEvent> batch = new ArrayList<>(BATCH_SIZE);
+    private volatile boolean stopRequested = false;
+    @CheckForNull
+    private Writer output;
+    private long fileSize;
+
+    Drainer(File file, RingBuffer<AuditEvent> events) {
+      this.file = file;
+      this.events = events;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          batch.clear();
+          boolean stopping = stopRequested;
+          if (events.drainTo(batch, BATCH_SIZE) > 0) {
+            write(batch);
+          } else if (stopping && events.isDrained()) {
+            // buffer is closed, so no more events
+            break;
+          } else if (stopping) {
+            // an event is being offered concurrently to the closing of buffer
+            Thread.yield();
+          } else {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+          }
+        }
+      } finally {
+        closeOutput();
+      }
+    }
+
+    private void write(List<AuditEvent> events) {
+      try {
+        Writer writer = openIfNeeded();
+        for (AuditEvent event : events) {
+          String line = event.toLine();
+          writer.write(line);
+          writer.write('\n');
+          // approximation, characters are mostly ASCII
+          fileSize += line.length() + 1;
+        }
+        writer.flush();
+        if (fileSize >= MAX_FILE_SIZE) {
+          closeOutput();
+          rotate();
+        }
+      } catch (IOException e) {
+        rateLimitedLogger.warn("Fail to write Bitbucket audit events to " + file.getAbsolutePath(), e);
+        metrics.onAuditEventDropped(events.size());
+        closeOutput();
+      }
+    }
+
+    private Writer openIfNeeded() throws IOException {
+      if (output == null) {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        fileSize = file.length();
+        output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+      }
+      return output;
+    }
+
+    private void rotate() throws IOException {
+      for (int i = MAX_ROTATED_FILES - 1; i >= 1; i--) {
+        File source = rotatedFile(i);
+        if (source.exists()) {
+          Files.move(source.toPath(), rotatedFile(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(file.toPath(), rotatedFile(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File rotatedFile(int index) {
+      return new File(file.getParentFile(), file.getName() + "." + index);
+    }
+
+    private void closeOutput() {
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          // ignored
+        }
+        output = null;
+      }
+    }
+  }
+}
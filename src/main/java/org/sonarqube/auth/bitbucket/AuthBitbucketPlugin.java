@@ -27,7 +27,29 @@ public class AuthBitbucketPlugin implements Plugin {
       BitbucketSettings.class,
       UserIdentityFactory.class,
       BitbucketIdentityProvider.class,
-      BitbucketScribeApi.class
+      BitbucketScribeApi.class,
+      HttpTransport.class,
+      TrafficRecorder.class,
+      BitbucketMetrics.class,
+      BitbucketCaches.class,
+      IdentityFingerprints.class,
+      AuditLog.class,
+      ConcurrencyLimiter.class,
+      AuthenticationPipeline.class,
+      BitbucketProbe.class,
+      BitbucketWs.class,
+      DiagnosticsAction.class,
+      BitbucketExecutor.class,
+      MembershipProbe.class,
+      MembershipFilter.class,
+      MembershipSelector.class,
+      VerifiedProfiles.class,
+      TeamMembers.class,
+      PreloadMembersAction.class,
+      MembershipWebhook.class,
+      CachesAction.class,
+      EvictCacheAction.class,
+      ProviderDisabledHandler.class
     );
     context.addExtensions(BitbucketSettings.definitions());
   }
@@ -0,0 +1,189 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.exceptions.OAuthConnectionException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Steps of an authentication that do not request the profile of the user : admission of the callback,
+ * membership of the restricted teams, fingerprints of the unchanged identities and degraded mode.
+ * The provider only requests Bitbucket and builds the identity.
+ */
+@ServerSide
+public class AuthenticationPipeline {
+
+  private static final Logger LOGGER = Loggers.get(AuthenticationPipeline.class);
+
+  private final UserIdentityFactory userIdentityFactory;
+  private final BitbucketMetrics metrics;
+  private final ConcurrencyLimiter limiter;
+  private final MembershipSelector membershipSelector;
+  private final MembershipProbe membershipProbe;
+  private final MembershipFilter membershipFilter;
+  private final TeamMembers teamMembers;
+  private final IdentityFingerprints fingerprints;
+  private final VerifiedProfiles verifiedProfiles;
+  private final System2 system2;
+  private final AtomicInteger runningCallbacks = new AtomicInteger();
+
+  public AuthenticationPipeline(UserIdentityFactory userIdentityFactory, BitbucketMetrics metrics, ConcurrencyLimiter limiter,
+    MembershipSelector membershipSelector, MembershipProbe membershipProbe, MembershipFilter membershipFilter, TeamMembers teamMembers,
+    IdentityFingerprints fingerprints, VerifiedProfiles verifiedProfiles, System2 system2) {
+    this.userIdentityFactory = userIdentityFactory;
+    this.metrics = metrics;
+    this.limiter = limiter;
+    this.membershipSelector = membershipSelector;
+    this.membershipProbe = membershipProbe;
+    this.membershipFilter = membershipFilter;
+    this.teamMembers = teamMembers;
+    this.fingerprints = fingerprints;
+    this.verifiedProfiles = verifiedProfiles;
+    this.system2 = system2;
+  }
+
+  /**
+   * Counts the callback as running until {@link #onCallbackFinished()}, so that the shared resources are not
+   * released while it uses them
+   */
+  public void onCallbackStarted() {
+    runningCallbacks.incrementAndGet();
+  }
+
+  public void onCallbackFinished() {
+    if (runningCallbacks.decrementAndGet() == 0) {
+      synchronized (runningCallbacks) {
+        runningCallbacks.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits for the running callbacks to finish. Callbacks started while waiting are waited for too.
+   *
+   * @return false if callbacks are still running after the timeout
+   */
+  public boolean awaitCallbacks(long timeoutMs) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    synchronized (runningCallbacks) {
+      while (runningCallbacks.get() > 0) {
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMs <= 0L) {
+          return false;
+        }
+        runningCallbacks.wait(remainingMs);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the permit to be released when Bitbucket replied, or {@code null} if too many users are authenticating
+   */
+  @CheckForNull
+  public ConcurrencyLimiter.Permit tryAcquire() {
+    return limiter.tryAcquire();
+  }
+
+  /**
+   * Membership known without requesting Bitbucket, from the members of the preloaded teams
+   */
+  public boolean isPreloadedMember(GsonUser user, String[] teamsRestriction) {
+    return user.getUuid() != null && teamMembers.isMemberOfAny(user.getUuid(), teamsRestriction);
+  }
+
+  /**
+   * Filters the teams of the user, or probes the restricted workspaces, according to the fastest strategy.
+   * The teams of the user are listed if neither of them can decide.
+   */
+  public boolean isMemberOfRestrictedTeams(BitbucketApiClient client, GsonUser user, String[] teamsRestriction, Supplier<Boolean> listTeams) {
+    if (membershipSelector.shouldFilter()) {
+      Boolean isMember = membershipFilter.isMemberOfAny(client, teamsRestriction);
+      if (isMember != null) {
+        return isMember;
+      }
+      LOGGER.debug("Fail to filter teams of Bitbucket user {}. All teams will be listed.", user.getUsername());
+    }
+    // workspaces are probed by UUID of member
+    String uuid = user.getUuid();
+    if (uuid != null && membershipSelector.shouldProbe(teamsRestriction.length)) {
+      Boolean isMember = membershipSelector.timeProbe(() -> membershipProbe.isMemberOfAny(client, uuid, teamsRestriction));
+      if (isMember != null) {
+        return isMember;
+      }
+      LOGGER.debug("Fail to probe membership of Bitbucket user {}. Teams will be listed.", user.getUsername());
+    }
+    return membershipSelector.timeListing(listTeams);
+  }
+
+  public Optional<UserIdentity> findUnchanged(GsonUser user, @Nullable Set<String> groups) {
+    return fingerprints.findUnchanged(user, groups);
+  }
+
+  /**
+   * Records the identity built from the responses of Bitbucket, so that it is not built again while unchanged
+   */
+  public void recordFingerprint(UserIdentity identity, long tokenExpiresInSeconds) {
+    fingerprints.record(identity, tokenExpiresInSeconds);
+  }
+
+  /**
+   * Records the identity verified against the restrictions, to be used in degraded mode
+   */
+  public void recordVerified(UserIdentity identity, @Nullable String allowedEmail, String[] teamsRestriction) {
+    verifiedProfiles.record(identity, allowedEmail, teamsRestriction);
+  }
+
+  /**
+   * Identity verified during the grace window, used when Bitbucket fails after returning the profile of the user
+   */
+  public Optional<UserIdentity> degradedIdentity(GsonUser user, String[] teamsRestriction, RuntimeException cause) {
+    if (user.getUuid() == null || !isUpstreamFailure(cause)) {
+      return Optional.empty();
+    }
+    return verifiedProfiles.find(user.getUuid(), teamsRestriction)
+      .map(profile -> {
+        metrics.onDegradedLogin();
+        // not rate-limited, each authentication without verification must be traced
+        LOGGER.warn("Fail to verify Bitbucket user {} ({}). User is authenticated with the profile verified {} minutes ago.",
+          user.getUsername(), cause.getMessage(), TimeUnit.MILLISECONDS.toMinutes(system2.now() - profile.getVerifiedAt()));
+        return userIdentityFactory.createWithEmail(user, profile.getEmail(), profile.getGroups());
+      });
+  }
+
+  /**
+   * Network errors and unavailability of Bitbucket. Other failures, for example a scope not granted, are never tolerated.
+   */
+  private static boolean isUpstreamFailure(RuntimeException e) {
+    return e instanceof BitbucketUnavailableException || e instanceof OAuthConnectionException || e instanceof UncheckedIOException;
+  }
+}
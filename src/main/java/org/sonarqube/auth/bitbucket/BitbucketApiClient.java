@@ -0,0 +1,132 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.api.DefaultApi20;
+import com.github.scribejava.core.exceptions.OAuthConnectionException;
+import com.github.scribejava.core.model.OAuthConfig;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Token;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuthService;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Sends the requests of a single authentication to the Bitbucket API, on behalf of the user
+ * owning the access token.
+ * <p/>
+ * Contrary to {@link OAuthRequest#send()}, compressed responses are requested and the response is
+ * exposed as a stream, so that payloads are never fully loaded in memory. Requests are sent by
+ * a {@link BitbucketTransport}.
+ */
+public class BitbucketApiClient {
+
+  static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  private final BitbucketTransport transport;
+  private final OAuthService scribe;
+  private final Token accessToken;
+  private final BitbucketMetrics metrics;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  public BitbucketApiClient(BitbucketTransport transport, OAuthService scribe, Token accessToken, BitbucketMetrics metrics) {
+    this.transport = transport;
+    this.scribe = scribe;
+    this.accessToken = accessToken;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Exchanges the authorization code for an access token, like {@link OAuthService#getAccessToken(Token, com.github.scribejava.core.model.Verifier)}.
+   * The response is streamed to {@link BitbucketTokenExtractor}.
+   */
+  public static BitbucketToken requestAccessToken(BitbucketTransport transport, OAuthService scribe, DefaultApi20 api, String code) {
+    OAuthConfig config = scribe.getConfig();
+    OAuthRequest request = new OAuthRequest(api.getAccessTokenVerb(), api.getAccessTokenEndpoint(), scribe);
+    request.addParameter("client_id", config.getApiKey());
+    request.addParameter("client_secret", config.getApiSecret());
+    request.addParameter("code", code);
+    request.addParameter("redirect_uri", config.getCallback());
+    if (config.hasScope()) {
+      request.addParameter("scope", config.getScope());
+    }
+    if (config.hasGrantType()) {
+      request.addParameter("grant_type", config.getGrantType());
+    }
+    try (ApiResponse response = send(transport, request)) {
+      return BitbucketTokenExtractor.extract(response.reader());
+    }
+  }
+
+  /**
+   * Sends a signed GET request and applies {@code handler} on the response, which is
+   * closed afterwards.
+   *
+   * @param endpoint name of the endpoint, used to aggregate metrics
+   */
+  public <T> T get(String endpoint, String url, Function<ApiResponse, T> handler) {
+    try (ApiResponse response = open(endpoint, url)) {
+      return handler.apply(response);
+    }
+  }
+
+  /**
+   * Sends a signed GET request. The caller is responsible for closing the response.
+   *
+   * @param endpoint name of the endpoint, used to aggregate metrics
+   */
+  public ApiResponse open(String endpoint, String url) {
+    OAuthRequest request = new OAuthRequest(Verb.GET, url, scribe);
+    scribe.signRequest(accessToken, request);
+    request.addHeader("Accept-Encoding", ACCEPT_ENCODING);
+    ApiResponse response = send(transport, request);
+    return response.onClose(bytes -> {
+      requestCount.incrementAndGet();
+      bytesReceived.addAndGet(bytes);
+      metrics.onResponse(endpoint, bytes);
+    });
+  }
+
+  /**
+   * Number of requests sent since the creation of this client
+   */
+  public int requestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Number of bytes received on the wire, before decompression, since the creation of this client
+   */
+  public long bytesReceived() {
+    return bytesReceived.get();
+  }
+
+  private static ApiResponse send(BitbucketTransport transport, OAuthRequest request) {
+    try {
+      return transport.send(request);
+    } catch (IOException e) {
+      throw new OAuthConnectionException(request.getCompleteUrl(), e);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Cache of data fetched from Bitbucket. Values are opaque binary records, so that
+ * backends can store them off-heap or on disk. Entries are evicted when they are older than
+ * the time-to-live defined by {@link BitbucketSettings#cacheTtlMs()}.
+ * <p/>
+ * Implementations must be thread-safe.
+ *
+ * @see BitbucketCaches
+ */
+public interface BitbucketCache {
+
+  /**
+   * @return the value, or {@code null} if absent or expired
+   */
+  @CheckForNull
+  byte[] get(String key);
+
+  void put(String key, byte[] value);
+
+  void remove(String key);
+
+  void clear();
+
+  /**
+   * Number of entries, including the expired entries that are not evicted yet
+   */
+  int size();
+
+  /**
+   * Statistics since the creation of the cache. Hits, misses and evictions are counted without locking, so
+   * that lookups are not slowed down.
+   */
+  CacheStats stats();
+
+  /**
+   * Releases the resources (files, buffers). The cache must not be used afterwards.
+   */
+  void close();
+}
@@ -0,0 +1,296 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import org.sonar.api.Startable;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.CACHE_BACKEND_FILE;
+
+/**
+ * Registry of the named caches of the plugin. The backend of the caches is defined by
+ * {@link BitbucketSettings#cacheBackend()}. When the setting is changed, caches are re-created
+ * on their next use with the new backend. Caches are closed by {@link #release()} when Bitbucket
+ * authentication is disabled.
+ * <p/>
+ * The cache returned by {@link #get(String)} can be kept by callers: it delegates each operation to
+ * the instance of the current backend. An instance is closed once the operations in progress on it are done,
+ * and the next one is created only then, so that a cache file is never opened by two instances.
+ * <p/>
+ * Caches are looked up on each authentication, so the registry is not locked by {@link #get(String)}.
+ */
+@ServerSide
+public class BitbucketCaches implements Startable {
+
+  static final String DIRECTORY = "authbitbucket";
+  private static final String FILE_SUFFIX = ".cache";
+
+  private final BitbucketSettings settings;
+  private final ServerFileSystem fileSystem;
+  private final System2 system2;
+  private final Map<String, SharedCache> caches = new ConcurrentHashMap<>();
+
+  public BitbucketCaches(BitbucketSettings settings, ServerFileSystem fileSystem, System2 system2) {
+    this.settings = settings;
+    this.fileSystem = fileSystem;
+    this.system2 = system2;
+  }
+
+  @Override
+  public void start() {
+    // caches are created on demand
+  }
+
+  @Override
+  public void stop() {
+    release();
+  }
+
+  /**
+   * Closes all the caches, after the operations in progress. Heap caches are dropped, file caches are
+   * kept on disk. Caches are created again on their next use.
+   */
+  public void release() {
+    caches.values().forEach(SharedCache::close);
+  }
+
+  public BitbucketCache get(String name) {
+    // ConcurrentHashMap#computeIfAbsent() locks the bin even when the key is present on Java 8
+    SharedCache cache = caches.get(name);
+    if (cache == null) {
+      cache = caches.computeIfAbsent(name, SharedCache::new);
+    }
+    return cache;
+  }
+
+  /**
+   * Instance of the current backend of the cache
+   */
+  BitbucketCache instanceOf(String name) {
+    return ((SharedCache) get(name)).apply(Function.identity());
+  }
+
+  /**
+   * The caches opened since startup or since the last {@link #release()}, by name
+   */
+  public Map<String, BitbucketCache> all() {
+    Map<String, BitbucketCache> result = new TreeMap<>();
+    caches.forEach((name, cache) -> {
+      if (cache.isOpen()) {
+        result.put(name, cache);
+      }
+    });
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Removes the entries of the key, for example the UUID of a user, from all the caches. With the backend
+   * {@link BitbucketSettings#CACHE_BACKEND_FILE}, the cache files not opened yet since startup are opened.
+   */
+  public void evict(String key) {
+    openCacheFiles();
+    all().values().forEach(c -> c.remove(key));
+  }
+
+  /**
+   * Removes all the entries of all the caches
+   */
+  public void evictAll() {
+    openCacheFiles();
+    all().values().forEach(BitbucketCache::clear);
+  }
+
+  private void openCacheFiles() {
+    if (!CACHE_BACKEND_FILE.equals(settings.cacheBackend())) {
+      return;
+    }
+    File[] files = new File(dataDir(), DIRECTORY).listFiles((dir, fileName) -> fileName.endsWith(FILE_SUFFIX));
+    if (files != null) {
+      for (File file : files) {
+        // the file is opened by the first operation
+        get(file.getName().substring(0, file.getName().length() - FILE_SUFFIX.length())).size();
+      }
+    }
+  }
+
+  private BitbucketCache create(String name, String backend) {
+    long ttlMs = settings.cacheTtlMs();
+    int maxSize = settings.cacheMaxSizeInBytes();
+    if (CACHE_BACKEND_FILE.equals(backend)) {
+      File file = new File(new File(dataDir(), DIRECTORY), name + FILE_SUFFIX);
+      return new MappedFileCache(file, maxSize, ttlMs, system2);
+    }
+    return new HeapLruCache(maxSize, ttlMs, system2);
+  }
+
+  private File dataDir() {
+    return settings.dataDir().map(File::new).orElseGet(() -> new File(fileSystem.getHomeDir(), "data"));
+  }
+
+  /**
+   * Cache returned by {@link #get(String)}, delegating to the instance of the current backend
+   */
+  private class SharedCache implements BitbucketCache {
+    private final String name;
+    @CheckForNull
+    private volatile Instance instance;
+
+    SharedCache(String name) {
+      this.name = name;
+    }
+
+    @CheckForNull
+    @Override
+    public byte[] get(String key) {
+      return apply(cache -> cache.get(key));
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+      apply(cache -> {
+        cache.put(key, value);
+        return null;
+      });
+    }
+
+    @Override
+    public void remove(String key) {
+      apply(cache -> {
+        cache.remove(key);
+        return null;
+      });
+    }
+
+    @Override
+    public void clear() {
+      apply(cache -> {
+        cache.clear();
+        return null;
+      });
+    }
+
+    @Override
+    public int size() {
+      return apply(BitbucketCache::size);
+    }
+
+    @Override
+    public CacheStats stats() {
+      return apply(BitbucketCache::stats);
+    }
+
+    /**
+     * Closes the current instance once the operations in progress are done. The next operation opens a new instance.
+     */
+    @Override
+    public synchronized void close() {
+      Instance current = instance;
+      if (current != null) {
+        instance = null;
+        current.close();
+      }
+    }
+
+    boolean isOpen() {
+      return instance != null;
+    }
+
+    private <T> T apply(Function<BitbucketCache, T> operation) {
+      String backend = settings.cacheBackend();
+      while (true) {
+        Instance current = instance;
+        if (current != null && current.backend.equals(backend) && current.acquire()) {
+          try {
+            return operation.apply(current.cache);
+          } finally {
+            current.release();
+          }
+        }
+        open(backend);
+      }
+    }
+
+    private synchronized void open(String backend) {
+      Instance current = instance;
+      if (current != null && current.backend.equals(backend)) {
+        // opened concurrently
+        return;
+      }
+      close();
+      instance = new Instance(backend, create(name, backend));
+    }
+  }
+
+  /**
+   * Instance of cache counting the operations in progress, so that it is closed only when none is running
+   */
+  private static class Instance {
+    // sign bit of the state, set when the instance is closed
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    private final String backend;
+    private final BitbucketCache cache;
+    private final AtomicInteger state = new AtomicInteger();
+
+    Instance(String backend, BitbucketCache cache) {
+      this.backend = backend;
+      this.cache = cache;
+    }
+
+    /**
+     * @return false if the instance is closed
+     */
+    boolean acquire() {
+      int current;
+      do {
+        current = state.get();
+        if (current < 0) {
+          return false;
+        }
+      } while (!state.compareAndSet(current, current + 1));
+      return true;
+    }
+
+    void release() {
+      state.decrementAndGet();
+    }
+
+    /**
+     * Rejects new operations, then waits for the operations in progress, which do not block, before closing the cache
+     */
+    void close() {
+      state.getAndUpdate(s -> s | CLOSED);
+      while (state.get() != CLOSED) {
+        Thread.yield();
+      }
+      cache.close();
+    }
+  }
+}
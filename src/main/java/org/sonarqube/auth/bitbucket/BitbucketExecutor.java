@@ -0,0 +1,147 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Threads sending requests to Bitbucket in parallel, shared by all the authentications.
+ * <p/>
+ * On Java 21+, each task runs on its own virtual thread, so that tasks blocked on Bitbucket do not
+ * hold platform threads. On older JVMs, tasks run on at most {@link #MAX_THREADS} platform threads, which
+ * are created on demand and are released when idle. See {@link VirtualThreads}.
+ * <p/>
+ * The executor is created on first use, so that nothing is started while Bitbucket authentication
+ * is disabled, and it is shut down by {@link #release()} when authentication is disabled again.
+ */
+@ServerSide
+public class BitbucketExecutor implements Startable {
+
+  private static final Logger LOGGER = Loggers.get(BitbucketExecutor.class);
+
+  static final int MAX_THREADS = 32;
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+  private static final String THREAD_PREFIX = "bitbucket-io-";
+
+  private final boolean virtualThreads;
+  @CheckForNull
+  private volatile ExecutorService executor;
+
+  public BitbucketExecutor() {
+    this(VirtualThreads.isSupported());
+  }
+
+  BitbucketExecutor(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  public ExecutorService get() {
+    ExecutorService result = executor;
+    if (result == null) {
+      synchronized (this) {
+        result = executor;
+        if (result == null) {
+          result = newExecutor();
+          executor = result;
+          LOGGER.debug("Requests to Bitbucket are sent in parallel on {}", virtualThreads ? "virtual threads" : (MAX_THREADS + " platform threads"));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether the executor has been created and not released since
+   */
+  public boolean isActive() {
+    return executor != null;
+  }
+
+  /**
+   * Shuts down the executor. Tasks in progress are interrupted. A new executor is created on next use.
+   */
+  public synchronized void release() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private ExecutorService newExecutor() {
+    return virtualThreads ? VirtualThreads.newExecutor(THREAD_PREFIX) : newPlatformExecutor(THREAD_PREFIX);
+  }
+
+  /**
+   * At most {@link #MAX_THREADS} daemon threads, created on demand and released when idle
+   */
+  static ExecutorService newPlatformExecutor(String prefix) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(), new DaemonThreadFactory(prefix));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  public boolean usesVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Maximum number of tasks executed at the same time, {@link Integer#MAX_VALUE} with virtual threads
+   */
+  public int parallelism() {
+    return virtualThreads ? Integer.MAX_VALUE : MAX_THREADS;
+  }
+
+  @Override
+  public void start() {
+    // executor is created on demand
+  }
+
+  @Override
+  public void stop() {
+    release();
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -20,23 +20,29 @@
 package org.sonarqube.auth.bitbucket;
 
 import com.github.scribejava.core.builder.ServiceBuilder;
-import com.github.scribejava.core.model.OAuthRequest;
-import com.github.scribejava.core.model.Response;
 import com.github.scribejava.core.model.Token;
-import com.github.scribejava.core.model.Verb;
-import com.github.scribejava.core.model.Verifier;
 import com.github.scribejava.core.oauth.OAuthService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import org.sonar.api.server.ServerSide;
 import org.sonar.api.server.authentication.Display;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UnauthorizedException;
 import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
 import static java.lang.String.format;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.util.Arrays.asList;
 
 @ServerSide
@@ -45,17 +51,39 @@ public class BitbucketIdentityProvider implements OAuth2IdentityProvider {
   private static final Logger LOGGER = Loggers.get(BitbucketIdentityProvider.class);
 
   public static final String REQUIRED_SCOPE = "account";
+  // scopes granted according to the permissions of the OAuth consumer
+  static final String EMAIL_SCOPE = "email";
+  static final String TEAM_SCOPE = "team";
   public static final String KEY = "bitbucket";
   private static final Token EMPTY_TOKEN = null;
 
+  static final String USER_ENDPOINT = "user";
+  static final String EMAILS_ENDPOINT = "emails";
+  static final String TEAMS_ENDPOINT = "teams";
+  // maximum supported by Bitbucket
+  static final int TEAMS_PAGE_LENGTH = 100;
+
   private final BitbucketSettings settings;
   private final UserIdentityFactory userIdentityFactory;
   private final BitbucketScribeApi scribeApi;
+  private final BitbucketTransport transport;
+  private final BitbucketMetrics metrics;
+  private final AuditLog auditLog;
+  private final AuthenticationPipeline pipeline;
+  private final RateLimitedLogger rateLimitedLogger;
+  private final Set<String> endpointsWithoutPartialResponse = ConcurrentHashMap.newKeySet();
+  private volatile EmailDomainTrie emailDomainTrie;
 
-  public BitbucketIdentityProvider(BitbucketSettings settings, UserIdentityFactory userIdentityFactory, BitbucketScribeApi scribeApi) {
+  public BitbucketIdentityProvider(BitbucketSettings settings, UserIdentityFactory userIdentityFactory, BitbucketScribeApi scribeApi,
+    BitbucketTransport transport, BitbucketMetrics metrics, AuditLog auditLog, AuthenticationPipeline pipeline, System2 system2) {
     this.settings = settings;
     this.userIdentityFactory = userIdentityFactory;
     this.scribeApi = scribeApi;
+    this.transport = transport;
+    this.metrics = metrics;
+    this.auditLog = auditLog;
+    this.pipeline = pipeline;
+    this.rateLimitedLogger = new RateLimitedLogger(LOGGER, system2);
   }
 
   @Override
@@ -98,67 +126,262 @@ public class BitbucketIdentityProvider implements OAuth2IdentityProvider {
 
   @Override
   public void callback(CallbackContext context) {
+    pipeline.onCallbackStarted();
+    try {
+      authenticate(context);
+    } finally {
+      pipeline.onCallbackFinished();
+    }
+  }
+
+  private void authenticate(CallbackContext context) {
     HttpServletRequest request = context.getRequest();
     OAuthService scribe = newScribeBuilder(context).build();
     String oAuthVerifier = request.getParameter("code");
-    Token accessToken = scribe.getAccessToken(EMPTY_TOKEN, new Verifier(oAuthVerifier));
-
-    GsonUser gsonUser = requestUser(scribe, accessToken);
-    GsonEmails gsonEmails = requestEmails(scribe, accessToken);
-
-    checkTeamRestriction(scribe, accessToken, gsonUser);
+    ConcurrencyLimiter.Permit permit = pipeline.tryAcquire();
+    if (permit == null) {
+      throw new UnauthorizedException("Too many users are currently authenticating with Bitbucket. Please try again in a few seconds.");
+    }
+    // zero cost when instrumentation is disabled
+    boolean instrumented = settings.instrumentationEnabled();
+    long allocatedBytesAtStart = instrumented ? ThreadAllocation.allocatedBytes() : -1L;
+    BitbucketApiClient client = null;
+    GsonUser gsonUser = null;
+    String[] teamsRestriction = settings.teamRestriction();
+    UserIdentity userIdentity;
+    try {
+      BitbucketToken accessToken = BitbucketApiClient.requestAccessToken(transport, scribe, scribeApi, oAuthVerifier);
+      client = new BitbucketApiClient(transport, scribe, accessToken, metrics);
+      gsonUser = requestUser(client);
+      userIdentity = verify(client, accessToken, gsonUser, teamsRestriction);
+    } catch (UnauthorizedException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      permit.onFailure();
+      Optional<UserIdentity> degradedIdentity = gsonUser == null ? Optional.empty() : pipeline.degradedIdentity(gsonUser, teamsRestriction, e);
+      if (!degradedIdentity.isPresent()) {
+        auditLog.upstreamError(gsonUser == null ? null : gsonUser.getUuid(), gsonUser == null ? null : gsonUser.getUsername(), e.getMessage());
+        if (e instanceof BitbucketUnavailableException && ((BitbucketUnavailableException) e).isDenial()) {
+          throw new UnauthorizedException(e.getMessage());
+        }
+        throw e;
+      }
+      userIdentity = degradedIdentity.get();
+    } finally {
+      permit.onSuccess();
+      if (client != null) {
+        metrics.onLogin(client.bytesReceived());
+        LOGGER.debug("{} requests sent to Bitbucket API, {} bytes received", client.requestCount(), client.bytesReceived());
+      }
+      if (instrumented) {
+        metrics.onInstrumentedLogin(ThreadAllocation.allocatedBytesSince(allocatedBytesAtStart), client == null ? 0 : client.requestCount());
+      }
+    }
 
-    UserIdentity userIdentity = userIdentityFactory.create(gsonUser, gsonEmails);
     context.authenticate(userIdentity);
+    auditLog.authenticated(userIdentity.getProviderId(), userIdentity.getLogin());
     context.redirectToRequestedPage();
   }
 
-  private GsonUser requestUser(OAuthService scribe, Token accessToken) {
-    OAuthRequest userRequest = new OAuthRequest(Verb.GET, settings.apiURL() + "2.0/user", scribe);
-    scribe.signRequest(accessToken, userRequest);
-    Response userResponse = userRequest.send();
+  /**
+   * Checks the team restriction and builds the identity of the user. Teams and emails are not requested
+   * if the token does not grant access to them.
+   */
+  private UserIdentity verify(BitbucketApiClient client, BitbucketToken accessToken, GsonUser gsonUser, String[] teamsRestriction) {
+    List<String> teams = null;
+    boolean teamScope = accessToken.hasScope(TEAM_SCOPE);
+    if (settings.syncGroups()) {
+      if (teamScope) {
+        // the same teams are used for restriction and synchronization of groups
+        teams = teamsRestriction.length == 0 ? requestTeamsOfGroups(client, gsonUser) : requestTeams(client, gsonUser, t -> false);
+      } else if (teamsRestriction.length == 0) {
+        rateLimitedLogger.warnFor(gsonUser.getUsername(), "Groups of Bitbucket user {} are not synchronized: scope '{}' is not granted",
+          gsonUser.getUsername(), TEAM_SCOPE);
+      } else {
+        throw missingScope(gsonUser, TEAM_SCOPE);
+      }
+      checkTeamRestriction(gsonUser, teamsRestriction.length == 0 || isMemberOfAny(checkFetched(gsonUser, teams), teamsRestriction));
+    } else if (teamsRestriction.length > 0) {
+      boolean preloaded = pipeline.isPreloadedMember(gsonUser, teamsRestriction);
+      if (!preloaded && !teamScope) {
+        throw missingScope(gsonUser, TEAM_SCOPE);
+      }
+      checkTeamRestriction(gsonUser, preloaded || pipeline.isMemberOfRestrictedTeams(client, gsonUser, teamsRestriction,
+        () -> isMemberOfAny(checkFetched(gsonUser, requestTeams(client, gsonUser, t -> isMemberOfAny(t, teamsRestriction))), teamsRestriction)));
+    }
+    Set<String> groups = userIdentityFactory.groupsOf(teams);
 
-    if (!userResponse.isSuccessful()) {
-      throw new IllegalStateException(format("Can not get Bitbucket user profile. HTTP code: %s, response: %s",
-        userResponse.getCode(), userResponse.getBody()));
+    EmailDomainTrie emailDomains = emailDomainRestriction();
+    UserIdentity userIdentity;
+    String allowedEmail = null;
+    // emails must be checked on each authentication when they are restricted
+    Optional<UserIdentity> unchangedIdentity = emailDomains == null ? pipeline.findUnchanged(gsonUser, groups) : Optional.empty();
+    if (unchangedIdentity.isPresent()) {
+      userIdentity = unchangedIdentity.get();
+    } else {
+      GsonEmails gsonEmails = null;
+      if (accessToken.hasScope(EMAIL_SCOPE)) {
+        gsonEmails = requestEmails(client, gsonUser, emailDomains);
+      } else if (emailDomains != null) {
+        throw missingScope(gsonUser, EMAIL_SCOPE);
+      }
+      if (emailDomains != null) {
+        checkEmailRestriction(gsonUser, gsonEmails);
+        allowedEmail = gsonEmails.getAllowedEmail();
+      }
+      userIdentity = userIdentityFactory.create(gsonUser, gsonEmails, groups);
+      pipeline.recordFingerprint(userIdentity, accessToken.getExpiresInSeconds());
     }
-    String userResponseBody = userResponse.getBody();
-    return GsonUser.parse(userResponseBody);
+    pipeline.recordVerified(userIdentity, allowedEmail, teamsRestriction);
+    return userIdentity;
+  }
+
+  private GsonUser requestUser(BitbucketApiClient client) {
+    return requestPartial(client, USER_ENDPOINT, settings.apiURL() + "2.0/user", GsonUser.FIELDS, userResponse -> {
+      if (!userResponse.isSuccessful()) {
+        String message = format("Can not get Bitbucket user profile. HTTP code: %s, response: %s", userResponse.getCode(), userResponse.abbreviatedBody());
+        throw BitbucketUnavailableException.isUnavailable(userResponse.getCode()) ? new BitbucketUnavailableException(message, false) : new IllegalStateException(message);
+      }
+      return GsonUser.parse(userResponse.reader());
+    });
   }
 
   @CheckForNull
-  private GsonEmails requestEmails(OAuthService scribe, Token accessToken) {
-    OAuthRequest userRequest = new OAuthRequest(Verb.GET, settings.apiURL() + "2.0/user/emails", scribe);
-    scribe.signRequest(accessToken, userRequest);
-    Response emailsResponse = userRequest.send();
-    if (emailsResponse.isSuccessful()) {
-      return GsonEmails.parse(emailsResponse.getBody());
+  private GsonEmails requestEmails(BitbucketApiClient client, GsonUser user, @Nullable EmailDomainTrie emailDomains) {
+    return requestPartial(client, EMAILS_ENDPOINT, settings.apiURL() + "2.0/user/emails", GsonEmails.FIELDS, emailsResponse -> {
+      if (emailDomains != null && BitbucketUnavailableException.isUnavailable(emailsResponse.getCode())) {
+        throw new BitbucketUnavailableException(format("Can not get the emails of Bitbucket user %s. HTTP code: %s",
+          user.getUsername(), emailsResponse.getCode()), false);
+      }
+      if (!emailsResponse.isSuccessful()) {
+        return null;
+      }
+      if (emailDomains == null) {
+        return GsonEmails.parse(emailsResponse.reader());
+      }
+      return GsonEmails.parse(emailsResponse.reader(), emailDomains::accepts);
+    });
+  }
+
+  /**
+   * @return null if emails are not restricted
+   */
+  @CheckForNull
+  private EmailDomainTrie emailDomainRestriction() {
+    String[] domains = settings.emailDomains();
+    if (domains.length == 0) {
+      return null;
     }
-    return null;
+    EmailDomainTrie trie = emailDomainTrie;
+    if (trie == null || !trie.isCompiledFrom(domains)) {
+      trie = EmailDomainTrie.compile(domains);
+      emailDomainTrie = trie;
+    }
+    return trie;
   }
 
-  private void checkTeamRestriction(OAuthService scribe, Token accessToken, GsonUser user) {
-    String[] teamsRestriction = settings.teamRestriction();
-    if (teamsRestriction != null && teamsRestriction.length > 0) {
-      GsonTeams userTeams = requestTeams(scribe, accessToken);
-      if (userTeams == null || userTeams.getTeams() == null || userTeams.getTeams().stream().noneMatch(t -> asList(teamsRestriction).contains(t.getUserName()))) {
-        throw new UnauthorizedException(format("User %s is not part of restricted teams", user.getUsername()));
-      }
+  private static IllegalStateException missingScope(GsonUser user, String scope) {
+    return new IllegalStateException(format("Bitbucket did not grant the scope '%s' for user %s. Check the permissions of the OAuth consumer.",
+      scope, user.getUsername()));
+  }
+
+  private void checkEmailRestriction(GsonUser user, @Nullable GsonEmails emails) {
+    if (emails == null) {
+      throw new IllegalStateException(format("Can not get the emails of Bitbucket user %s", user.getUsername()));
+    }
+    if (emails.getAllowedEmail() == null) {
+      auditLog.emailDenied(user.getUuid(), user.getUsername());
+      throw new UnauthorizedException(format("User %s has no confirmed email in the allowed domains", user.getUsername()));
+    }
+  }
+
+  private void checkTeamRestriction(GsonUser user, boolean allowed) {
+    if (!allowed) {
+      auditLog.teamDenied(user.getUuid(), user.getUsername());
+      throw new UnauthorizedException(format("User %s is not part of restricted teams", user.getUsername()));
+    }
+  }
+
+  private static boolean isMemberOfAny(@Nullable List<String> teams, String[] teamsRestriction) {
+    return teams != null && teams.stream().anyMatch(asList(teamsRestriction)::contains);
+  }
+
+  private static List<String> checkFetched(GsonUser user, @Nullable List<String> teams) {
+    if (teams == null) {
+      throw new UnauthorizedException(format("Can not get the teams of Bitbucket user %s", user.getUsername()));
     }
+    return teams;
   }
 
+  /**
+   * Teams synchronized as groups, when teams are not restricted. Groups are not changed if Bitbucket is unavailable.
+   */
   @CheckForNull
-  private GsonTeams requestTeams(OAuthService scribe, Token accessToken) {
-    OAuthRequest userRequest = new OAuthRequest(Verb.GET, settings.apiURL() + "2.0/teams?role=member", scribe);
-    scribe.signRequest(accessToken, userRequest);
-    Response teamsResponse = userRequest.send();
-    if (teamsResponse.isSuccessful()) {
-      return GsonTeams.parse(teamsResponse.getBody());
+  private List<String> requestTeamsOfGroups(BitbucketApiClient client, GsonUser user) {
+    try {
+      return requestTeams(client, user, t -> false);
+    } catch (BitbucketUnavailableException e) {
+      rateLimitedLogger.warn("Fail to retrieve the teams of Bitbucket user: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Requests the teams of the user, page by page, until the last page or until {@code isEnough}
+   * accepts the teams received so far.
+   *
+   * @return null if teams can't be fetched
+   * @throws BitbucketUnavailableException if Bitbucket is unavailable, so that the user can be authenticated with
+   * their last verified profile
+   */
+  @CheckForNull
+  private List<String> requestTeams(BitbucketApiClient client, GsonUser user, Predicate<List<String>> isEnough) {
+    Function<ApiResponse, GsonTeams> handler = teamsResponse -> {
+      if (teamsResponse.isSuccessful()) {
+        return GsonTeams.parse(teamsResponse.reader());
+      }
+      if (BitbucketUnavailableException.isUnavailable(teamsResponse.getCode())) {
+        throw new BitbucketUnavailableException(format("Can not get the teams of Bitbucket user %s. HTTP code: %s",
+          user.getUsername(), teamsResponse.getCode()), true);
+      }
+      rateLimitedLogger.warn("Fail to retrieve the teams of Bitbucket user: {}", teamsResponse.abbreviatedBody());
+      return null;
+    };
+    String url = settings.apiURL() + "2.0/teams?role=member&pagelen=" + TEAMS_PAGE_LENGTH;
+    GsonTeams page = requestPartial(client, TEAMS_ENDPOINT, url, GsonTeams.FIELDS, handler);
+    List<String> teams = new ArrayList<>();
+    while (page != null) {
+      if (page.getTeams() != null) {
+        page.getTeams().forEach(t -> teams.add(t.getUserName()));
+      }
+      if (page.getNext() == null || isEnough.test(teams)) {
+        return teams;
+      }
+      // the link to the next page keeps the parameters of the first request, including "fields" if supported
+      page = client.get(TEAMS_ENDPOINT, page.getNext(), handler);
     }
-    LOGGER.warn("Fail to retrieve the teams of Bitbucket user: {}", teamsResponse.getBody());
     return null;
   }
 
+  /**
+   * Requests only the given fields (see https://developer.atlassian.com/bitbucket/api/2/reference/meta/partial-response).
+   * Servers rejecting the parameter "fields" are requested again for the full response, and then
+   * are never requested for a partial response of the same endpoint.
+   */
+  private <T> T requestPartial(BitbucketApiClient client, String endpoint, String url, String fields, Function<ApiResponse, T> handler) {
+    if (!endpointsWithoutPartialResponse.contains(endpoint)) {
+      try (ApiResponse response = client.open(endpoint, url + (url.contains("?") ? '&' : '?') + "fields=" + fields)) {
+        if (response.getCode() != HTTP_BAD_REQUEST) {
+          return handler.apply(response);
+        }
+      }
+      endpointsWithoutPartialResponse.add(endpoint);
+      metrics.onPartialResponseFallback(endpoint);
+      LOGGER.info("Bitbucket API does not support partial responses on endpoint '{}'. Full responses will be requested.", endpoint);
+    }
+    return client.get(endpoint, url, handler);
+  }
+
   private ServiceBuilder newScribeBuilder(OAuth2IdentityProvider.OAuth2Context context) {
     if (!isEnabled()) {
       throw new IllegalStateException("Bitbucket authentication is disabled");
@@ -168,6 +391,8 @@ public class BitbucketIdentityProvider implements OAuth2IdentityProvider {
       .apiKey(settings.clientId())
       .apiSecret(settings.clientSecret())
       .grantType("authorization_code")
+      .connectTimeout(settings.apiTimeoutMs())
+      .readTimeout(settings.apiTimeoutMs())
       .callback(context.getCallbackUrl());
   }
 }
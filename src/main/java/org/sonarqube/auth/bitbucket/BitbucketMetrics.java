@@ -0,0 +1,209 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * In-memory counters of the traffic between SonarQube and Bitbucket, since server startup.
+ */
+@ServerSide
+public class BitbucketMetrics {
+
+  static final int LATENCY_SAMPLES = 1024;
+
+  private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+  private final LongAdder logins = new LongAdder();
+  private final LongAdder loginBytesReceived = new LongAdder();
+  private final LongAdder unchangedProfiles = new LongAdder();
+  private final LongAdder droppedAuditEvents = new LongAdder();
+  private final LongAdder rejectedCallbacks = new LongAdder();
+  private final LongAdder degradedLogins = new LongAdder();
+  private volatile int concurrencyLimit = 0;
+  private final LatencySamples loginLatencies = new LatencySamples(LATENCY_SAMPLES);
+  private final LatencySamples loginAllocations = new LatencySamples(LATENCY_SAMPLES);
+  private final LatencySamples loginRequests = new LatencySamples(LATENCY_SAMPLES);
+
+  public void onResponse(String endpoint, long bytesReceived) {
+    EndpointStats stats = endpoints.computeIfAbsent(endpoint, e -> new EndpointStats());
+    stats.requests.increment();
+    stats.bytesReceived.add(bytesReceived);
+  }
+
+  /**
+   * The endpoint rejected the parameter "fields", so the full response had to be requested
+   */
+  public void onPartialResponseFallback(String endpoint) {
+    endpoints.computeIfAbsent(endpoint, e -> new EndpointStats()).partialResponseFallbacks.increment();
+  }
+
+  public void onLogin(long bytesReceived) {
+    logins.increment();
+    loginBytesReceived.add(bytesReceived);
+  }
+
+  /**
+   * A login re-used the identity recorded during the freshness window
+   */
+  public void onUnchangedProfile() {
+    unchangedProfiles.increment();
+  }
+
+  public long unchangedProfiles() {
+    return unchangedProfiles.sum();
+  }
+
+  public void onAuditEventDropped() {
+    droppedAuditEvents.increment();
+  }
+
+  public void onAuditEventDropped(int count) {
+    droppedAuditEvents.add(count);
+  }
+
+  public long droppedAuditEvents() {
+    return droppedAuditEvents.sum();
+  }
+
+  /**
+   * An authentication was rejected because too many authentications were already waiting on Bitbucket
+   */
+  public void onCallbackRejected() {
+    rejectedCallbacks.increment();
+  }
+
+  public long rejectedCallbacks() {
+    return rejectedCallbacks.sum();
+  }
+
+  /**
+   * A user was authenticated with their last verified profile because Bitbucket failed
+   */
+  public void onDegradedLogin() {
+    degradedLogins.increment();
+  }
+
+  public long degradedLogins() {
+    return degradedLogins.sum();
+  }
+
+  public void onConcurrencyLimit(int limit) {
+    this.concurrencyLimit = limit;
+  }
+
+  /**
+   * Current maximum number of authentications allowed to wait on Bitbucket at the same time
+   */
+  public int concurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  /**
+   * Time spent waiting on Bitbucket by an authentication
+   */
+  public void onLoginLatency(long latencyMs) {
+    loginLatencies.record(latencyMs);
+  }
+
+  /**
+   * Percentile of the latencies of the last {@link #LATENCY_SAMPLES} authentications
+   *
+   * @param percentile between 0 and 100
+   */
+  public long loginLatencyPercentile(double percentile) {
+    return loginLatencies.percentile(percentile);
+  }
+
+  /**
+   * Cost of an authentication, when {@link BitbucketSettings#instrumentationEnabled()}
+   *
+   * @param allocatedBytes bytes allocated in the heap by the thread of the authentication, -1 if not measured
+   * @param requests number of requests sent to Bitbucket API
+   */
+  public void onInstrumentedLogin(long allocatedBytes, int requests) {
+    if (allocatedBytes >= 0L) {
+      loginAllocations.record(allocatedBytes);
+    }
+    loginRequests.record(requests);
+  }
+
+  public long instrumentedLogins() {
+    return loginRequests.count();
+  }
+
+  /**
+   * Percentile of the bytes allocated by the last {@link #LATENCY_SAMPLES} instrumented authentications
+   */
+  public long loginAllocationPercentile(double percentile) {
+    return loginAllocations.percentile(percentile);
+  }
+
+  /**
+   * Percentile of the number of requests sent by the last {@link #LATENCY_SAMPLES} instrumented authentications
+   */
+  public long loginRequestsPercentile(double percentile) {
+    return loginRequests.percentile(percentile);
+  }
+
+  /**
+   * Names of the endpoints that received at least one request
+   */
+  public Set<String> endpoints() {
+    return new TreeSet<>(endpoints.keySet());
+  }
+
+  public long requests(String endpoint) {
+    EndpointStats stats = endpoints.get(endpoint);
+    return stats == null ? 0L : stats.requests.sum();
+  }
+
+  public long bytesReceived(String endpoint) {
+    EndpointStats stats = endpoints.get(endpoint);
+    return stats == null ? 0L : stats.bytesReceived.sum();
+  }
+
+  public long partialResponseFallbacks(String endpoint) {
+    EndpointStats stats = endpoints.get(endpoint);
+    return stats == null ? 0L : stats.partialResponseFallbacks.sum();
+  }
+
+  public long logins() {
+    return logins.sum();
+  }
+
+  /**
+   * Average number of bytes received from the Bitbucket API per login
+   */
+  public long averageBytesPerLogin() {
+    long count = logins.sum();
+    return count == 0L ? 0L : (loginBytesReceived.sum() / count);
+  }
+
+  private static class EndpointStats {
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder partialResponseFallbacks = new LongAdder();
+  }
+}
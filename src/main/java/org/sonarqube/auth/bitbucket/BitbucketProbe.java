@@ -0,0 +1,276 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+/**
+ * Measures the time spent by each step of a request to a Bitbucket URL : DNS resolution, TCP connection,
+ * TLS handshake and first byte of the response.
+ * <p/>
+ * The request is sent by {@link HttpURLConnection}, like the requests of authentication (see {@link HttpTransport}),
+ * so that the proxy settings of the JVM apply. DNS resolution is not measured when the URL is requested
+ * through a proxy, as the proxy resolves the host.
+ * <p/>
+ * Results are kept during {@link #CACHE_DURATION_MS}, so that probing can't put load on Bitbucket. Concurrent
+ * probes of the same URL wait for the probe in progress instead of sending their own request.
+ */
+@ServerSide
+public class BitbucketProbe {
+
+  static final long CACHE_DURATION_MS = TimeUnit.SECONDS.toMillis(30);
+  static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private final System2 system2;
+  // last or in-progress probe of each URL
+  private final Map<String, CompletableFuture<Result>> probes = new ConcurrentHashMap<>();
+
+  public BitbucketProbe(System2 system2) {
+    this.system2 = system2;
+  }
+
+  /**
+   * Result of the last probe of {@code url}, if more recent than {@link #CACHE_DURATION_MS}, else the result of
+   * the probe in progress, else probes the URL.
+   */
+  public Result probe(String url) {
+    while (true) {
+      CompletableFuture<Result> current = probes.get(url);
+      if (current != null && !isExpired(current)) {
+        return current.join();
+      }
+      CompletableFuture<Result> next = new CompletableFuture<>();
+      boolean owner = current == null ? (probes.putIfAbsent(url, next) == null) : probes.replace(url, current, next);
+      if (owner) {
+        // not probed within compute(), which would block the other URLs of the same bin until the timeout
+        return probe(url, next);
+      }
+    }
+  }
+
+  private Result probe(String url, CompletableFuture<Result> future) {
+    try {
+      Result result = doProbe(url);
+      future.complete(result);
+      return result;
+    } finally {
+      if (!future.isDone()) {
+        // unexpected error, the next call probes again
+        probes.remove(url, future);
+        future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * A probe in progress never expires
+   */
+  private boolean isExpired(CompletableFuture<Result> probe) {
+    return probe.isDone() && (probe.isCompletedExceptionally() || system2.now() - probe.join().probedAt >= CACHE_DURATION_MS);
+  }
+
+  private Result doProbe(String url) {
+    Result result = new Result(url, system2.now());
+    try {
+      URL parsed = new URL(url);
+      if (isDirect(parsed)) {
+        long start = System.nanoTime();
+        InetAddress.getByName(parsed.getHost());
+        result.dnsMs = elapsedMs(start);
+      }
+
+      HttpURLConnection connection = (HttpURLConnection) parsed.openConnection();
+      TimedSSLSocketFactory sslSocketFactory = null;
+      if (connection instanceof HttpsURLConnection) {
+        // a dedicated factory also prevents from re-using a connection opened by authentications
+        sslSocketFactory = new TimedSSLSocketFactory(((HttpsURLConnection) connection).getSSLSocketFactory());
+        ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+      }
+      connection.setRequestMethod("HEAD");
+      connection.setInstanceFollowRedirects(false);
+      connection.setConnectTimeout(TIMEOUT_MS);
+      connection.setReadTimeout(TIMEOUT_MS);
+      connection.setRequestProperty("Connection", "close");
+      try {
+        long start = System.nanoTime();
+        connection.connect();
+        long connected = System.nanoTime();
+        if (sslSocketFactory != null && sslSocketFactory.tcpConnectedAt != 0L) {
+          result.connectMs = TimeUnit.NANOSECONDS.toMillis(sslSocketFactory.tcpConnectedAt - start);
+          result.tlsMs = TimeUnit.NANOSECONDS.toMillis(connected - sslSocketFactory.tcpConnectedAt);
+        } else {
+          result.connectMs = TimeUnit.NANOSECONDS.toMillis(connected - start);
+        }
+
+        start = System.nanoTime();
+        result.status = connection.getResponseCode();
+        result.firstByteMs = elapsedMs(start);
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException | RuntimeException e) {
+      result.error = e.getClass().getSimpleName() + (e.getMessage() == null ? "" : (": " + e.getMessage()));
+    }
+    return result;
+  }
+
+  private static boolean isDirect(URL url) {
+    ProxySelector selector = ProxySelector.getDefault();
+    if (selector == null) {
+      return true;
+    }
+    try {
+      List<Proxy> proxies = selector.select(url.toURI());
+      return proxies.isEmpty() || proxies.get(0).type() == Proxy.Type.DIRECT;
+    } catch (URISyntaxException e) {
+      return true;
+    }
+  }
+
+  private static long elapsedMs(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Records when the TCP connection, or the tunnel through the proxy, is established. {@link HttpsURLConnection} then
+   * layers the TLS socket over it. Unconnected sockets are not supported, so that the TLS handshake is never part of
+   * the TCP connection.
+   */
+  private static class TimedSSLSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+    private volatile long tcpConnectedAt = 0L;
+
+    TimedSSLSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+      tcpConnectedAt = System.nanoTime();
+      return delegate.createSocket(socket, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+      return delegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+      return delegate.createSocket(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+  }
+
+  public static class Result {
+    private final String url;
+    private final long probedAt;
+    private long dnsMs = -1L;
+    private long connectMs = -1L;
+    private long tlsMs = -1L;
+    private long firstByteMs = -1L;
+    private int status = -1;
+    private String error;
+
+    Result(String url, long probedAt) {
+      this.url = url;
+      this.probedAt = probedAt;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public long getProbedAt() {
+      return probedAt;
+    }
+
+    /**
+     * The following durations are -1 if the step was not executed
+     */
+    public long getDnsMs() {
+      return dnsMs;
+    }
+
+    public long getConnectMs() {
+      return connectMs;
+    }
+
+    public long getTlsMs() {
+      return tlsMs;
+    }
+
+    public long getFirstByteMs() {
+      return firstByteMs;
+    }
+
+    /**
+     * HTTP status code, -1 if the request failed
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    @CheckForNull
+    public String getError() {
+      return error;
+    }
+
+    public boolean isReachable() {
+      return error == null && status != -1;
+    }
+  }
+}
@@ -21,7 +21,6 @@ package org.sonarqube.auth.bitbucket;
 
 import com.github.scribejava.core.builder.api.DefaultApi20;
 import com.github.scribejava.core.extractors.AccessTokenExtractor;
-import com.github.scribejava.core.extractors.JsonTokenExtractor;
 import com.github.scribejava.core.model.OAuthConfig;
 import com.github.scribejava.core.model.Verb;
 import org.sonar.api.server.ServerSide;
@@ -58,6 +57,6 @@ public class BitbucketScribeApi extends DefaultApi20 {
 
   @Override
   public AccessTokenExtractor getAccessTokenExtractor() {
-    return new JsonTokenExtractor();
+    return new BitbucketTokenExtractor();
   }
 }
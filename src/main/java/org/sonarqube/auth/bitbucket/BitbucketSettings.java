@@ -21,6 +21,8 @@ package org.sonarqube.auth.bitbucket;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import javax.annotation.CheckForNull;
 import org.sonar.api.PropertyType;
@@ -40,6 +42,7 @@ public class BitbucketSettings {
   public static final String ENABLED = "sonar.auth.bitbucket.enabled";
   public static final String ALLOW_USERS_TO_SIGN_UP = "sonar.auth.bitbucket.allowUsersToSignUp";
   public static final String TEAM_RESTRICTION = "sonar.auth.bitbucket.teams";
+  public static final String EMAIL_DOMAINS = "sonar.auth.bitbucket.emailDomains";
   public static final String API_URL = "sonar.auth.bitbucket.apiUrl";
   public static final String DEFAULT_API_URL = "https://api.bitbucket.org/";
 
@@ -49,7 +52,33 @@ public class BitbucketSettings {
   public static final String LOGIN_STRATEGY = "sonar.auth.bitbucket.loginStrategy";
   public static final String LOGIN_STRATEGY_UNIQUE = "Unique";
   public static final String LOGIN_STRATEGY_PROVIDER_LOGIN = "Same as Bitbucket login";
+  public static final String LOGIN_STRATEGY_TEMPLATE = "Template";
   public static final String LOGIN_STRATEGY_DEFAULT_VALUE = LOGIN_STRATEGY_UNIQUE;
+  public static final String LOGIN_TEMPLATE = "sonar.auth.bitbucket.loginTemplate";
+  public static final String CACHE_BACKEND = "sonar.auth.bitbucket.cache.backend";
+  public static final String CACHE_BACKEND_MEMORY = "Memory";
+  public static final String CACHE_BACKEND_FILE = "File";
+  public static final String CACHE_TTL_IN_MINUTES = "sonar.auth.bitbucket.cache.ttlInMinutes";
+  public static final String CACHE_MAX_SIZE_IN_MB = "sonar.auth.bitbucket.cache.maxSizeInMB";
+  public static final String PRELOADED_MEMBERS_TTL_IN_MINUTES = "sonar.auth.bitbucket.preloadedMembers.ttlInMinutes";
+  public static final String PROFILE_FRESHNESS_IN_MINUTES = "sonar.auth.bitbucket.profileFreshnessInMinutes";
+  public static final String API_TIMEOUT_IN_SECONDS = "sonar.auth.bitbucket.apiTimeoutInSeconds";
+  public static final String DEGRADED_GRACE_IN_MINUTES = "sonar.auth.bitbucket.degradedGraceInMinutes";
+  public static final String INSTRUMENTATION_ENABLED = "sonar.auth.bitbucket.instrumentation.enabled";
+  public static final String RECORDING_ENABLED = "sonar.auth.bitbucket.recording.enabled";
+  public static final String AUDIT_ENABLED = "sonar.auth.bitbucket.audit.enabled";
+  public static final String MEMBERSHIP_CHECK = "sonar.auth.bitbucket.teams.membershipCheck";
+  public static final String MEMBERSHIP_CHECK_AUTO = "Auto";
+  public static final String MEMBERSHIP_CHECK_LIST = "List teams";
+  public static final String MEMBERSHIP_CHECK_PROBE = "Probe teams";
+  public static final String MEMBERSHIP_CHECK_FILTER = "Filter teams";
+  public static final String GROUPS_SYNC = "sonar.auth.bitbucket.groupsSync";
+  public static final String GROUPS_SYNC_TEAMS = "sonar.auth.bitbucket.groupsSync.teams";
+  public static final String GROUPS_SYNC_PREFIX = "sonar.auth.bitbucket.groupsSync.prefix";
+  public static final String WEBHOOK_SECRET = "sonar.auth.bitbucket.webhookSecret.secured";
+  // defined by SonarQube
+  public static final String DATA_DIR = "sonar.path.data";
+  public static final String LOGS_DIR = "sonar.path.logs";
   public static final String CATEGORY = "security";
   public static final String SUBCATEGORY = "bitbucket";
 
@@ -81,10 +110,23 @@ public class BitbucketSettings {
     return config.getStringArray(TEAM_RESTRICTION);
   }
 
+  public String[] emailDomains() {
+    return config.getStringArray(EMAIL_DOMAINS);
+  }
+
+  public String membershipCheck() {
+    return config.get(MEMBERSHIP_CHECK).orElseThrow(DEFAULT_VALUE_MISSING);
+  }
+
   public String loginStrategy() {
     return config.get(LOGIN_STRATEGY).orElseThrow(DEFAULT_VALUE_MISSING);
   }
 
+  @CheckForNull
+  public String loginTemplate() {
+    return config.get(LOGIN_TEMPLATE).orElse(null);
+  }
+
   public String webURL() {
     String url = config.get(WEB_URL).orElse(DEFAULT_WEB_URL);
     return urlWithEndingSlash(url);
@@ -95,6 +137,74 @@ public class BitbucketSettings {
     return urlWithEndingSlash(url);
   }
 
+  public String cacheBackend() {
+    return config.get(CACHE_BACKEND).orElseThrow(DEFAULT_VALUE_MISSING);
+  }
+
+  public long cacheTtlMs() {
+    return TimeUnit.MINUTES.toMillis(config.getInt(CACHE_TTL_IN_MINUTES).orElseThrow(DEFAULT_VALUE_MISSING));
+  }
+
+  public long preloadedMembersTtlMs() {
+    return TimeUnit.MINUTES.toMillis(config.getInt(PRELOADED_MEMBERS_TTL_IN_MINUTES).orElseThrow(DEFAULT_VALUE_MISSING));
+  }
+
+  public int cacheMaxSizeInBytes() {
+    return config.getInt(CACHE_MAX_SIZE_IN_MB).orElseThrow(DEFAULT_VALUE_MISSING) * 1024 * 1024;
+  }
+
+  public long profileFreshnessMs() {
+    return TimeUnit.MINUTES.toMillis(config.getInt(PROFILE_FRESHNESS_IN_MINUTES).orElseThrow(DEFAULT_VALUE_MISSING));
+  }
+
+  public int apiTimeoutMs() {
+    return (int) TimeUnit.SECONDS.toMillis(config.getInt(API_TIMEOUT_IN_SECONDS).orElseThrow(DEFAULT_VALUE_MISSING));
+  }
+
+  public long degradedGraceMs() {
+    return TimeUnit.MINUTES.toMillis(config.getInt(DEGRADED_GRACE_IN_MINUTES).orElseThrow(DEFAULT_VALUE_MISSING));
+  }
+
+  public boolean auditEnabled() {
+    return config.getBoolean(AUDIT_ENABLED).orElseThrow(DEFAULT_VALUE_MISSING);
+  }
+
+  public boolean instrumentationEnabled() {
+    return config.getBoolean(INSTRUMENTATION_ENABLED).orElseThrow(DEFAULT_VALUE_MISSING);
+  }
+
+  public boolean recordingEnabled() {
+    return config.getBoolean(RECORDING_ENABLED).orElseThrow(DEFAULT_VALUE_MISSING);
+  }
+
+  public boolean syncGroups() {
+    return config.getBoolean(GROUPS_SYNC).orElseThrow(DEFAULT_VALUE_MISSING);
+  }
+
+  public String[] syncGroupsTeams() {
+    return config.getStringArray(GROUPS_SYNC_TEAMS);
+  }
+
+  public String syncGroupsPrefix() {
+    return config.get(GROUPS_SYNC_PREFIX).orElse("");
+  }
+
+  /**
+   * Secret of the webhook receiving membership events, null if the webhook is disabled
+   */
+  @CheckForNull
+  public String webhookSecret() {
+    return config.get(WEBHOOK_SECRET).orElse(null);
+  }
+
+  public Optional<String> dataDir() {
+    return config.get(DATA_DIR);
+  }
+
+  public Optional<String> logsDir() {
+    return config.get(LOGS_DIR);
+  }
+
   private static String urlWithEndingSlash(String url) {
     if (!url.endsWith("/")) {
       return url + "/";
@@ -145,16 +255,49 @@ public class BitbucketSettings {
         .multiValues(true)
         .index(index++)
         .build(),
+      PropertyDefinition.builder(MEMBERSHIP_CHECK)
+        .name("Team membership check")
+        .description(format("How the membership to the teams above is checked. When set to '%s', all the teams of the user are listed. " +
+          "When set to '%s', the membership of the user is requested to the workspace of each of the teams above, in parallel. " +
+          "When set to '%s', Bitbucket is requested to return only the teams of the user which are in the list above, by chunks of %d teams requested in parallel. " +
+          "When set to '%s', the fastest method between the two first ones is selected according to the number of teams above and to the observed response times of Bitbucket.",
+          MEMBERSHIP_CHECK_LIST, MEMBERSHIP_CHECK_PROBE, MEMBERSHIP_CHECK_FILTER, MembershipFilter.CHUNK_SIZE, MEMBERSHIP_CHECK_AUTO))
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(SINGLE_SELECT_LIST)
+        .defaultValue(MEMBERSHIP_CHECK_LIST)
+        .options(MEMBERSHIP_CHECK_AUTO, MEMBERSHIP_CHECK_LIST, MEMBERSHIP_CHECK_PROBE, MEMBERSHIP_CHECK_FILTER)
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(EMAIL_DOMAINS)
+        .name("Email domains")
+        .description("Only users with a confirmed email in one of these domains, or in their subdomains, will be able to authenticate. " +
+          "For example 'corp.com' accepts 'john@corp.com' and 'john@eu.corp.com'. Keep empty to disable email restriction.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .multiValues(true)
+        .index(index++)
+        .build(),
       PropertyDefinition.builder(LOGIN_STRATEGY)
         .name("Login generation strategy")
         .description(format("When the login strategy is set to '%s', the user's login will be auto-generated the first time so that it is unique. " +
-          "When the login strategy is set to '%s', the user's login will be the Bitbucket login.",
-          LOGIN_STRATEGY_UNIQUE, LOGIN_STRATEGY_PROVIDER_LOGIN))
+          "When the login strategy is set to '%s', the user's login will be the Bitbucket login. " +
+          "When the login strategy is set to '%s', the user's login is generated by the property 'Login template'.",
+          LOGIN_STRATEGY_UNIQUE, LOGIN_STRATEGY_PROVIDER_LOGIN, LOGIN_STRATEGY_TEMPLATE))
         .category(CATEGORY)
         .subCategory(SUBCATEGORY)
         .type(SINGLE_SELECT_LIST)
         .defaultValue(LOGIN_STRATEGY_DEFAULT_VALUE)
-        .options(LOGIN_STRATEGY_UNIQUE, LOGIN_STRATEGY_PROVIDER_LOGIN)
+        .options(LOGIN_STRATEGY_UNIQUE, LOGIN_STRATEGY_PROVIDER_LOGIN, LOGIN_STRATEGY_TEMPLATE)
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(LOGIN_TEMPLATE)
+        .name("Login template")
+        .description(format("Template of the user's login when the login strategy is set to '%s'. " +
+          "Supported placeholders are {username}, {provider}, {uuid} and {email-local-part}, for example '{username}@{provider}'.",
+          LOGIN_STRATEGY_TEMPLATE))
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
         .index(index++)
         .build(),
       PropertyDefinition.builder(API_URL)
@@ -163,6 +306,145 @@ public class BitbucketSettings {
         .category(CATEGORY)
         .subCategory(SUBCATEGORY)
         .defaultValue(DEFAULT_API_URL)
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(CACHE_BACKEND)
+        .name("Cache backend")
+        .description(format("Storage of the data cached from Bitbucket. When set to '%s', data is kept in the heap of the web server and is lost on restart. " +
+          "When set to '%s', data is kept in memory-mapped files of the data directory and survives restarts.",
+          CACHE_BACKEND_MEMORY, CACHE_BACKEND_FILE))
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(SINGLE_SELECT_LIST)
+        .defaultValue(CACHE_BACKEND_MEMORY)
+        .options(CACHE_BACKEND_MEMORY, CACHE_BACKEND_FILE)
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(CACHE_TTL_IN_MINUTES)
+        .name("Cache time-to-live")
+        .description("Number of minutes during which the data cached from Bitbucket is considered as valid.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(60))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(CACHE_MAX_SIZE_IN_MB)
+        .name("Cache maximum size")
+        .description("Maximum size, in megabytes, of each cache of data fetched from Bitbucket.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(16))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(PRELOADED_MEMBERS_TTL_IN_MINUTES)
+        .name("Preloaded members time-to-live")
+        .description("Number of minutes during which the members preloaded by the web service api/authbitbucket/preload_members pass the " +
+          "team restriction without requesting Bitbucket. Members who leave a team keep passing the restriction during this window, unless " +
+          "notified by the webhook, so keep it short. Memberships also expire with the cache (see 'Cache time-to-live').")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(15))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(PROFILE_FRESHNESS_IN_MINUTES)
+        .name("Profile freshness window")
+        .description("Number of minutes during which the profile of a user is considered as unchanged after being fetched from Bitbucket. " +
+          "During this window, the emails of the user are not requested again if their login and name are unchanged. Set to 0 to always request emails.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(0))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(API_TIMEOUT_IN_SECONDS)
+        .name("Bitbucket timeout")
+        .description("Maximum number of seconds to connect to Bitbucket and to wait for data from Bitbucket.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(30))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(DEGRADED_GRACE_IN_MINUTES)
+        .name("Degraded authentication grace window")
+        .description("When Bitbucket fails or times out after returning the profile of a user, authenticate the user with " +
+          "the email, team membership and groups verified during their last authentication, if it is more recent than this " +
+          "number of minutes. Set to 0 to disable degraded authentication.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(0))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(AUDIT_ENABLED)
+        .name("Audit log")
+        .description("Record the outcome of each authentication (authenticated, denied by team restriction, Bitbucket error) in the file logs/" +
+          AuditLog.FILENAME + ".")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(String.valueOf(false))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(INSTRUMENTATION_ENABLED)
+        .name("Instrumentation of authentications")
+        .description("Measure the number of bytes allocated in the heap and the number of requests sent to Bitbucket by each " +
+          "authentication. Percentiles are reported by the web service api/authbitbucket/diagnostics. Allocations are measured only if the " +
+          "measurement of thread allocated memory is enabled in the JVM, which is the default of HotSpot.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(String.valueOf(false))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(RECORDING_ENABLED)
+        .name("Recording of Bitbucket traffic")
+        .description("Record the anonymized requests sent to Bitbucket and their responses in the file logs/" + TrafficRecorder.FILENAME +
+          ", so that they can be replayed by tests and benchmarks. Names, emails, identifiers and tokens are replaced by pseudonyms. " +
+          "Should be enabled only for short capture sessions.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(String.valueOf(false))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(GROUPS_SYNC)
+        .name("Synchronize teams as groups")
+        .description("On each authentication, set the SonarQube groups of the user to the Bitbucket teams they are member of. " +
+          "Groups must be created in SonarQube, teams without group are ignored.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(String.valueOf(false))
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(GROUPS_SYNC_TEAMS)
+        .name("Synchronized teams")
+        .description("Teams to be synchronized as groups. The wildcard '*' matches any sequence of characters, for example 'dev-*'. " +
+          "Keep empty to synchronize all teams.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .multiValues(true)
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(GROUPS_SYNC_PREFIX)
+        .name("Group prefix")
+        .description("Prefix of the SonarQube group of each team, for example 'bitbucket-' to map the team 'dev' to the group 'bitbucket-dev'.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .index(index++)
+        .build(),
+      PropertyDefinition.builder(WEBHOOK_SECRET)
+        .name("Webhook secret")
+        .description("Secret of the Bitbucket webhook sending the event 'workspace:member_removed' " +
+          "to <SonarQube URL>/authbitbucket/webhook. On each event, the membership and the profile of the member are verified again " +
+          "on their next authentication. Keep empty to disable the webhook.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PropertyType.PASSWORD)
         .index(index)
         .build());
   }
@@ -0,0 +1,79 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.model.Token;
+import java.util.Collections;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * OAuth access token of Bitbucket, with its lifetime and the scopes granted by the user
+ *
+ * @see BitbucketTokenExtractor
+ */
+public class BitbucketToken extends Token {
+
+  private static final long serialVersionUID = 1L;
+  private static final String WRITE_SUFFIX = ":write";
+
+  private final long expiresInSeconds;
+  @Nullable
+  private final String refreshToken;
+  @Nullable
+  private final Set<String> scopes;
+
+  public BitbucketToken(String token, long expiresInSeconds, @Nullable String refreshToken, @Nullable Set<String> scopes) {
+    super(token, "");
+    this.expiresInSeconds = expiresInSeconds;
+    this.refreshToken = refreshToken;
+    this.scopes = scopes == null ? null : Collections.unmodifiableSet(scopes);
+  }
+
+  /**
+   * Lifetime of the token, in seconds since its creation, -1 if unknown
+   */
+  public long getExpiresInSeconds() {
+    return expiresInSeconds;
+  }
+
+  @CheckForNull
+  public String getRefreshToken() {
+    return refreshToken;
+  }
+
+  /**
+   * @return the granted scopes, null if not returned by Bitbucket
+   */
+  @CheckForNull
+  public Set<String> getScopes() {
+    return scopes;
+  }
+
+  /**
+   * As in Bitbucket, a write scope also grants the corresponding read scope, for example "team:write" implies "team".
+   *
+   * @return false only if the granted scopes are known and neither include nor imply {@code scope}
+   */
+  public boolean hasScope(String scope) {
+    return scopes == null || scopes.contains(scope) || (!scope.endsWith(WRITE_SUFFIX) && scopes.contains(scope + WRITE_SUFFIX));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.exceptions.OAuthException;
+import com.github.scribejava.core.extractors.AccessTokenExtractor;
+import com.github.scribejava.core.model.Token;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+import static java.lang.String.format;
+
+/**
+ * Extracts the access token, its lifetime, the refresh token and the granted scopes from the response
+ * of https://bitbucket.org/site/oauth2/access_token, in a single streaming pass. Contrary to
+ * {@link com.github.scribejava.core.extractors.JsonTokenExtractor}, the response does not need to be
+ * loaded in memory.
+ */
+public class BitbucketTokenExtractor implements AccessTokenExtractor {
+
+  @Override
+  public Token extract(String response) {
+    return extract(new StringReader(response));
+  }
+
+  public static BitbucketToken extract(Reader json) {
+    String accessToken = null;
+    long expiresIn = -1L;
+    String refreshToken = null;
+    Set<String> scopes = null;
+    String error = null;
+    String errorDescription = null;
+    try {
+      JsonReader reader = new JsonReader(json);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "access_token":
+            accessToken = nextString(reader);
+            break;
+          case "expires_in":
+            if (reader.peek() == JsonToken.NUMBER) {
+              expiresIn = reader.nextLong();
+            } else {
+              reader.skipValue();
+            }
+            break;
+          case "refresh_token":
+            refreshToken = nextString(reader);
+            break;
+          // granted scopes, separated by spaces. Not the same as the field "scope" of RFC 6749.
+          case "scopes":
+            String value = nextString(reader);
+            scopes = value == null ? scopes : new LinkedHashSet<>(Arrays.asList(value.trim().split("\\s+")));
+            break;
+          case "error":
+            error = nextString(reader);
+            break;
+          case "error_description":
+            errorDescription = nextString(reader);
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IOException | IllegalStateException e) {
+      throw new OAuthException("Fail to parse the access token returned by Bitbucket", e);
+    }
+    if (accessToken == null || accessToken.isEmpty()) {
+      throw new OAuthException(error == null ? "Bitbucket returned no access token" : format("Bitbucket returned no access token: %s%s",
+        error, errorDescription == null ? "" : (" (" + errorDescription + ")")));
+    }
+    return new BitbucketToken(accessToken, expiresIn, refreshToken, scopes);
+  }
+
+  @CheckForNull
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.model.OAuthRequest;
+import java.io.IOException;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * Sends the requests of the plugin to Bitbucket: access token, profile, emails and teams.
+ * <p/>
+ * The implementation used by the server is {@link HttpTransport}. {@link InMemoryTransport} serves
+ * responses from memory, so that the cost of the plugin can be measured without network. {@link ReplayTransport}
+ * serves the responses recorded by {@link TrafficRecorder}.
+ */
+@ServerSide
+public interface BitbucketTransport {
+
+  /**
+   * @param request the signed request. Timeouts are defined by the configuration of its service.
+   * @throws IOException if Bitbucket can't be reached or the connection is interrupted
+   */
+  ApiResponse send(OAuthRequest request) throws IOException;
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+
+/**
+ * Bitbucket replied with a server error (HTTP 5xx) or rejected the request because of rate limiting (HTTP 429).
+ * With network errors, these are the only failures that allow to authenticate a user with their last verified
+ * profile, see {@link VerifiedProfiles}.
+ */
+public class BitbucketUnavailableException extends IllegalStateException {
+
+  static final int HTTP_TOO_MANY_REQUESTS = 429;
+  private static final long serialVersionUID = 1L;
+
+  private final boolean denial;
+
+  /**
+   * @param denial whether the authentication is denied, rather than failed, when the user can't be authenticated
+   * with their last verified profile
+   */
+  BitbucketUnavailableException(String message, boolean denial) {
+    super(message);
+    this.denial = denial;
+  }
+
+  boolean isDenial() {
+    return denial;
+  }
+
+  static boolean isUnavailable(int httpCode) {
+    return httpCode >= HTTP_INTERNAL_ERROR || httpCode == HTTP_TOO_MANY_REQUESTS;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.sonar.api.server.ws.WebService;
+
+/**
+ * Web services reserved to administrators, for troubleshooting the authentication
+ */
+public class BitbucketWs implements WebService {
+
+  static final String CONTROLLER = "api/authbitbucket";
+
+  private final BitbucketWsAction[] actions;
+
+  public BitbucketWs(BitbucketWsAction... actions) {
+    this.actions = actions;
+  }
+
+  @Override
+  public void define(Context context) {
+    NewController controller = context.createController(CONTROLLER)
+      .setDescription("Troubleshoot Bitbucket authentication. Requires the 'Administer System' permission.")
+      .setSince("1.2");
+    for (BitbucketWsAction action : actions) {
+      action.define(controller);
+    }
+    controller.done();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of a {@link BitbucketCache} since its creation
+ */
+public class CacheStats {
+
+  private final int size;
+  private final long weight;
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long oldestEntryCreatedAt;
+
+  public CacheStats(int size, long weight, long hits, long misses, long evictions, long oldestEntryCreatedAt) {
+    this.size = size;
+    this.weight = weight;
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.oldestEntryCreatedAt = oldestEntryCreatedAt;
+  }
+
+  /**
+   * Number of entries, including the expired entries that are not evicted yet
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Memory or disk space used by the entries, in bytes
+   */
+  public long getWeight() {
+    return weight;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Lookups of absent or expired entries
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Entries removed by the cache itself, because they expired or to make room for new entries
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Ratio of lookups that found an entry, between 0 and 1. 0 if there was no lookup.
+   */
+  public double getHitRatio() {
+    long lookups = hits + misses;
+    return lookups == 0L ? 0.0 : ((double) hits / lookups);
+  }
+
+  /**
+   * Creation date of the oldest entry, in milliseconds since epoch, -1 if the cache is empty
+   */
+  public long getOldestEntryCreatedAt() {
+    return oldestEntryCreatedAt;
+  }
+
+  /**
+   * Lock-free counters updated by the implementations of {@link BitbucketCache}
+   */
+  static class Counters {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    void onHit() {
+      hits.increment();
+    }
+
+    void onMiss() {
+      misses.increment();
+    }
+
+    void onEviction() {
+      evictions.increment();
+    }
+
+    void onEvictions(int count) {
+      evictions.add(count);
+    }
+
+    CacheStats snapshot(int size, long weight, long oldestEntryCreatedAt) {
+      return new CacheStats(size, weight, hits.sum(), misses.sum(), evictions.sum(), oldestEntryCreatedAt);
+    }
+  }
+}
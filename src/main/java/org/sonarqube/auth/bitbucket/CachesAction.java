@@ -0,0 +1,87 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Map;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static org.sonarqube.auth.bitbucket.Administrators.checkAdministrator;
+
+/**
+ * Reports the statistics of the caches of {@link BitbucketCaches}
+ */
+public class CachesAction implements BitbucketWsAction {
+
+  private final BitbucketSettings settings;
+  private final BitbucketCaches caches;
+  private final System2 system2;
+
+  public CachesAction(BitbucketSettings settings, BitbucketCaches caches, System2 system2) {
+    this.settings = settings;
+    this.caches = caches;
+    this.system2 = system2;
+  }
+
+  @Override
+  public void define(WebService.NewController controller) {
+    controller.createAction("caches")
+      .setDescription("Statistics of the caches of data fetched from Bitbucket, since their creation: number of entries, " +
+        "weight in bytes, hit and miss ratios, number of entries evicted because they expired or to make room, " +
+        "and age in milliseconds of the oldest entry (-1 when empty). Caches are created on their first use.<br/>" +
+        "Requires the 'Administer System' permission.")
+      .setSince("1.2")
+      .setResponseExample(getClass().getResource("caches-example.json"))
+      .setHandler(this);
+  }
+
+  @Override
+  public void handle(Request request, Response response) {
+    if (!checkAdministrator(request, response)) {
+      return;
+    }
+    long now = system2.now();
+    try (JsonWriter json = response.newJsonWriter()) {
+      json.beginObject()
+        .prop("backend", settings.cacheBackend())
+        .prop("ttlMs", settings.cacheTtlMs());
+      json.name("caches").beginArray();
+      for (Map.Entry<String, BitbucketCache> entry : caches.all().entrySet()) {
+        CacheStats stats = entry.getValue().stats();
+        long oldest = stats.getOldestEntryCreatedAt();
+        json.beginObject()
+          .prop("name", entry.getKey())
+          .prop("size", stats.getSize())
+          .prop("weight", stats.getWeight())
+          .prop("hits", stats.getHits())
+          .prop("misses", stats.getMisses())
+          .prop("hitRatio", stats.getHitRatio())
+          .prop("missRatio", stats.getHits() + stats.getMisses() == 0L ? 0.0 : (1.0 - stats.getHitRatio()))
+          .prop("evictions", stats.getEvictions())
+          .prop("oldestEntryAge", oldest < 0L ? -1L : (now - oldest))
+          .endObject();
+      }
+      json.endArray().endObject();
+    }
+  }
+}
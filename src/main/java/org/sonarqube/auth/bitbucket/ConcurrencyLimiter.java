@@ -0,0 +1,146 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+/**
+ * Caps the number of authentications waiting at the same time on Bitbucket, so that a slow
+ * Bitbucket can't hold all the threads of the SonarQube web server.
+ * <p/>
+ * The limit is adjusted with AIMD (additive increase, multiplicative decrease) from the observed
+ * round-trip time of the calls to Bitbucket :
+ * <ul>
+ *   <li>the lowest round-trip time observed in the last {@link #BASELINE_WINDOW_MS} is the baseline</li>
+ *   <li>a call slower than {@link #TOLERANCE} times the baseline, or a call failing, divides the
+ *   limit by {@link #BACKOFF_RATIO}</li>
+ *   <li>otherwise the limit is incremented, as long as at least half of the current limit is used.
+ *   That prevents the limit from growing indefinitely while Bitbucket is barely used.</li>
+ * </ul>
+ */
+@ServerSide
+public class ConcurrencyLimiter {
+
+  static final int INITIAL_LIMIT = 20;
+  static final int MIN_LIMIT = 2;
+  static final int MAX_LIMIT = 200;
+  static final double BACKOFF_RATIO = 0.9;
+  static final double TOLERANCE = 2.0;
+  static final long BASELINE_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
+
+  private final BitbucketMetrics metrics;
+  private final System2 system2;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile int limit = INITIAL_LIMIT;
+
+  // guarded by this
+  private long baselineRtt = -1L;
+  private long baselineUpdatedAt = 0L;
+
+  public ConcurrencyLimiter(BitbucketMetrics metrics, System2 system2) {
+    this.metrics = metrics;
+    this.system2 = system2;
+    metrics.onConcurrencyLimit(limit);
+  }
+
+  /**
+   * @return the permit to be released when Bitbucket replied, or {@code null} if the limit is reached
+   */
+  @CheckForNull
+  public Permit tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit) {
+        metrics.onCallbackRejected();
+        return null;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return new Permit(system2.now(), current + 1);
+      }
+    }
+  }
+
+  public int limit() {
+    return limit;
+  }
+
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  private synchronized void onSample(long rtt, int inFlightAtStart, boolean failed) {
+    long now = system2.now();
+    if (baselineRtt < 0 || rtt < baselineRtt || now - baselineUpdatedAt > BASELINE_WINDOW_MS) {
+      if (!failed) {
+        baselineRtt = Math.max(rtt, 1L);
+        baselineUpdatedAt = now;
+      }
+    }
+    int newLimit = limit;
+    if (failed || (baselineRtt > 0 && rtt > TOLERANCE * baselineRtt)) {
+      newLimit = Math.max(MIN_LIMIT, (int) (limit * BACKOFF_RATIO));
+    } else if (inFlightAtStart * 2 >= limit) {
+      newLimit = Math.min(MAX_LIMIT, limit + 1);
+    }
+    if (newLimit != limit) {
+      limit = newLimit;
+      metrics.onConcurrencyLimit(newLimit);
+    }
+  }
+
+  public class Permit {
+    private final long startedAt;
+    private final int inFlightAtStart;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private Permit(long startedAt, int inFlightAtStart) {
+      this.startedAt = startedAt;
+      this.inFlightAtStart = inFlightAtStart;
+    }
+
+    /**
+     * Bitbucket replied. Does nothing if the permit is already released.
+     */
+    public void onSuccess() {
+      release(false);
+    }
+
+    /**
+     * Bitbucket failed or could not be reached. Does nothing if the permit is already released.
+     */
+    public void onFailure() {
+      release(true);
+    }
+
+    private void release(boolean failed) {
+      if (released.compareAndSet(false, true)) {
+        inFlight.decrementAndGet();
+        long rtt = system2.now() - startedAt;
+        metrics.onLoginLatency(rtt);
+        onSample(rtt, inFlightAtStart, failed);
+      }
+    }
+  }
+}
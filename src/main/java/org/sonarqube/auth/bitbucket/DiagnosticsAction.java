@@ -0,0 +1,130 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Date;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static org.sonarqube.auth.bitbucket.Administrators.checkAdministrator;
+
+/**
+ * Reports whether Bitbucket is reachable and how fast, to find out if Bitbucket is the cause of
+ * slow authentications.
+ */
+public class DiagnosticsAction implements BitbucketWsAction {
+
+  private final BitbucketSettings settings;
+  private final BitbucketProbe probe;
+  private final BitbucketMetrics metrics;
+  private final ConcurrencyLimiter limiter;
+
+  public DiagnosticsAction(BitbucketSettings settings, BitbucketProbe probe, BitbucketMetrics metrics, ConcurrencyLimiter limiter) {
+    this.settings = settings;
+    this.probe = probe;
+    this.metrics = metrics;
+    this.limiter = limiter;
+  }
+
+  @Override
+  public void define(WebService.NewController controller) {
+    controller.createAction("diagnostics")
+      .setDescription("Reachability and latency of Bitbucket, state of the limiter of concurrent authentications, " +
+        "latency percentiles of the recent authentications, and traffic per endpoint of Bitbucket API since startup.<br/>" +
+        "Percentiles of the bytes allocated and of the requests sent by authentications are computed when the setting " +
+        "'Instrumentation of authentications' is enabled. Only the allocations of the thread of the authentication are counted.<br/>" +
+        "Durations are in milliseconds, -1 when the step was not executed. Bitbucket is probed at most every " +
+        BitbucketProbe.CACHE_DURATION_MS / 1000 + " seconds.<br/>" +
+        "Requires the 'Administer System' permission.")
+      .setSince("1.2")
+      .setResponseExample(getClass().getResource("diagnostics-example.json"))
+      .setHandler(this);
+  }
+
+  @Override
+  public void handle(Request request, Response response) {
+    if (!checkAdministrator(request, response)) {
+      return;
+    }
+    try (JsonWriter json = response.newJsonWriter()) {
+      json.beginObject();
+      json.name("web");
+      writeProbe(json, probe.probe(settings.webURL()));
+      json.name("api");
+      writeProbe(json, probe.probe(settings.apiURL()));
+
+      json.name("concurrency").beginObject()
+        .prop("limit", limiter.limit())
+        .prop("inFlight", limiter.inFlight())
+        .prop("rejected", metrics.rejectedCallbacks())
+        .endObject();
+
+      json.name("logins").beginObject()
+        .prop("count", metrics.logins())
+        .prop("averageBytes", metrics.averageBytesPerLogin())
+        .prop("p50", metrics.loginLatencyPercentile(50))
+        .prop("p90", metrics.loginLatencyPercentile(90))
+        .prop("p99", metrics.loginLatencyPercentile(99))
+        .endObject();
+
+      json.name("instrumentation").beginObject()
+        .prop("enabled", settings.instrumentationEnabled())
+        .prop("count", metrics.instrumentedLogins());
+      json.name("allocatedBytes").beginObject()
+        .prop("p50", metrics.loginAllocationPercentile(50))
+        .prop("p90", metrics.loginAllocationPercentile(90))
+        .prop("p99", metrics.loginAllocationPercentile(99))
+        .endObject();
+      json.name("requests").beginObject()
+        .prop("p50", metrics.loginRequestsPercentile(50))
+        .prop("p90", metrics.loginRequestsPercentile(90))
+        .prop("p99", metrics.loginRequestsPercentile(99))
+        .endObject();
+      json.endObject();
+
+      json.name("endpoints").beginArray();
+      for (String endpoint : metrics.endpoints()) {
+        json.beginObject()
+          .prop("name", endpoint)
+          .prop("requests", metrics.requests(endpoint))
+          .prop("bytesReceived", metrics.bytesReceived(endpoint))
+          .endObject();
+      }
+      json.endArray();
+      json.endObject();
+    }
+  }
+
+  private static void writeProbe(JsonWriter json, BitbucketProbe.Result result) {
+    json.beginObject()
+      .prop("url", result.getUrl())
+      .prop("reachable", result.isReachable())
+      .prop("status", result.getStatus())
+      .prop("dns", result.getDnsMs())
+      .prop("connect", result.getConnectMs())
+      .prop("tls", result.getTlsMs())
+      .prop("firstByte", result.getFirstByteMs())
+      .prop("error", result.getError())
+      .propDateTime("probedAt", new Date(result.getProbedAt()))
+      .endObject();
+  }
+}
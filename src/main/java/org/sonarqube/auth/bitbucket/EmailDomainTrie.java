@@ -0,0 +1,108 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Checks whether emails belong to some domains or to their subdomains. Domains are compiled into
+ * a trie of their labels, from the top-level label, so that the cost of a check depends on the
+ * number of labels of the email domain, not on the number of allowed domains.
+ */
+final class EmailDomainTrie {
+
+  private final String[] domains;
+  private final Node root;
+
+  private EmailDomainTrie(String[] domains, Node root) {
+    this.domains = domains;
+    this.root = root;
+  }
+
+  /**
+   * @param domains for example "corp.com", which also accepts "eu.corp.com". Case is ignored.
+   */
+  static EmailDomainTrie compile(String[] domains) {
+    Node root = new Node();
+    for (String domain : domains) {
+      String normalized = normalize(domain);
+      if (normalized.isEmpty()) {
+        continue;
+      }
+      Node node = root;
+      int end = normalized.length();
+      while (end > 0) {
+        int dot = normalized.lastIndexOf('.', end - 1);
+        node = node.children.computeIfAbsent(normalized.substring(dot + 1, end), label -> new Node());
+        end = dot;
+      }
+      node.terminal = true;
+    }
+    return new EmailDomainTrie(domains.clone(), root);
+  }
+
+  boolean isCompiledFrom(String[] otherDomains) {
+    return Arrays.equals(domains, otherDomains);
+  }
+
+  boolean accepts(@Nullable String email) {
+    int at = email == null ? -1 : email.lastIndexOf('@');
+    if (at < 0) {
+      return false;
+    }
+    Node node = root;
+    int end = email.length();
+    while (end > at + 1) {
+      int dot = Math.max(email.lastIndexOf('.', end - 1), at);
+      node = node.children.get(email.substring(dot + 1, end).toLowerCase(Locale.ENGLISH));
+      if (node == null) {
+        return false;
+      }
+      if (node.terminal) {
+        return true;
+      }
+      end = dot;
+    }
+    return false;
+  }
+
+  private static String normalize(String domain) {
+    String normalized = domain.trim().toLowerCase(Locale.ENGLISH);
+    if (normalized.startsWith("@")) {
+      normalized = normalized.substring(1);
+    }
+    while (normalized.startsWith(".")) {
+      normalized = normalized.substring(1);
+    }
+    while (normalized.endsWith(".")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+
+  private static class Node {
+    private final Map<String, Node> children = new HashMap<>(4);
+    private boolean terminal = false;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static org.sonarqube.auth.bitbucket.Administrators.checkAdministrator;
+
+/**
+ * Removes the data cached for a user, or all the cached data, from {@link BitbucketCaches}
+ */
+public class EvictCacheAction implements BitbucketWsAction {
+
+  private static final Logger LOGGER = Loggers.get(EvictCacheAction.class);
+
+  static final String PARAM_UUID = "uuid";
+
+  private final BitbucketCaches caches;
+
+  public EvictCacheAction(BitbucketCaches caches) {
+    this.caches = caches;
+  }
+
+  @Override
+  public void define(WebService.NewController controller) {
+    WebService.NewAction action = controller.createAction("evict_cache")
+      .setDescription("Remove the data cached for a Bitbucket user (identity fingerprint, last verified profile, " +
+        "preloaded team membership), so that it is requested again to Bitbucket on their next authentication. " +
+        "All the cached data is removed when no user is specified.<br/>" +
+        "Requires the 'Administer System' permission.")
+      .setSince("1.2")
+      .setPost(true)
+      .setHandler(this);
+    action.createParam(PARAM_UUID)
+      .setDescription("Bitbucket UUID of the user, including the curly braces")
+      .setExampleValue("{7c8e0e3c-0f5a-4a8a-9d1b-2f9c7a3c1d42}");
+  }
+
+  @Override
+  public void handle(Request request, Response response) {
+    if (!checkAdministrator(request, response)) {
+      return;
+    }
+    String uuid = request.param(PARAM_UUID);
+    if (uuid == null || uuid.isEmpty()) {
+      caches.evictAll();
+      LOGGER.info("All the data cached from Bitbucket has been evicted");
+    } else {
+      caches.evict(uuid);
+      LOGGER.info("Data cached from Bitbucket for user {} has been evicted", uuid);
+    }
+    response.noContent();
+  }
+}
@@ -25,6 +25,9 @@ public class GsonEmail {
   @SerializedName("is_primary")
   private boolean isPrimary;
 
+  @SerializedName("is_confirmed")
+  private boolean isConfirmed;
+
   @SerializedName("email")
   private String email;
 
@@ -38,6 +41,10 @@ public class GsonEmail {
     return isPrimary;
   }
 
+  public boolean isConfirmed() {
+    return isConfirmed;
+  }
+
   public String getEmail() {
     return email;
   }
@@ -21,14 +21,28 @@ package org.sonarqube.auth.bitbucket;
 
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Predicate;
 import javax.annotation.CheckForNull;
 
 public class GsonEmails {
 
+  /**
+   * Partial response of the fields bound by this class and {@link GsonEmail}, plus pagination
+   */
+  static final String FIELDS = "values.email,values.is_primary,values.is_confirmed,next";
+
   @SerializedName("values")
   private List<GsonEmail> emails;
 
+  // not bound to JSON
+  private transient String allowedEmail;
+
   public List<GsonEmail> getEmails() {
     return emails;
   }
@@ -38,6 +52,56 @@ public class GsonEmails {
     return gson.fromJson(json, GsonEmails.class);
   }
 
+  public static GsonEmails parse(Reader json) {
+    Gson gson = new Gson();
+    return gson.fromJson(json, GsonEmails.class);
+  }
+
+  /**
+   * Streams the response and stops reading as soon as a confirmed email accepted by {@code isAllowed}
+   * and the primary email have been read, so that {@link #getEmails()} may be incomplete.
+   */
+  public static GsonEmails parse(Reader json, Predicate<String> isAllowed) {
+    Gson gson = new Gson();
+    GsonEmails result = new GsonEmails();
+    result.emails = new ArrayList<>();
+    try {
+      JsonReader reader = new JsonReader(json);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (!"values".equals(reader.nextName())) {
+          reader.skipValue();
+          continue;
+        }
+        boolean primaryFound = false;
+        reader.beginArray();
+        while (reader.hasNext()) {
+          GsonEmail email = gson.fromJson(reader, GsonEmail.class);
+          result.emails.add(email);
+          primaryFound |= email.isPrimary();
+          if (result.allowedEmail == null && email.isConfirmed() && isAllowed.test(email.getEmail())) {
+            result.allowedEmail = email.getEmail();
+          }
+          if (result.allowedEmail != null && primaryFound) {
+            return result;
+          }
+        }
+        reader.endArray();
+      }
+      return result;
+    } catch (IOException e) {
+      throw new JsonIOException(e);
+    }
+  }
+
+  /**
+   * The first confirmed email accepted by the predicate of {@link #parse(Reader, Predicate)}
+   */
+  @CheckForNull
+  public String getAllowedEmail() {
+    return allowedEmail;
+  }
+
   @CheckForNull
   public String extractPrimaryEmail() {
     for (GsonEmail gsonEmail : emails) {
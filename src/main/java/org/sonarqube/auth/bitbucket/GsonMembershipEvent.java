@@ -0,0 +1,60 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import java.io.Reader;
+import javax.annotation.CheckForNull;
+
+/**
+ * Lite representation of the payload of the webhook event "workspace:member_removed"
+ */
+public class GsonMembershipEvent {
+
+  @SerializedName("workspace")
+  private Workspace workspace;
+
+  @SerializedName("member")
+  private GsonUser member;
+
+  /**
+   * Slug of the workspace, which is the name of the team in the settings of the plugin
+   */
+  @CheckForNull
+  public String getWorkspace() {
+    return workspace == null ? null : workspace.slug;
+  }
+
+  @CheckForNull
+  public String getMemberUuid() {
+    return member == null ? null : member.getUuid();
+  }
+
+  public static GsonMembershipEvent parse(Reader json) {
+    Gson gson = new Gson();
+    return gson.fromJson(json, GsonMembershipEvent.class);
+  }
+
+  private static class Workspace {
+    @SerializedName("slug")
+    private String slug;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import java.io.Reader;
+import java.util.List;
+import javax.annotation.CheckForNull;
+
+/**
+ * Lite representation of JSON response of GET https://api.bitbucket.org/2.0/teams/{team}/members
+ */
+public class GsonTeamMembers {
+
+  @SerializedName("values")
+  private List<GsonUser> members;
+
+  @SerializedName("next")
+  private String next;
+
+  public List<GsonUser> getMembers() {
+    return members;
+  }
+
+  /**
+   * URL of the next page, null on the last page
+   */
+  @CheckForNull
+  public String getNext() {
+    return next;
+  }
+
+  public static GsonTeamMembers parse(Reader json) {
+    Gson gson = new Gson();
+    return gson.fromJson(json, GsonTeamMembers.class);
+  }
+
+}
@@ -21,23 +21,46 @@ package org.sonarqube.auth.bitbucket;
 
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import java.io.Reader;
 import java.util.List;
+import javax.annotation.CheckForNull;
 
 /**
  * Lite representation of JSON response of GET https://api.bitbucket.org/2.0/teams
  */
 public class GsonTeams {
 
+  /**
+   * Partial response of the fields bound by this class and {@link GsonTeam}, plus pagination
+   */
+  static final String FIELDS = "values.username,next";
+
   @SerializedName("values")
   private List<GsonTeam> teams;
 
+  @SerializedName("next")
+  private String next;
+
   public List<GsonTeam> getTeams() {
     return teams;
   }
 
+  /**
+   * URL of the next page, null on the last page
+   */
+  @CheckForNull
+  public String getNext() {
+    return next;
+  }
+
   public static GsonTeams parse(String json) {
     Gson gson = new Gson();
     return gson.fromJson(json, GsonTeams.class);
   }
 
+  public static GsonTeams parse(Reader json) {
+    Gson gson = new Gson();
+    return gson.fromJson(json, GsonTeams.class);
+  }
+
 }
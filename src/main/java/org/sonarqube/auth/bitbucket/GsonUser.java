@@ -21,6 +21,7 @@ package org.sonarqube.auth.bitbucket;
 
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import java.io.Reader;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 
@@ -28,6 +29,12 @@ import javax.annotation.Nullable;
  * Lite representation of JSON response of GET https://api.bitbucket.org/2.0/user
  */
 public class GsonUser {
+
+  /**
+   * Partial response of the fields bound by this class
+   */
+  static final String FIELDS = "username,display_name,uuid";
+
   @SerializedName("username")
   private String username;
 
@@ -66,4 +73,9 @@ public class GsonUser {
     Gson gson = new Gson();
     return gson.fromJson(json, GsonUser.class);
   }
+
+  public static GsonUser parse(Reader json) {
+    Gson gson = new Gson();
+    return gson.fromJson(json, GsonUser.class);
+  }
 }
@@ -0,0 +1,227 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import org.sonar.api.utils.System2;
+
+/**
+ * On-heap cache evicting the least recently used entries when the total weight (size in bytes of
+ * keys and values) exceeds a maximum. In order to limit contention, keys are distributed over
+ * segments, each segment being an independent LRU with its own lock. The cache can not be used once closed.
+ */
+public class HeapLruCache implements BitbucketCache {
+
+  static final int SEGMENTS = 16;
+  // estimated memory used by a map entry, in addition to key and value
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final CacheStats.Counters counters = new CacheStats.Counters();
+  private final long ttlMs;
+  private final System2 system2;
+  private volatile boolean closed = false;
+
+  public HeapLruCache(long maxWeight, long ttlMs, System2 system2) {
+    this.ttlMs = ttlMs;
+    this.system2 = system2;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1L, maxWeight / SEGMENTS), counters);
+    }
+  }
+
+  @CheckForNull
+  @Override
+  public byte[] get(String key) {
+    checkOpen();
+    return segmentFor(key).get(key, system2.now() - ttlMs);
+  }
+
+  @Override
+  public void put(String key, byte[] value) {
+    checkOpen();
+    segmentFor(key).put(key, new Entry(value, system2.now(), weigh(key, value)));
+  }
+
+  @Override
+  public void remove(String key) {
+    checkOpen();
+    segmentFor(key).remove(key);
+  }
+
+  @Override
+  public void clear() {
+    checkOpen();
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * Sum of the weights of the entries
+   */
+  public long weight() {
+    long weight = 0L;
+    for (Segment segment : segments) {
+      weight += segment.weight();
+    }
+    return weight;
+  }
+
+  @Override
+  public CacheStats stats() {
+    int size = 0;
+    long weight = 0L;
+    long oldest = Long.MAX_VALUE;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+        weight += segment.weight;
+        for (Entry entry : segment.map.values()) {
+          oldest = Math.min(oldest, entry.createdAt);
+        }
+      }
+    }
+    return counters.snapshot(size, weight, oldest == Long.MAX_VALUE ? -1L : oldest);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Cache is closed");
+    }
+  }
+
+  private Segment segmentFor(String key) {
+    int hash = key.hashCode();
+    // spread the high bits, as String#hashCode() is poorly distributed on its low bits for similar keys
+    hash ^= hash >>> 16;
+    return segments[hash & (SEGMENTS - 1)];
+  }
+
+  private static long weigh(String key, byte[] value) {
+    return 2L * key.length() + value.length + ENTRY_OVERHEAD;
+  }
+
+  private static class Entry {
+    private final byte[] value;
+    private final long createdAt;
+    private final long weight;
+
+    Entry(byte[] value, long createdAt, long weight) {
+      this.value = value;
+      this.createdAt = createdAt;
+      this.weight = weight;
+    }
+  }
+
+  private static class Segment {
+    private final long maxWeight;
+    private final CacheStats.Counters counters;
+    // access-ordered, so that iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0L;
+
+    Segment(long maxWeight, CacheStats.Counters counters) {
+      this.maxWeight = maxWeight;
+      this.counters = counters;
+    }
+
+    @CheckForNull
+    synchronized byte[] get(String key, long expiredBefore) {
+      Entry entry = map.get(key);
+      if (entry == null) {
+        counters.onMiss();
+        return null;
+      }
+      if (entry.createdAt < expiredBefore) {
+        removeEntry(key);
+        counters.onEviction();
+        counters.onMiss();
+        return null;
+      }
+      counters.onHit();
+      return entry.value;
+    }
+
+    synchronized void put(String key, Entry entry) {
+      if (entry.weight > maxWeight) {
+        // would evict the whole segment
+        removeEntry(key);
+        return;
+      }
+      Entry previous = map.put(key, entry);
+      if (previous != null) {
+        weight -= previous.weight;
+      }
+      weight += entry.weight;
+      Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+      while (weight > maxWeight && it.hasNext()) {
+        Map.Entry<String, Entry> eldest = it.next();
+        weight -= eldest.getValue().weight;
+        it.remove();
+        counters.onEviction();
+      }
+    }
+
+    synchronized void remove(String key) {
+      removeEntry(key);
+    }
+
+    synchronized void clear() {
+      map.clear();
+      weight = 0L;
+    }
+
+    synchronized int size() {
+      return map.size();
+    }
+
+    synchronized long weight() {
+      return weight;
+    }
+
+    private void removeEntry(String key) {
+      Entry removed = map.remove(key);
+      if (removed != null) {
+        weight -= removed.weight;
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.model.OAuthConfig;
+import com.github.scribejava.core.model.OAuthRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Sends requests with {@link HttpURLConnection}. Contrary to {@link OAuthRequest#send()}, the response
+ * is not loaded in memory, except when recorded by {@link TrafficRecorder}.
+ */
+public class HttpTransport implements BitbucketTransport {
+
+  private static final String CONTENT_TYPE = "Content-Type";
+
+  @Nullable
+  private final TrafficRecorder recorder;
+
+  public HttpTransport() {
+    this(null);
+  }
+
+  public HttpTransport(@Nullable TrafficRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  @Override
+  public ApiResponse send(OAuthRequest request) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(request.getCompleteUrl()).openConnection();
+    connection.setRequestMethod(request.getVerb().name());
+    OAuthConfig config = request.getService().getConfig();
+    if (config.getConnectTimeout() != null) {
+      connection.setConnectTimeout(config.getConnectTimeout());
+    }
+    if (config.getReadTimeout() != null) {
+      connection.setReadTimeout(config.getReadTimeout());
+    }
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      connection.setRequestProperty(header.getKey(), header.getValue());
+    }
+    String body = request.getBodyContents();
+    if (!body.isEmpty()) {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      if (connection.getRequestProperty(CONTENT_TYPE) == null) {
+        connection.setRequestProperty(CONTENT_TYPE, OAuthRequest.DEFAULT_CONTENT_TYPE);
+      }
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(bytes.length);
+      try (OutputStream output = connection.getOutputStream()) {
+        output.write(bytes);
+      }
+    }
+    int code = connection.getResponseCode();
+    InputStream responseBody = code >= 200 && code < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (recorder != null && recorder.isEnabled()) {
+      responseBody = recorder.record(request, code, connection.getContentEncoding(), responseBody);
+    }
+    return new ApiResponse(code, connection.getContentEncoding(), responseBody);
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+/**
+ * Keeps, for each Bitbucket user, a fingerprint of the last {@link UserIdentity} built from
+ * the Bitbucket API. When a user authenticates again within the freshness window
+ * ({@link BitbucketSettings#profileFreshnessMs()}) and their profile has not changed, the identity
+ * is re-built from the known email, so that emails are not requested again. The window is also
+ * bounded by the lifetime of the access token used to record the identity.
+ */
+@ServerSide
+public class IdentityFingerprints {
+
+  static final String CACHE_NAME = "fingerprints";
+  private static final int VERSION = 2;
+
+  private final BitbucketSettings settings;
+  private final BitbucketCaches caches;
+  private final UserIdentityFactory userIdentityFactory;
+  private final BitbucketMetrics metrics;
+  private final System2 system2;
+
+  public IdentityFingerprints(BitbucketSettings settings, BitbucketCaches caches, UserIdentityFactory userIdentityFactory,
+    BitbucketMetrics metrics, System2 system2) {
+    this.settings = settings;
+    this.caches = caches;
+    this.userIdentityFactory = userIdentityFactory;
+    this.metrics = metrics;
+    this.system2 = system2;
+  }
+
+  /**
+   * @param groups the groups to be synchronized, null if groups are not synchronized
+   * @return the identity of the user if it is the same as the one recorded during the freshness window
+   */
+  public Optional<UserIdentity> findUnchanged(GsonUser gsonUser, @Nullable Set<String> groups) {
+    long freshnessMs = settings.profileFreshnessMs();
+    if (freshnessMs <= 0L || gsonUser.getUuid() == null) {
+      return Optional.empty();
+    }
+    byte[] bytes = caches.get(CACHE_NAME).get(gsonUser.getUuid());
+    if (bytes == null) {
+      return Optional.empty();
+    }
+    Record record = Record.decode(bytes);
+    long now = system2.now();
+    if (record == null || record.recordedAt + freshnessMs < now || record.tokenExpiresAt < now) {
+      return Optional.empty();
+    }
+    UserIdentity identity = userIdentityFactory.createWithEmail(gsonUser, record.email, groups);
+    if (!Arrays.equals(record.fingerprint, fingerprint(identity))) {
+      return Optional.empty();
+    }
+    metrics.onUnchangedProfile();
+    return Optional.of(identity);
+  }
+
+  public void record(UserIdentity identity) {
+    record(identity, -1L);
+  }
+
+  /**
+   * @param tokenExpiresInSeconds lifetime of the access token used to build the identity, -1 if unknown
+   */
+  public void record(UserIdentity identity, long tokenExpiresInSeconds) {
+    if (settings.profileFreshnessMs() <= 0L || identity.getProviderId() == null) {
+      return;
+    }
+    long now = system2.now();
+    long tokenExpiresAt = tokenExpiresInSeconds < 0L ? Long.MAX_VALUE : (now + TimeUnit.SECONDS.toMillis(tokenExpiresInSeconds));
+    Record record = new Record(now, tokenExpiresAt, identity.getEmail(), fingerprint(identity));
+    caches.get(CACHE_NAME).put(identity.getProviderId(), record.encode());
+  }
+
+  public void remove(String uuid) {
+    caches.get(CACHE_NAME).remove(uuid);
+  }
+
+  static byte[] fingerprint(UserIdentity identity) {
+    MessageDigest digest = sha256();
+    update(digest, identity.getLogin());
+    update(digest, identity.getName());
+    update(digest, identity.getEmail());
+    // sorted, so that the fingerprint does not depend on the order of groups
+    for (String group : new TreeSet<>(identity.getGroups())) {
+      update(digest, group);
+    }
+    return digest.digest();
+  }
+
+  private static void update(MessageDigest digest, @Nullable String s) {
+    if (s != null) {
+      digest.update(s.getBytes(StandardCharsets.UTF_8));
+    }
+    // separator, so that ("ab", "c") and ("a", "bc") have different fingerprints
+    digest.update((byte) 0);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+
+  private static class Record {
+    private final long recordedAt;
+    private final long tokenExpiresAt;
+    @Nullable
+    private final String email;
+    private final byte[] fingerprint;
+
+    Record(long recordedAt, long tokenExpiresAt, @Nullable String email, byte[] fingerprint) {
+      this.recordedAt = recordedAt;
+      this.tokenExpiresAt = tokenExpiresAt;
+      this.email = email;
+      this.fingerprint = fingerprint;
+    }
+
+    byte[] encode() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      try (DataOutputStream output = new DataOutputStream(bytes)) {
+        output.writeByte(VERSION);
+        output.writeLong(recordedAt);
+        output.writeLong(tokenExpiresAt);
+        output.writeBoolean(email != null);
+        if (email != null) {
+          output.writeUTF(email);
+        }
+        output.writeByte(fingerprint.length);
+        output.write(fingerprint);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    @Nullable
+    static Record decode(byte[] bytes) {
+      try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+        if (input.readByte() != VERSION) {
+          return null;
+        }
+        long recordedAt = input.readLong();
+        long tokenExpiresAt = input.readLong();
+        String email = input.readBoolean() ? input.readUTF() : null;
+        byte[] fingerprint = new byte[input.readUnsignedByte()];
+        input.readFully(fingerprint);
+        return new Record(recordedAt, tokenExpiresAt, email, fingerprint);
+      } catch (IOException e) {
+        // corrupted record
+        return null;
+      }
+    }
+  }
+}
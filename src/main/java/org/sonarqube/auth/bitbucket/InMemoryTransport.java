@@ -0,0 +1,82 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.model.OAuthRequest;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
+/**
+ * Serves responses from memory, without network nor serialization of requests, so that benchmarks and
+ * load tests measure the throughput of the plugin only. Responses are defined by path, whatever
+ * the host, the query and the verb of requests.
+ */
+public class InMemoryTransport implements BitbucketTransport {
+
+  private final Map<String, Function<OAuthRequest, Response>> handlers = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+  /**
+   * Responds to all the requests of {@code path}, for example "/2.0/user", with the same JSON body
+   */
+  public InMemoryTransport on(String path, int code, String json) {
+    Response response = new Response(code, json.getBytes(StandardCharsets.UTF_8));
+    return on(path, request -> response);
+  }
+
+  public InMemoryTransport on(String path, Function<OAuthRequest, Response> handler) {
+    handlers.put(path, handler);
+    return this;
+  }
+
+  public long requestCount(String path) {
+    LongAdder count = requestCounts.get(path);
+    return count == null ? 0L : count.sum();
+  }
+
+  @Override
+  public ApiResponse send(OAuthRequest request) {
+    String path = URI.create(request.getUrl()).getPath();
+    requestCounts.computeIfAbsent(path, p -> new LongAdder()).increment();
+    Function<OAuthRequest, Response> handler = handlers.get(path);
+    Response response = handler == null ? Response.NOT_FOUND : handler.apply(request);
+    return new ApiResponse(response.code, null, new ByteArrayInputStream(response.body));
+  }
+
+  public static class Response {
+    private static final Response NOT_FOUND = new Response(HTTP_NOT_FOUND,
+      "{\"type\": \"error\", \"error\": {\"message\": \"Resource not found\"}}".getBytes(StandardCharsets.UTF_8));
+
+    private final int code;
+    private final byte[] body;
+
+    public Response(int code, byte[] body) {
+      this.code = code;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.CheckForNull;
+
+/**
+ * The most recent latencies, in milliseconds, from which percentiles are computed on demand.
+ * Also used for other distributions, like the bytes allocated by authentications.
+ * Samples are allocated on the first recording, then recording is lock-free and does not allocate.
+ */
+class LatencySamples {
+
+  private final int capacity;
+  @CheckForNull
+  private volatile AtomicLongArray samples;
+  private final AtomicLong count = new AtomicLong();
+
+  LatencySamples(int capacity) {
+    this.capacity = capacity;
+  }
+
+  void record(long latencyMs) {
+    long index = count.getAndIncrement();
+    samples().set((int) (index % capacity), latencyMs);
+  }
+
+  private AtomicLongArray samples() {
+    AtomicLongArray result = samples;
+    if (result == null) {
+      synchronized (this) {
+        result = samples;
+        if (result == null) {
+          result = new AtomicLongArray(capacity);
+          samples = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Number of latencies recorded since creation, including the ones overwritten by more recent latencies
+   */
+  long count() {
+    return count.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the latency, or 0 if nothing has been recorded yet
+   */
+  long percentile(double percentile) {
+    int size = (int) Math.min(count.get(), capacity);
+    if (size == 0) {
+      return 0L;
+    }
+    AtomicLongArray values = samples();
+    long[] sorted = new long[size];
+    for (int i = 0; i < size; i++) {
+      sorted[i] = values.get(i);
+    }
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percentile / 100.0 * size) - 1;
+    return sorted[Math.max(0, Math.min(size - 1, rank))];
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import static java.lang.String.format;
+
+/**
+ * Template of login, for example <code>{username}@{provider}</code>. The template is parsed once
+ * by {@link #compile(String)}, so that generating a login only appends the segments to a pre-sized
+ * buffer.
+ * <p/>
+ * Supported placeholders are:
+ * <ul>
+ *   <li><code>{username}</code>: Bitbucket login</li>
+ *   <li><code>{provider}</code>: key of the identity provider, "bitbucket"</li>
+ *   <li><code>{uuid}</code>: Bitbucket UUID</li>
+ *   <li><code>{email-local-part}</code>: part of the primary email before '@'</li>
+ * </ul>
+ */
+public class LoginTemplate {
+
+  enum Placeholder {
+    USERNAME("username"), PROVIDER("provider"), UUID("uuid"), EMAIL_LOCAL_PART("email-local-part");
+
+    private final String key;
+
+    Placeholder(String key) {
+      this.key = key;
+    }
+
+    @CheckForNull
+    static Placeholder of(String key) {
+      for (Placeholder placeholder : values()) {
+        if (placeholder.key.equals(key)) {
+          return placeholder;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final String template;
+  // each segment is either a literal String or a Placeholder
+  private final Object[] segments;
+  private final int literalLength;
+
+  private LoginTemplate(String template, Object[] segments) {
+    this.template = template;
+    this.segments = segments;
+    int length = 0;
+    for (Object segment : segments) {
+      if (segment instanceof String) {
+        length += ((String) segment).length();
+      }
+    }
+    this.literalLength = length;
+  }
+
+  public static LoginTemplate compile(String template) {
+    List<Object> segments = new ArrayList<>();
+    int start = 0;
+    while (start < template.length()) {
+      int open = template.indexOf('{', start);
+      if (open < 0) {
+        segments.add(template.substring(start));
+        break;
+      }
+      if (open > start) {
+        segments.add(template.substring(start, open));
+      }
+      int close = template.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalStateException(format("Invalid login template '%s': missing '}'", template));
+      }
+      String key = template.substring(open + 1, close);
+      Placeholder placeholder = Placeholder.of(key);
+      if (placeholder == null) {
+        throw new IllegalStateException(format("Invalid login template '%s': unknown placeholder {%s}", template, key));
+      }
+      segments.add(placeholder);
+      start = close + 1;
+    }
+    if (segments.isEmpty()) {
+      throw new IllegalStateException("Login template is empty");
+    }
+    return new LoginTemplate(template, segments.toArray());
+  }
+
+  public String getTemplate() {
+    return template;
+  }
+
+  public String generate(GsonUser user, @Nullable String email) {
+    if (segments.length == 1) {
+      // no need to copy the value
+      return segmentValue(segments[0], user, email);
+    }
+    StringBuilder login = new StringBuilder(literalLength + 32);
+    for (Object segment : segments) {
+      login.append(segmentValue(segment, user, email));
+    }
+    return login.toString();
+  }
+
+  private String segmentValue(Object segment, GsonUser user, @Nullable String email) {
+    if (segment instanceof String) {
+      return (String) segment;
+    }
+    switch ((Placeholder) segment) {
+      case USERNAME:
+        return user.getUsername();
+      case PROVIDER:
+        return BitbucketIdentityProvider.KEY;
+      case UUID:
+        return uuid(user);
+      case EMAIL_LOCAL_PART:
+        return emailLocalPart(email);
+      default:
+        throw new IllegalStateException("Unsupported placeholder " + segment);
+    }
+  }
+
+  private String uuid(GsonUser user) {
+    String uuid = user.getUuid();
+    if (uuid == null) {
+      // users without UUID would share the same login
+      throw new IllegalStateException(format("UUID is required by login template '%s'", template));
+    }
+    return uuid;
+  }
+
+  private String emailLocalPart(@Nullable String email) {
+    if (email == null) {
+      throw new IllegalStateException(format("Email is required by login template '%s'", template));
+    }
+    int at = email.indexOf('@');
+    return at < 0 ? email : email.substring(0, at);
+  }
+}
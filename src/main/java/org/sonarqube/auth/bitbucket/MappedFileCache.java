@@ -0,0 +1,393 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import javax.annotation.CheckForNull;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.lang.String.format;
+
+/**
+ * Cache persisted in a memory-mapped file, so that entries survive restarts of the server.
+ * <p/>
+ * The file is an append-only log of records, compacted when full. Each record is:
+ * <pre>
+ *   int    length of the record, excluding this field. 0 marks the end of the log.
+ *   int    CRC-32 of the following fields of the record
+ *   byte   type: {@link #PUT} or {@link #REMOVE}
+ *   long   creation date, in milliseconds since epoch
+ *   short  length of key
+ *   byte[] key, encoded in UTF-8
+ *   int    length of value (only for {@link #PUT})
+ *   byte[] value (only for {@link #PUT})
+ * </pre>
+ * The location of values is indexed on heap when the file is opened. The log is truncated at the
+ * first invalid record, for example when the server was not shut down cleanly.
+ * <p/>
+ * A file must be opened by a single instance at a time, see {@link BitbucketCaches}. The instance can
+ * not be used once closed.
+ */
+public class MappedFileCache implements BitbucketCache {
+
+  private static final Logger LOGGER = Loggers.get(MappedFileCache.class);
+
+  private static final int MAGIC = 0x42424332;
+  private static final int HEADER_SIZE = 4;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final int CHECKSUM_SIZE = 4;
+  // checksum + type + createdAt + key length
+  private static final int RECORD_FIXED_SIZE = CHECKSUM_SIZE + 1 + 8 + 2;
+  private static final int LENGTH_SIZE = 4;
+
+  private final File file;
+  private final int capacity;
+  private final long ttlMs;
+  private final System2 system2;
+  private final Map<String, Location> index = new HashMap<>();
+  private final CacheStats.Counters counters = new CacheStats.Counters();
+  @CheckForNull
+  private MappedByteBuffer buffer;
+  private int position;
+
+  public MappedFileCache(File file, int capacity, long ttlMs, System2 system2) {
+    this.file = file;
+    this.capacity = capacity;
+    this.ttlMs = ttlMs;
+    this.system2 = system2;
+    open();
+  }
+
+  private void open() {
+    try {
+      Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+        // the mapping remains valid after the channel is closed
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, HEADER_SIZE + 2 * LENGTH_SIZE));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(format("Fail to open cache file %s", file.getAbsolutePath()), e);
+    }
+    load();
+  }
+
+  private void checkOpen() {
+    if (buffer == null) {
+      throw new IllegalStateException(format("Cache file %s is closed", file.getAbsolutePath()));
+    }
+  }
+
+  @CheckForNull
+  @Override
+  public synchronized byte[] get(String key) {
+    checkOpen();
+    Location location = index.get(key);
+    if (location == null) {
+      counters.onMiss();
+      return null;
+    }
+    if (isExpired(location)) {
+      index.remove(key);
+      counters.onEviction();
+      counters.onMiss();
+      return null;
+    }
+    counters.onHit();
+    return read(location);
+  }
+
+  private byte[] read(Location location) {
+    byte[] value = new byte[location.valueLength];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = buffer.get(location.valueOffset + i);
+    }
+    return value;
+  }
+
+  @Override
+  public synchronized void put(String key, byte[] value) {
+    checkOpen();
+    byte[] keyBytes = encodeKey(key);
+    int recordSize = LENGTH_SIZE + RECORD_FIXED_SIZE + keyBytes.length + LENGTH_SIZE + value.length;
+    if (!ensureRoom(recordSize)) {
+      index.remove(key);
+      return;
+    }
+    long now = system2.now();
+    int valueOffset = append(PUT, now, keyBytes, value);
+    index.put(key, new Location(valueOffset, value.length, now));
+  }
+
+  @Override
+  public synchronized void remove(String key) {
+    checkOpen();
+    if (index.remove(key) == null) {
+      return;
+    }
+    byte[] keyBytes = encodeKey(key);
+    if (ensureRoom(LENGTH_SIZE + RECORD_FIXED_SIZE + keyBytes.length)) {
+      append(REMOVE, system2.now(), keyBytes, null);
+    } else {
+      // the removal can't be persisted, so start again from an empty log
+      reset();
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    checkOpen();
+    reset();
+  }
+
+  @Override
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * Number of bytes used by the log, including removed and expired records
+   */
+  public synchronized int usedBytes() {
+    return position;
+  }
+
+  /**
+   * The weight is the number of bytes used by the log, see {@link #usedBytes()}
+   */
+  @Override
+  public synchronized CacheStats stats() {
+    long oldest = index.values().stream().mapToLong(l -> l.createdAt).min().orElse(-1L);
+    return counters.snapshot(index.size(), position, oldest);
+  }
+
+  /**
+   * Flushes the log to disk and drops the mapping, which is unmapped when garbage collected.
+   */
+  @Override
+  public synchronized void close() {
+    if (buffer != null) {
+      buffer.force();
+      buffer = null;
+    }
+    index.clear();
+    position = 0;
+  }
+
+  private static byte[] encodeKey(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException(format("Cache key is too long: %d bytes", keyBytes.length));
+    }
+    return keyBytes;
+  }
+
+  private boolean isExpired(Location location) {
+    return location.createdAt < system2.now() - ttlMs;
+  }
+
+  /**
+   * Makes room for a record of the given size followed by the end marker, compacting the log if needed.
+   *
+   * @return false if the record can not fit in the file, even if empty
+   */
+  private boolean ensureRoom(int recordSize) {
+    int required = recordSize + LENGTH_SIZE;
+    if (HEADER_SIZE + required > buffer.capacity()) {
+      return false;
+    }
+    if (position + required > buffer.capacity()) {
+      compact();
+      if (position + required > buffer.capacity()) {
+        counters.onEvictions(index.size());
+        reset();
+      }
+    }
+    return true;
+  }
+
+  private int append(byte type, long createdAt, byte[] keyBytes, @CheckForNull byte[] value) {
+    int recordLength = RECORD_FIXED_SIZE + keyBytes.length + (value == null ? 0 : (LENGTH_SIZE + value.length));
+    int recordOffset = position + LENGTH_SIZE;
+    int offset = recordOffset + CHECKSUM_SIZE;
+    buffer.put(offset, type);
+    offset++;
+    buffer.putLong(offset, createdAt);
+    offset += 8;
+    buffer.putShort(offset, (short) keyBytes.length);
+    offset += 2;
+    offset = putBytes(offset, keyBytes);
+    int valueOffset = -1;
+    if (value != null) {
+      buffer.putInt(offset, value.length);
+      offset += LENGTH_SIZE;
+      valueOffset = offset;
+      offset = putBytes(offset, value);
+    }
+    buffer.putInt(recordOffset, checksum(recordOffset, recordLength));
+    buffer.putInt(position, recordLength);
+    position = offset;
+    buffer.putInt(position, 0);
+    return valueOffset;
+  }
+
+  /**
+   * CRC-32 of the fields following the checksum
+   */
+  private int checksum(int recordOffset, int recordLength) {
+    ByteBuffer fields = buffer.duplicate();
+    fields.limit(recordOffset + recordLength).position(recordOffset + CHECKSUM_SIZE);
+    CRC32 crc = new CRC32();
+    crc.update(fields);
+    return (int) crc.getValue();
+  }
+
+  private int putBytes(int offset, byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      buffer.put(offset + i, bytes[i]);
+    }
+    return offset + bytes.length;
+  }
+
+  /**
+   * Rewrites the live entries at the beginning of the log
+   */
+  private void compact() {
+    List<String> keys = new ArrayList<>(index.keySet());
+    List<byte[]> values = new ArrayList<>(keys.size());
+    List<Long> dates = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      Location location = index.get(key);
+      if (isExpired(location)) {
+        counters.onEviction();
+        values.add(null);
+      } else {
+        values.add(read(location));
+      }
+      dates.add(location.createdAt);
+    }
+    reset();
+    for (int i = 0; i < keys.size(); i++) {
+      byte[] value = values.get(i);
+      if (value != null) {
+        int valueOffset = append(PUT, dates.get(i), encodeKey(keys.get(i)), value);
+        index.put(keys.get(i), new Location(valueOffset, value.length, dates.get(i)));
+      }
+    }
+  }
+
+  private void reset() {
+    index.clear();
+    buffer.putInt(0, MAGIC);
+    position = HEADER_SIZE;
+    buffer.putInt(position, 0);
+  }
+
+  private void load() {
+    if (buffer.getInt(0) != MAGIC) {
+      reset();
+      return;
+    }
+    position = HEADER_SIZE;
+    int recordLength;
+    while (position + LENGTH_SIZE <= buffer.capacity() && (recordLength = buffer.getInt(position)) != 0) {
+      if (!loadRecord(position + LENGTH_SIZE, recordLength)) {
+        LOGGER.warn("Cache file {} is corrupted at offset {}. Following entries are dropped.", file.getAbsolutePath(), position);
+        buffer.putInt(position, 0);
+        return;
+      }
+      position += LENGTH_SIZE + recordLength;
+    }
+  }
+
+  /**
+   * @return false if the record is invalid, for example if it has been partially written
+   */
+  private boolean loadRecord(int offset, int recordLength) {
+    if (recordLength < RECORD_FIXED_SIZE || recordLength > buffer.capacity() - offset
+      || buffer.getInt(offset) != checksum(offset, recordLength)) {
+      return false;
+    }
+    byte type = buffer.get(offset + CHECKSUM_SIZE);
+    long createdAt = buffer.getLong(offset + CHECKSUM_SIZE + 1);
+    int keyLength = buffer.getShort(offset + CHECKSUM_SIZE + 9);
+    int valueLengthOffset = offset + RECORD_FIXED_SIZE + keyLength;
+    if (keyLength < 0 || (type != PUT && type != REMOVE)) {
+      return false;
+    }
+    if (type == REMOVE) {
+      if (recordLength != RECORD_FIXED_SIZE + keyLength) {
+        return false;
+      }
+      index.remove(readKey(offset + RECORD_FIXED_SIZE, keyLength));
+      return true;
+    }
+    if (recordLength < RECORD_FIXED_SIZE + keyLength + LENGTH_SIZE) {
+      return false;
+    }
+    int valueLength = buffer.getInt(valueLengthOffset);
+    if (valueLength < 0 || recordLength != RECORD_FIXED_SIZE + keyLength + LENGTH_SIZE + valueLength) {
+      return false;
+    }
+    String key = readKey(offset + RECORD_FIXED_SIZE, keyLength);
+    Location location = new Location(valueLengthOffset + LENGTH_SIZE, valueLength, createdAt);
+    if (isExpired(location)) {
+      index.remove(key);
+    } else {
+      index.put(key, location);
+    }
+    return true;
+  }
+
+  private String readKey(int offset, int length) {
+    byte[] keyBytes = new byte[length];
+    for (int i = 0; i < keyBytes.length; i++) {
+      keyBytes[i] = buffer.get(offset + i);
+    }
+    return new String(keyBytes, StandardCharsets.UTF_8);
+  }
+
+  private static class Location {
+    private final int valueOffset;
+    private final int valueLength;
+    private final long createdAt;
+
+    Location(int valueOffset, int valueLength, long createdAt) {
+      this.valueOffset = valueOffset;
+      this.valueLength = valueLength;
+      this.createdAt = createdAt;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import javax.annotation.CheckForNull;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Checks whether a user is member of some teams by listing the teams of the user, filtered by Bitbucket
+ * on the names of the restricted teams (see https://developer.atlassian.com/bitbucket/api/2/reference/meta/filtering),
+ * so that responses contain only the matching teams. Long lists of teams are split into chunks of
+ * {@link #CHUNK_SIZE} teams, requested in parallel.
+ */
+@ServerSide
+public class MembershipFilter {
+
+  private static final Logger LOGGER = Loggers.get(MembershipFilter.class);
+
+  static final String FILTERED_TEAMS_ENDPOINT = "filtered_teams";
+  static final int CHUNK_SIZE = 20;
+
+  private final BitbucketSettings settings;
+  private final BitbucketExecutor executor;
+
+  public MembershipFilter(BitbucketSettings settings, BitbucketExecutor executor) {
+    this.settings = settings;
+    this.executor = executor;
+  }
+
+  /**
+   * A single chunk is requested in the calling thread. Otherwise returns as soon as a chunk confirms the
+   * membership, and requests still in progress are then cancelled.
+   *
+   * @return true if the user is member of at least one team, false if member of none, null if some
+   * chunks could not be checked, for example because the server does not support filtering, and the
+   * user is member of none of the teams of the other chunks.
+   */
+  @CheckForNull
+  public Boolean isMemberOfAny(BitbucketApiClient client, String[] teams) {
+    List<List<String>> chunks = chunks(teams);
+    if (chunks.size() == 1) {
+      return isMemberOfAny(client, chunks.get(0));
+    }
+    CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor.get());
+    List<Future<Boolean>> futures = new ArrayList<>(chunks.size());
+    try {
+      for (List<String> chunk : chunks) {
+        futures.add(completion.submit(() -> isMemberOfAny(client, chunk)));
+      }
+      boolean unknown = false;
+      for (int i = 0; i < chunks.size(); i++) {
+        Boolean isMember = result(completion.take());
+        if (Boolean.TRUE.equals(isMember)) {
+          return true;
+        }
+        unknown |= isMember == null;
+      }
+      return unknown ? null : false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      futures.forEach(f -> f.cancel(true));
+    }
+  }
+
+  static List<List<String>> chunks(String[] teams) {
+    List<List<String>> chunks = new ArrayList<>((teams.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    for (int from = 0; from < teams.length; from += CHUNK_SIZE) {
+      chunks.add(asList(Arrays.copyOfRange(teams, from, Math.min(from + CHUNK_SIZE, teams.length))));
+    }
+    return chunks;
+  }
+
+  /**
+   * Query of the parameter "q", for example {@code username="team1" OR username="team2"}
+   */
+  static String query(List<String> teams) {
+    StringBuilder query = new StringBuilder();
+    for (String team : teams) {
+      if (query.length() > 0) {
+        query.append(" OR ");
+      }
+      query.append("username=\"").append(team.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return query.toString();
+  }
+
+  @CheckForNull
+  private static Boolean result(Future<Boolean> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      LOGGER.debug("Fail to request filtered teams of Bitbucket user", e.getCause());
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private Boolean isMemberOfAny(BitbucketApiClient client, List<String> teams) {
+    String url = settings.apiURL() + "2.0/teams?role=member&pagelen=" + teams.size() + "&fields=" + GsonTeams.FIELDS + "&q=" + encode(query(teams));
+    return client.get(FILTERED_TEAMS_ENDPOINT, url, response -> {
+      if (!response.isSuccessful()) {
+        LOGGER.debug("Fail to request filtered teams of Bitbucket user. HTTP code: {}", response.getCode());
+        return null;
+      }
+      GsonTeams page = GsonTeams.parse(response.reader());
+      if (page.getTeams() != null && page.getTeams().stream().anyMatch(t -> teams.contains(t.getUserName()))) {
+        return true;
+      }
+      // more matches than requested teams: the filter has been ignored, so the teams of the other pages are unknown
+      return page.getNext() == null ? false : null;
+    });
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
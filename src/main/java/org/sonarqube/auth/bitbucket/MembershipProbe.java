@@ -0,0 +1,127 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import javax.annotation.CheckForNull;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Checks whether a user is member of some teams by requesting the membership of the user in the workspace
+ * of each team (see https://developer.atlassian.com/cloud/bitbucket/rest/api-group-workspaces/#api-workspaces-workspace-members-member-get),
+ * in parallel, instead of listing all the teams of the user.
+ * <p/>
+ * Bitbucket answers 404 when the user is not a member of the workspace or when the workspace can't be found:
+ * in both cases the user is not a member of the team. Other errors make the membership unknown.
+ */
+@ServerSide
+public class MembershipProbe {
+
+  private static final Logger LOGGER = Loggers.get(MembershipProbe.class);
+
+  static final String MEMBERSHIP_ENDPOINT = "workspace_members";
+
+  private final BitbucketSettings settings;
+  private final BitbucketExecutor executor;
+
+  public MembershipProbe(BitbucketSettings settings, BitbucketExecutor executor) {
+    this.settings = settings;
+    this.executor = executor;
+  }
+
+  /**
+   * Returns as soon as a team confirms the membership. Requests still in progress are then cancelled.
+   *
+   * @param member UUID of the user
+   * @return true if the user is member of at least one team, false if member of none, null if some
+   * teams could not be checked and the user is member of none of the others.
+   */
+  @CheckForNull
+  public Boolean isMemberOfAny(BitbucketApiClient client, String member, String[] teams) {
+    CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor.get());
+    List<Future<Boolean>> futures = new ArrayList<>(teams.length);
+    try {
+      for (String team : teams) {
+        futures.add(completion.submit(() -> isMember(client, member, team)));
+      }
+      boolean unknown = false;
+      for (int i = 0; i < teams.length; i++) {
+        Boolean isMember = result(completion.take());
+        if (Boolean.TRUE.equals(isMember)) {
+          return true;
+        }
+        unknown |= isMember == null;
+      }
+      return unknown ? null : false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      futures.forEach(f -> f.cancel(true));
+    }
+  }
+
+  @CheckForNull
+  private static Boolean result(Future<Boolean> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      LOGGER.debug("Fail to check membership of Bitbucket team", e.getCause());
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private Boolean isMember(BitbucketApiClient client, String member, String team) {
+    String url = settings.apiURL() + "2.0/workspaces/" + encode(team) + "/members/" + encode(member);
+    return client.get(MEMBERSHIP_ENDPOINT, url, response -> {
+      switch (response.getCode()) {
+        case HTTP_OK:
+          return true;
+        case HTTP_NOT_FOUND:
+          return false;
+        default:
+          LOGGER.debug("Fail to check membership of Bitbucket team {}. HTTP code: {}", team, response.getCode());
+          return null;
+      }
+    });
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
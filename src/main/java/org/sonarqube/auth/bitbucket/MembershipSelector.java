@@ -0,0 +1,132 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.MEMBERSHIP_CHECK_FILTER;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.MEMBERSHIP_CHECK_LIST;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.MEMBERSHIP_CHECK_PROBE;
+
+/**
+ * Chooses how the membership to the restricted teams is checked: by probing each team with
+ * {@link MembershipProbe}, by listing the teams of the user filtered by Bitbucket with {@link MembershipFilter},
+ * or by listing all the teams of the user.
+ * <p/>
+ * In mode {@link BitbucketSettings#MEMBERSHIP_CHECK_AUTO}, probing is selected when the number of
+ * restricted teams does not exceed {@link #MAX_PROBED_TEAMS} and when the average duration of
+ * probes is not greater than the average duration of listings. Averages are exponentially weighted, and the
+ * other strategy is selected every {@link #EXPLORATION_INTERVAL} checks, so that averages
+ * stay up-to-date.
+ */
+@ServerSide
+public class MembershipSelector {
+
+  static final int MAX_PROBED_TEAMS = 20;
+  static final int EXPLORATION_INTERVAL = 50;
+  // weight of the last duration in averages
+  static final double ALPHA = 0.2;
+
+  private final BitbucketSettings settings;
+  private final System2 system2;
+  private final AtomicLong checks = new AtomicLong();
+  private final Average probes = new Average();
+  private final Average listings = new Average();
+
+  public MembershipSelector(BitbucketSettings settings, System2 system2) {
+    this.settings = settings;
+    this.system2 = system2;
+  }
+
+  /**
+   * Filtering is never selected automatically, as it is not supported by all versions of Bitbucket
+   */
+  public boolean shouldFilter() {
+    return MEMBERSHIP_CHECK_FILTER.equals(settings.membershipCheck());
+  }
+
+  public boolean shouldProbe(int restrictedTeams) {
+    String mode = settings.membershipCheck();
+    if (MEMBERSHIP_CHECK_PROBE.equals(mode)) {
+      return true;
+    }
+    if (MEMBERSHIP_CHECK_LIST.equals(mode) || MEMBERSHIP_CHECK_FILTER.equals(mode) || restrictedTeams > MAX_PROBED_TEAMS) {
+      return false;
+    }
+    double probeMs = probes.get();
+    double listingMs = listings.get();
+    boolean probe;
+    if (probeMs < 0) {
+      probe = true;
+    } else if (listingMs < 0) {
+      probe = false;
+    } else {
+      probe = probeMs <= listingMs;
+    }
+    boolean explore = checks.incrementAndGet() % EXPLORATION_INTERVAL == 0;
+    return probe != explore;
+  }
+
+  /**
+   * Executes and measures a probe. A probe returning null is considered as too slow to be selected
+   * again before the next exploration.
+   */
+  public <T> T timeProbe(Supplier<T> probe) {
+    long start = system2.now();
+    T result = probe.get();
+    probes.add(result == null ? Double.MAX_VALUE : (system2.now() - start));
+    return result;
+  }
+
+  public <T> T timeListing(Supplier<T> listing) {
+    long start = system2.now();
+    T result = listing.get();
+    listings.add(system2.now() - start);
+    return result;
+  }
+
+  double averageProbeMs() {
+    return probes.get();
+  }
+
+  double averageListingMs() {
+    return listings.get();
+  }
+
+  private static class Average {
+    // negative until first value, Double.MAX_VALUE after a failure
+    private double value = -1.0;
+
+    synchronized void add(double durationMs) {
+      if (value < 0 || value == Double.MAX_VALUE || durationMs == Double.MAX_VALUE) {
+        value = durationMs;
+      } else {
+        value = ALPHA * durationMs + (1 - ALPHA) * value;
+      }
+    }
+
+    synchronized double get() {
+      return value;
+    }
+  }
+}
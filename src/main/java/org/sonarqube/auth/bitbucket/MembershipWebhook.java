@@ -0,0 +1,190 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.google.gson.JsonParseException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.api.web.ServletFilter;
+
+/**
+ * Receives the webhook events of Bitbucket about the members who leave workspaces, so that the membership and
+ * the profile of a user are verified again on their next authentication, without waiting for the expiration
+ * of the caches.
+ * <p/>
+ * Events only revoke cached data, they never grant a membership: a member added to a workspace is verified by
+ * Bitbucket on their next authentication, so the event {@code workspace:member_added} is ignored.
+ * <p/>
+ * Events must be signed with the secret {@link BitbucketSettings#webhookSecret()}: the header {@link #SIGNATURE_HEADER}
+ * is "sha256=" followed by the hexadecimal HMAC-SHA256 of the body. The endpoint is disabled as long as the secret
+ * is not defined.
+ */
+@ServerSide
+public class MembershipWebhook extends ServletFilter {
+
+  private static final Logger LOGGER = Loggers.get(MembershipWebhook.class);
+  private static final RateLimitedLogger RATE_LIMITED_LOGGER = new RateLimitedLogger(LOGGER);
+
+  static final String URL = "/authbitbucket/webhook";
+  static final String SIGNATURE_HEADER = "X-Hub-Signature";
+  static final String EVENT_HEADER = "X-Event-Key";
+  static final String MEMBER_REMOVED = "workspace:member_removed";
+  static final int MAX_PAYLOAD_BYTES = 64 * 1024;
+  private static final String SIGNATURE_PREFIX = "sha256=";
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private final BitbucketSettings settings;
+  private final TeamMembers teamMembers;
+  private final IdentityFingerprints fingerprints;
+  private final VerifiedProfiles verifiedProfiles;
+
+  public MembershipWebhook(BitbucketSettings settings, TeamMembers teamMembers, IdentityFingerprints fingerprints, VerifiedProfiles verifiedProfiles) {
+    this.settings = settings;
+    this.teamMembers = teamMembers;
+    this.fingerprints = fingerprints;
+    this.verifiedProfiles = verifiedProfiles;
+  }
+
+  @Override
+  public UrlPattern doGetPattern() {
+    return UrlPattern.create(URL);
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+    // nothing to do
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    String secret = settings.webhookSecret();
+    if (secret == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    if (!"POST".equals(request.getMethod())) {
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+    byte[] payload = readPayload(request.getInputStream());
+    if (payload == null) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    if (!isSignatureValid(secret, payload, request.getHeader(SIGNATURE_HEADER))) {
+      RATE_LIMITED_LOGGER.warn("Bitbucket webhook event rejected: invalid signature");
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+    String event = request.getHeader(EVENT_HEADER);
+    if (!MEMBER_REMOVED.equals(event)) {
+      LOGGER.debug("Bitbucket webhook event {} ignored", event);
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      return;
+    }
+    GsonMembershipEvent membershipEvent;
+    try {
+      membershipEvent = GsonMembershipEvent.parse(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+    } catch (JsonParseException e) {
+      membershipEvent = null;
+    }
+    if (membershipEvent == null || membershipEvent.getWorkspace() == null || membershipEvent.getMemberUuid() == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Workspace slug and member UUID are required");
+      return;
+    }
+    invalidate(membershipEvent.getWorkspace(), membershipEvent.getMemberUuid());
+    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  private void invalidate(String workspace, String uuid) {
+    teamMembers.removeMember(uuid, workspace);
+    // groups and degraded authentications depend on the membership
+    fingerprints.remove(uuid);
+    verifiedProfiles.remove(uuid);
+    LOGGER.info("Bitbucket webhook event {}: state of user {} in team {} invalidated", MEMBER_REMOVED, uuid, workspace);
+  }
+
+  @Override
+  public void destroy() {
+    // nothing to do
+  }
+
+  /**
+   * @return the payload, or null if larger than {@link #MAX_PAYLOAD_BYTES}
+   */
+  @CheckForNull
+  private static byte[] readPayload(InputStream input) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      if (payload.size() + read > MAX_PAYLOAD_BYTES) {
+        return null;
+      }
+      payload.write(buffer, 0, read);
+    }
+    return payload.toByteArray();
+  }
+
+  static boolean isSignatureValid(String secret, byte[] payload, @Nullable String signature) {
+    if (signature == null || !signature.startsWith(SIGNATURE_PREFIX)) {
+      return false;
+    }
+    byte[] expected = (SIGNATURE_PREFIX + sign(secret, payload)).getBytes(StandardCharsets.US_ASCII);
+    // constant-time comparison
+    return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  static String sign(String secret, byte[] payload) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+      byte[] hmac = mac.doFinal(payload);
+      StringBuilder hex = new StringBuilder(hmac.length * 2);
+      for (byte b : hmac) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Fail to compute the signature of Bitbucket webhook event", e);
+    }
+  }
+}
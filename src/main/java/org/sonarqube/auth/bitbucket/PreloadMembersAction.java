@@ -0,0 +1,108 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.Token;
+import com.github.scribejava.core.oauth.OAuthService;
+import java.util.Collections;
+import java.util.List;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static org.sonarqube.auth.bitbucket.Administrators.checkAdministrator;
+
+/**
+ * Loads the members of the restricted teams before their first authentication. See {@link TeamMembers}.
+ */
+public class PreloadMembersAction implements BitbucketWsAction {
+
+  static final String PARAM_ACCESS_TOKEN = "accessToken";
+
+  private final BitbucketSettings settings;
+  private final BitbucketScribeApi scribeApi;
+  private final BitbucketTransport transport;
+  private final BitbucketMetrics metrics;
+  private final TeamMembers teamMembers;
+
+  public PreloadMembersAction(BitbucketSettings settings, BitbucketScribeApi scribeApi, BitbucketTransport transport,
+    BitbucketMetrics metrics, TeamMembers teamMembers) {
+    this.settings = settings;
+    this.scribeApi = scribeApi;
+    this.transport = transport;
+    this.metrics = metrics;
+    this.teamMembers = teamMembers;
+  }
+
+  @Override
+  public void define(WebService.NewController controller) {
+    WebService.NewAction action = controller.createAction("preload_members")
+      .setDescription("Load the members of the teams of the setting 'Teams', so that their team membership is not " +
+        "requested to Bitbucket when they authenticate, until the preload expires (setting 'Preloaded members time-to-live'). " +
+        "Recommended before many users authenticate for the first time.<br/>" +
+        "The members of the previous preload of each team are replaced, except for the teams that can't be fetched. Members who leave a team " +
+        "after the preload keep passing the team restriction until the preload expires, unless the membership webhook is configured.<br/>" +
+        "Teams are fetched " + TeamMembers.PARALLELISM + " at a time.<br/>" +
+        "Requires the 'Administer System' permission.")
+      .setSince("1.2")
+      .setPost(true)
+      .setResponseExample(getClass().getResource("preload_members-example.json"))
+      .setHandler(this);
+    action.createParam(PARAM_ACCESS_TOKEN)
+      .setDescription("Bitbucket OAuth access token of a user allowed to read the members of the teams")
+      .setRequired(true);
+  }
+
+  @Override
+  public void handle(Request request, Response response) {
+    if (!checkAdministrator(request, response)) {
+      return;
+    }
+    String[] teams = settings.teamRestriction();
+    List<TeamMembers.TeamResult> results;
+    if (teams.length == 0) {
+      results = Collections.emptyList();
+    } else {
+      OAuthService scribe = new ServiceBuilder()
+        .provider(scribeApi)
+        .apiKey(settings.clientId())
+        .apiSecret(settings.clientSecret())
+        .connectTimeout(settings.apiTimeoutMs())
+        .readTimeout(settings.apiTimeoutMs())
+        .build();
+      BitbucketApiClient client = new BitbucketApiClient(transport, scribe, new Token(request.mandatoryParam(PARAM_ACCESS_TOKEN), ""), metrics);
+      results = teamMembers.preload(client, teams);
+    }
+
+    try (JsonWriter json = response.newJsonWriter()) {
+      json.beginObject().name("teams").beginArray();
+      for (TeamMembers.TeamResult result : results) {
+        json.beginObject()
+          .prop("team", result.getTeam())
+          .prop("members", result.getMembers().size())
+          .prop("error", result.getError())
+          .endObject();
+      }
+      json.endArray().endObject();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.sonar.api.config.GlobalPropertyChangeHandler;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.CONSUMER_KEY;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.CONSUMER_SECRET;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.ENABLED;
+
+/**
+ * Releases the threads, the buffers and the caches of the plugin when Bitbucket authentication is disabled,
+ * including when the consumer key or secret is removed. They are all created on first use, so nothing is
+ * created again before the next authentication. The authentications in progress are waited for, at most
+ * for the timeout of the Bitbucket API, so that they do not fail on a closed resource.
+ */
+@ServerSide
+public class ProviderDisabledHandler extends GlobalPropertyChangeHandler {
+
+  private static final Logger LOGGER = Loggers.get(ProviderDisabledHandler.class);
+  private static final String KEY_PREFIX = "sonar.auth.bitbucket.";
+
+  private final BitbucketSettings settings;
+  private final BitbucketExecutor executor;
+  private final BitbucketCaches caches;
+  private final AuditLog auditLog;
+  private final AuthenticationPipeline pipeline;
+
+  public ProviderDisabledHandler(BitbucketSettings settings, BitbucketExecutor executor, BitbucketCaches caches, AuditLog auditLog,
+    AuthenticationPipeline pipeline) {
+    this.settings = settings;
+    this.executor = executor;
+    this.caches = caches;
+    this.auditLog = auditLog;
+    this.pipeline = pipeline;
+  }
+
+  @Override
+  public void onChange(PropertyChange change) {
+    if (change.getKey().startsWith(KEY_PREFIX) && (disables(change) || !settings.isEnabled())) {
+      awaitCallbacks();
+      executor.release();
+      caches.release();
+      auditLog.release();
+      LOGGER.info("Bitbucket authentication is disabled, resources of the plugin are released");
+    }
+  }
+
+  private void awaitCallbacks() {
+    try {
+      if (!pipeline.awaitCallbacks(settings.apiTimeoutMs())) {
+        LOGGER.warn("Bitbucket authentications still in progress will fail, resources of the plugin are released");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The configuration may not include the change yet when the handler is notified
+   */
+  private static boolean disables(PropertyChange change) {
+    String newValue = change.getNewValue();
+    switch (change.getKey()) {
+      case ENABLED:
+        // new value is null when the setting is reset to its default value, which is false
+        return !Boolean.parseBoolean(newValue);
+      case CONSUMER_KEY:
+      case CONSUMER_SECRET:
+        return newValue == null || newValue.isEmpty();
+      default:
+        return false;
+    }
+  }
+}
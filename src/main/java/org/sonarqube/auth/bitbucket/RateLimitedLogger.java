@@ -0,0 +1,127 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+
+/**
+ * Logs a warning at most once per {@link #WINDOW_MS} for each message pattern, so that an incident of
+ * Bitbucket does not flood the logs with one line per authentication. The occurrences suppressed
+ * during the window are counted without locking, and their number is appended to the next logged occurrence.
+ * <p/>
+ * Patterns are the keys of the aggregation, so they must not contain variable data: arguments are
+ * logged with the first occurrence of the window only. Warnings about a given subject, for example a user,
+ * are aggregated per pattern and subject with {@link #warnFor(String, String, Object...)}, so that
+ * each subject is still logged once per window.
+ */
+final class RateLimitedLogger {
+
+  static final long WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+  /**
+   * Above this number of windows, the expired windows without suppressed occurrences are removed
+   */
+  static final int MAX_WINDOWS = 10_000;
+  private static final long NEVER = Long.MIN_VALUE;
+
+  private final Logger logger;
+  private final System2 system2;
+  private final long windowMs;
+  private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+  RateLimitedLogger(Logger logger) {
+    this(logger, System2.INSTANCE);
+  }
+
+  RateLimitedLogger(Logger logger, System2 system2) {
+    this(logger, system2, WINDOW_MS);
+  }
+
+  RateLimitedLogger(Logger logger, System2 system2, long windowMs) {
+    this.logger = logger;
+    this.system2 = system2;
+    this.windowMs = windowMs;
+  }
+
+  void warn(String pattern, Object... args) {
+    log(pattern, pattern, args);
+  }
+
+  /**
+   * Same as {@link #warn(String, Object...)}, but the occurrences are aggregated per pattern and subject
+   */
+  void warnFor(String subject, String pattern, Object... args) {
+    log(pattern + '\n' + subject, pattern, args);
+  }
+
+  private void log(String key, String pattern, Object[] args) {
+    long suppressed = tryAcquire(key);
+    if (suppressed == 0L) {
+      logger.warn(pattern, args);
+    } else if (suppressed > 0L) {
+      Object[] argsWithCount = Arrays.copyOf(args, args.length + 1);
+      argsWithCount[args.length] = suppressed;
+      logger.warn(pattern + " ({} similar messages suppressed)", argsWithCount);
+    }
+  }
+
+  void warn(String msg, Throwable thrown) {
+    long suppressed = tryAcquire(msg);
+    if (suppressed >= 0L) {
+      logger.warn(suppressed == 0L ? msg : (msg + " (" + suppressed + " similar messages suppressed)"), thrown);
+    }
+  }
+
+  /**
+   * @return the number of occurrences suppressed since the last logged one, or -1 if this occurrence must be suppressed
+   */
+  private long tryAcquire(String key) {
+    long now = system2.now();
+    Window window = windows.get(key);
+    if (window == null) {
+      if (windows.size() >= MAX_WINDOWS) {
+        windows.values().removeIf(w -> now - w.start.get() >= windowMs && w.suppressed.sum() == 0L);
+      }
+      window = windows.computeIfAbsent(key, k -> new Window());
+    }
+    long start = window.start.get();
+    if ((start == NEVER || now - start >= windowMs) && window.start.compareAndSet(start, now)) {
+      // nothing to report on the first window, occurrences counted concurrently belong to it
+      return start == NEVER ? 0L : window.suppressed.sumThenReset();
+    }
+    window.suppressed.increment();
+    return -1L;
+  }
+
+  int size() {
+    return windows.size();
+  }
+
+  private static class Window {
+    private final AtomicLong start = new AtomicLong(NEVER);
+    private final LongAdder suppressed = new LongAdder();
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.model.OAuthRequest;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
+/**
+ * Serves the exchanges recorded by {@link TrafficRecorder}, so that tests and benchmarks run on
+ * production-shaped data, without network.
+ * <p/>
+ * Requests are matched on their verb, their path and the parameters recorded by {@link TrafficRecorder#RECORDED_PARAMS},
+ * whatever the host. Requests matching several exchanges are served with these exchanges in the order of
+ * the recording, starting again from the first one after the last one.
+ */
+public class ReplayTransport implements BitbucketTransport {
+
+  private static final byte[] NOT_FOUND = "{\"type\": \"error\", \"error\": {\"message\": \"Resource not found\"}}".getBytes(StandardCharsets.UTF_8);
+
+  private final Map<String, Exchanges> exchangesByKey = new HashMap<>();
+  private int size = 0;
+
+  /**
+   * @param recording lines of a file written by {@link TrafficRecorder}
+   * @throws IllegalArgumentException if a line is not a recorded exchange
+   */
+  public ReplayTransport(Reader recording) throws IOException {
+    BufferedReader reader = new BufferedReader(recording);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.trim().isEmpty()) {
+        add(line);
+      }
+    }
+  }
+
+  public static ReplayTransport load(Path recording) throws IOException {
+    try (Reader reader = Files.newBufferedReader(recording, StandardCharsets.UTF_8)) {
+      return new ReplayTransport(reader);
+    }
+  }
+
+  /**
+   * Number of recorded exchanges
+   */
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public ApiResponse send(OAuthRequest request) {
+    URI uri = URI.create(request.getCompleteUrl());
+    Exchanges exchanges = exchangesByKey.get(key(request.getVerb().name(), uri.getRawPath(), TrafficRecorder.recordedQuery(uri.getRawQuery())));
+    if (exchanges == null) {
+      return new ApiResponse(HTTP_NOT_FOUND, null, new ByteArrayInputStream(NOT_FOUND));
+    }
+    Exchange exchange = exchanges.next();
+    return new ApiResponse(exchange.code, null, new ByteArrayInputStream(exchange.body));
+  }
+
+  private void add(String line) {
+    try {
+      JsonObject json = new JsonParser().parse(line).getAsJsonObject();
+      JsonElement body = field(json, "body", line);
+      Exchange exchange = new Exchange(field(json, "code", line).getAsInt(),
+        (body.isJsonPrimitive() ? body.getAsString() : body.toString()).getBytes(StandardCharsets.UTF_8));
+      String key = key(field(json, "verb", line).getAsString(), field(json, "path", line).getAsString(), field(json, "query", line).getAsString());
+      exchangesByKey.computeIfAbsent(key, k -> new Exchanges()).list.add(exchange);
+      size++;
+    } catch (JsonParseException | IllegalStateException | ClassCastException | NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid recorded exchange: " + line, e);
+    }
+  }
+
+  private static JsonElement field(JsonObject json, String name, String line) {
+    JsonElement element = json.get(name);
+    if (element == null || element.isJsonNull()) {
+      throw new IllegalArgumentException("Missing field '" + name + "' in recorded exchange: " + line);
+    }
+    return element;
+  }
+
+  private static String key(String verb, String path, String query) {
+    return verb + " " + path + "?" + query;
+  }
+
+  private static class Exchanges {
+    private final List<Exchange> list = new ArrayList<>();
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    Exchange next() {
+      return list.get(Math.floorMod(cursor.getAndIncrement(), list.size()));
+    }
+  }
+
+  private static class Exchange {
+    private final int code;
+    private final byte[] body;
+
+    Exchange(int code, byte[] body) {
+      this.code = code;
+      this.body = body;
+    }
+  }
+}
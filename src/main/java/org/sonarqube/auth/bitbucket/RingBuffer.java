@@ -0,0 +1,159 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.CheckForNull;
+
+/**
+ * Bounded lock-free queue supporting multiple producers and a single consumer. Producers never
+ * block: {@link #offer(Object)} returns false when the buffer is full.
+ * <p/>
+ * Each slot has a sequence number telling whether it can be written by the producer claiming
+ * the position, or read by the consumer (D. Vyukov's bounded MPMC queue, with a single consumer).
+ * <p/>
+ * Once {@link #close() closed}, the buffer rejects new elements and the consumer can tell when
+ * all the accepted elements have been read.
+ */
+public class RingBuffer<E> {
+
+  // sign bit of the tail, so that a position can no longer be claimed once closed
+  private static final long CLOSED = Long.MIN_VALUE;
+
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  // only accessed by the consumer thread
+  private long head = 0L;
+
+  /**
+   * @param capacity rounded up to the next power of two
+   */
+  public RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.mask = size - 1;
+    this.elements = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * @return false if the buffer is full or closed
+   */
+  public boolean offer(E element) {
+    long position = tail.get();
+    while (true) {
+      if (position < 0L) {
+        return false;
+      }
+      int index = (int) (position & mask);
+      long diff = sequences.get(index) - position;
+      if (diff == 0L) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          // publishes the element to the consumer
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (diff < 0L) {
+        // slot not consumed yet since last lap
+        return false;
+      } else {
+        // another producer claimed the position
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Must be called by a single consumer thread
+   */
+  @CheckForNull
+  public E poll() {
+    int index = (int) (head & mask);
+    if (sequences.get(index) != head + 1) {
+      return null;
+    }
+    E element = elements.get(index);
+    elements.lazySet(index, null);
+    // releases the slot for the next lap of producers
+    sequences.set(index, head + mask + 1);
+    head++;
+    return element;
+  }
+
+  /**
+   * Must be called by a single consumer thread
+   *
+   * @return the number of elements moved to {@code target}
+   */
+  public int drainTo(Collection<? super E> target, int maxElements) {
+    int count = 0;
+    E element;
+    while (count < maxElements && (element = poll()) != null) {
+      target.add(element);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Rejects the elements offered from now on. Elements already accepted can still be polled.
+   */
+  public void close() {
+    long position;
+    do {
+      position = tail.get();
+    } while (position >= 0L && !tail.compareAndSet(position, position | CLOSED));
+  }
+
+  public boolean isClosed() {
+    return tail.get() < 0L;
+  }
+
+  /**
+   * Must be called by a single consumer thread
+   *
+   * @return true if the buffer is closed and all its elements have been polled, including
+   * the elements that were being offered when it was closed
+   */
+  public boolean isDrained() {
+    long position = tail.get();
+    return position < 0L && (position & ~CLOSED) == head;
+  }
+
+  /**
+   * Approximate number of elements, as producers and consumer may be concurrently changing it
+   */
+  public int size() {
+    return (int) Math.max(0L, Math.min(capacity(), (tail.get() & ~CLOSED) - head));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Converts the Bitbucket teams of a user to the names of the SonarQube groups to be synchronized.
+ * Team patterns are compiled once into a single regular expression.
+ */
+class TeamGroupMapper {
+
+  private final String[] teamPatterns;
+  private final String prefix;
+  @CheckForNull
+  private final Pattern pattern;
+
+  private TeamGroupMapper(String[] teamPatterns, String prefix, @CheckForNull Pattern pattern) {
+    this.teamPatterns = teamPatterns;
+    this.prefix = prefix;
+    this.pattern = pattern;
+  }
+
+  /**
+   * @param teamPatterns names of teams, with optional wildcards '*'. All teams are accepted if empty.
+   * @param prefix prefix of the group names
+   */
+  static TeamGroupMapper compile(String[] teamPatterns, String prefix) {
+    String[] patterns = Arrays.stream(teamPatterns).map(String::trim).filter(p -> !p.isEmpty()).toArray(String[]::new);
+    Pattern pattern = null;
+    if (patterns.length > 0) {
+      pattern = Pattern.compile(Arrays.stream(patterns).map(TeamGroupMapper::globToRegex).collect(joining("|", "(?:", ")")));
+    }
+    return new TeamGroupMapper(teamPatterns.clone(), prefix, pattern);
+  }
+
+  boolean isCompiledFrom(String[] otherTeamPatterns, String otherPrefix) {
+    return Arrays.equals(teamPatterns, otherTeamPatterns) && prefix.equals(otherPrefix);
+  }
+
+  Set<String> groupsOf(Collection<String> teams) {
+    Set<String> groups = new HashSet<>();
+    for (String team : teams) {
+      if (accepts(team)) {
+        groups.add(prefix + team);
+      }
+    }
+    return groups;
+  }
+
+  private boolean accepts(String team) {
+    return pattern == null || pattern.matcher(team).matches();
+  }
+
+  private static String globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    int wildcard;
+    while ((wildcard = glob.indexOf('*', start)) >= 0) {
+      if (wildcard > start) {
+        regex.append(Pattern.quote(glob.substring(start, wildcard)));
+      }
+      regex.append(".*");
+      start = wildcard + 1;
+    }
+    if (start < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(start)));
+    }
+    return regex.toString();
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+
+/**
+ * Members of the restricted teams, loaded in advance from the member lists of the teams. When many users
+ * authenticate for the first time, for example when a new team is onboarded, the team restriction of the
+ * preloaded members is checked without requesting Bitbucket.
+ * <p/>
+ * Each preload of a team is identified by a random generation. The key {@link #TEAM_KEY_PREFIX} of the team holds
+ * the generation of its last preload and the date of this preload, and the key of each member, their UUID, holds the
+ * generation of each of their teams. A membership is valid only if its generation is the one of the last preload of
+ * the team, so that a preload replaces the members of the preloaded teams only: members who left the team are
+ * dropped, the other teams are kept, and the eviction of the key of the team invalidates all its members.
+ * <p/>
+ * Memberships expire {@link BitbucketSettings#preloadedMembersTtlMs()} after the preload of the team, or earlier when
+ * evicted from the cache {@link #CACHE_NAME}. Between two preloads, members who leave a team are dropped only when
+ * notified by {@link MembershipWebhook}, else they keep passing the team restriction until the membership expires.
+ */
+@ServerSide
+public class TeamMembers {
+
+  private static final Logger LOGGER = Loggers.get(TeamMembers.class);
+  private static final RateLimitedLogger RATE_LIMITED_LOGGER = new RateLimitedLogger(LOGGER);
+
+  static final String CACHE_NAME = "members";
+  static final String MEMBERS_ENDPOINT = "members";
+  // prefix of the keys of the generation of the last preload of each team
+  static final String TEAM_KEY_PREFIX = "team:";
+  static final int PAGE_LENGTH = 100;
+  /**
+   * Maximum number of teams fetched at the same time, so that authentications keep most of the threads
+   * of {@link BitbucketExecutor}
+   */
+  static final int PARALLELISM = 4;
+  private static final char SEPARATOR = '\t';
+
+  private final BitbucketSettings settings;
+  private final BitbucketCaches caches;
+  private final BitbucketExecutor executor;
+  private final System2 system2;
+
+  public TeamMembers(BitbucketSettings settings, BitbucketCaches caches, BitbucketExecutor executor, System2 system2) {
+    this.settings = settings;
+    this.caches = caches;
+    this.executor = executor;
+    this.system2 = system2;
+  }
+
+  /**
+   * @return true if the user has been preloaded as member of at least one of the teams, by a preload that
+   * is neither replaced nor expired
+   */
+  public boolean isMemberOfAny(String uuid, String[] teams) {
+    BitbucketCache cache = caches.get(CACHE_NAME);
+    Map<String, String> generations = parse(cache.get(uuid));
+    if (generations.isEmpty()) {
+      return false;
+    }
+    long minPreloadedAt = system2.now() - settings.preloadedMembersTtlMs();
+    for (String team : teams) {
+      String generation = generations.get(team);
+      if (generation != null) {
+        Preload preload = Preload.parse(cache.get(TEAM_KEY_PREFIX + team));
+        if (preload != null && preload.generation.equals(generation) && preload.preloadedAt >= minPreloadedAt) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records that the user left the team, as notified by {@link MembershipWebhook}. The user is then checked
+   * by Bitbucket on their next authentication. Synchronized so that concurrent events about the same user
+   * are not lost.
+   */
+  public synchronized void removeMember(String uuid, String team) {
+    BitbucketCache cache = caches.get(CACHE_NAME);
+    Map<String, String> generations = parse(cache.get(uuid));
+    if (generations.remove(team) != null) {
+      write(cache, uuid, generations);
+    }
+  }
+
+  /**
+   * Fetches the member lists of the teams, at most {@link #PARALLELISM} teams at the same time, then records
+   * the memberships of all the members at once.
+   *
+   * @param client client authenticated as a user allowed to read the members of the teams
+   */
+  public List<TeamResult> preload(BitbucketApiClient client, String[] teams) {
+    CompletionService<TeamResult> completion = new ExecutorCompletionService<>(executor.get());
+    List<Future<TeamResult>> futures = new ArrayList<>(teams.length);
+    Iterator<String> remaining = asList(teams).iterator();
+    List<TeamResult> results = new ArrayList<>(teams.length);
+    try {
+      while (futures.size() < PARALLELISM && remaining.hasNext()) {
+        futures.add(submit(completion, client, remaining.next()));
+      }
+      for (int i = 0; i < teams.length; i++) {
+        results.add(completion.take().get());
+        if (remaining.hasNext()) {
+          futures.add(submit(completion, client, remaining.next()));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Preloading of team members has been interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Fail to preload team members", e.getCause());
+    } finally {
+      futures.forEach(f -> f.cancel(true));
+    }
+    record(results);
+    return results;
+  }
+
+  private Future<TeamResult> submit(CompletionService<TeamResult> completion, BitbucketApiClient client, String team) {
+    return completion.submit(() -> fetch(client, team));
+  }
+
+  private TeamResult fetch(BitbucketApiClient client, String team) {
+    List<String> uuids = new ArrayList<>();
+    String url = settings.apiURL() + "2.0/teams/" + encode(team) + "/members?pagelen=" + PAGE_LENGTH;
+    while (url != null) {
+      GsonTeamMembers page = client.get(MEMBERS_ENDPOINT, url, response -> {
+        if (!response.isSuccessful()) {
+          RATE_LIMITED_LOGGER.warn("Fail to retrieve the members of Bitbucket team {}: {}", team, response.abbreviatedBody());
+          return null;
+        }
+        return GsonTeamMembers.parse(response.reader());
+      });
+      if (page == null) {
+        return new TeamResult(team, uuids, format("Fail to retrieve the members of team %s", team));
+      }
+      if (page.getMembers() != null) {
+        page.getMembers().stream().map(GsonUser::getUuid).filter(uuid -> uuid != null).forEach(uuids::add);
+      }
+      url = page.getNext();
+    }
+    return new TeamResult(team, uuids, null);
+  }
+
+  /**
+   * Only the keys of the preloaded teams and of their members are written. Synchronized with
+   * {@link #removeMember(String, String)}, so that the events of the webhook are not lost while the memberships
+   * are rewritten.
+   */
+  private synchronized void record(List<TeamResult> results) {
+    BitbucketCache cache = caches.get(CACHE_NAME);
+    Map<String, Map<String, String>> generationsByMember = new HashMap<>();
+    Map<String, Preload> preloads = new HashMap<>();
+    for (TeamResult result : results) {
+      Preload last = Preload.parse(cache.get(TEAM_KEY_PREFIX + result.team));
+      // members who left the team can't be known when it's not completely fetched, so the last preload is kept valid
+      Preload preload = result.error != null && last != null ? last : new Preload(newGeneration(), system2.now());
+      preloads.put(result.team, preload);
+      for (String uuid : result.members) {
+        generationsByMember.computeIfAbsent(uuid, u -> parse(cache.get(u))).put(result.team, preload.generation);
+      }
+    }
+    generationsByMember.forEach((uuid, generations) -> write(cache, uuid, generations));
+    // members of the previous preloads are invalidated once the new members are written
+    preloads.forEach((team, preload) -> cache.put(TEAM_KEY_PREFIX + team, preload.toBytes()));
+    LOGGER.info("Membership of {} Bitbucket users preloaded", generationsByMember.size());
+  }
+
+  private static String newGeneration() {
+    return Long.toHexString(ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * @return the generation of the preload of each team of the member
+   */
+  private static Map<String, String> parse(@Nullable byte[] bytes) {
+    Map<String, String> generations = new TreeMap<>();
+    if (bytes != null) {
+      for (String line : split(bytes)) {
+        int separator = line.indexOf(SEPARATOR);
+        if (separator > 0) {
+          generations.put(line.substring(0, separator), line.substring(separator + 1));
+        }
+      }
+    }
+    return generations;
+  }
+
+  private static void write(BitbucketCache cache, String uuid, Map<String, String> generations) {
+    if (generations.isEmpty()) {
+      cache.remove(uuid);
+      return;
+    }
+    StringBuilder value = new StringBuilder();
+    generations.forEach((team, generation) -> value.append(value.length() == 0 ? "" : "\n").append(team).append(SEPARATOR).append(generation));
+    cache.put(uuid, value.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<String> split(byte[] bytes) {
+    if (bytes.length == 0) {
+      return Collections.emptyList();
+    }
+    return asList(new String(bytes, StandardCharsets.UTF_8).split("\n"));
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Generation and date of the last preload of a team
+   */
+  private static class Preload {
+    private final String generation;
+    private final long preloadedAt;
+
+    Preload(String generation, long preloadedAt) {
+      this.generation = generation;
+      this.preloadedAt = preloadedAt;
+    }
+
+    @CheckForNull
+    static Preload parse(@Nullable byte[] bytes) {
+      if (bytes == null) {
+        return null;
+      }
+      String value = new String(bytes, StandardCharsets.UTF_8);
+      int separator = value.indexOf(SEPARATOR);
+      if (separator <= 0) {
+        return null;
+      }
+      try {
+        return new Preload(value.substring(0, separator), Long.parseLong(value.substring(separator + 1)));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    byte[] toBytes() {
+      return (generation + SEPARATOR + preloadedAt).getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  public static class TeamResult {
+    private final String team;
+    private final List<String> members;
+    private final String error;
+
+    TeamResult(String team, List<String> members, @Nullable String error) {
+      this.team = team;
+      this.members = members;
+      this.error = error;
+    }
+
+    public String getTeam() {
+      return team;
+    }
+
+    /**
+     * UUIDs of the members fetched so far
+     */
+    public List<String> getMembers() {
+      return members;
+    }
+
+    @CheckForNull
+    public String getError() {
+      return error;
+    }
+  }
+}
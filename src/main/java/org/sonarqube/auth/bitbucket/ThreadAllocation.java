@@ -0,0 +1,76 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import javax.annotation.CheckForNull;
+
+/**
+ * Number of bytes allocated in the heap by the current thread, as counted by the JVM. Requires
+ * the extension {@link com.sun.management.ThreadMXBean} of HotSpot-based JVMs. The measurement is
+ * enabled by default on HotSpot. It is never enabled by the plugin: when an administrator disables it,
+ * for example through JMX, allocations are not measured.
+ */
+final class ThreadAllocation {
+
+  @CheckForNull
+  private static final com.sun.management.ThreadMXBean THREADS = load();
+
+  private ThreadAllocation() {
+    // only static methods
+  }
+
+  /**
+   * @return the number of bytes allocated since the start of the current thread, or -1 if not supported or
+   * disabled in the JVM
+   */
+  static long allocatedBytes() {
+    if (THREADS == null || !THREADS.isThreadAllocatedMemoryEnabled()) {
+      return -1L;
+    }
+    return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * @return the number of bytes allocated by the current thread since {@code allocatedBytesAtStart}, as returned
+   * by {@link #allocatedBytes()}, or -1 if the allocations were not measured during the whole period
+   */
+  static long allocatedBytesSince(long allocatedBytesAtStart) {
+    long allocatedBytes = allocatedBytes();
+    return allocatedBytesAtStart < 0L || allocatedBytes < 0L ? -1L : (allocatedBytes - allocatedBytesAtStart);
+  }
+
+  @CheckForNull
+  private static com.sun.management.ThreadMXBean load() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (threads.isThreadAllocatedMemorySupported()) {
+          return threads;
+        }
+      }
+    } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+      // not a HotSpot-based JVM, or not allowed
+    }
+    return null;
+  }
+}
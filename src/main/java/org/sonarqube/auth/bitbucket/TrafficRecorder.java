@@ -0,0 +1,375 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.model.OAuthRequest;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Records the requests sent to Bitbucket and their responses in the file logs/bitbucket-traffic.jsonl, when
+ * enabled by {@link BitbucketSettings#recordingEnabled()}, so that they can be served again by {@link ReplayTransport}
+ * in tests and benchmarks.
+ * <p/>
+ * Exchanges are anonymized before being written: names, identifiers, emails, links and tokens are replaced by
+ * pseudonyms of the same shape (length, case, digits and UTF-8 size of each character), and only the
+ * parameters of {@link #RECORDED_PARAMS} are kept in URLs, with the quoted values of the filter {@link #FILTER_PARAM}
+ * anonymized, for example the team names of {@link MembershipFilter}. Pseudonyms are consistent within a recording, for example a
+ * team has the same pseudonym in all the responses, but they can't be matched with the real names, because they
+ * are derived from a random salt generated at server startup.
+ * <p/>
+ * Exchanges are written by the authentication threads, so recording should be enabled only for short capture sessions.
+ * It stops when the file exceeds {@link #MAX_FILE_SIZE}.
+ */
+@ServerSide
+public class TrafficRecorder {
+
+  private static final Logger LOGGER = Loggers.get(TrafficRecorder.class);
+  private static final RateLimitedLogger RATE_LIMITED_LOGGER = new RateLimitedLogger(LOGGER);
+
+  static final String FILENAME = "bitbucket-traffic.jsonl";
+  static final long MAX_FILE_SIZE = 100L * 1024 * 1024;
+  static final String FILTER_PARAM = "q";
+  static final Set<String> RECORDED_PARAMS = new HashSet<>(Arrays.asList("page", "pagelen", "role", "fields", FILTER_PARAM));
+  static final Set<String> ANONYMIZED_FIELDS = new HashSet<>(Arrays.asList("username", "nickname", "display_name", "name", "slug",
+    "uuid", "account_id", "email", "href", "website", "location", "message", "access_token", "refresh_token"));
+  private static final Set<String> LINK_FIELDS = new HashSet<>(Arrays.asList("next", "previous"));
+  private static final Set<String> PATH_PARENTS = new HashSet<>(Arrays.asList("teams", "members", "users", "workspaces"));
+  private static final Pattern QUOTED_VALUE = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private final BitbucketSettings settings;
+  private final ServerFileSystem fileSystem;
+  private final byte[] salt;
+  private long fileSize = -1L;
+
+  public TrafficRecorder(BitbucketSettings settings, ServerFileSystem fileSystem) {
+    this(settings, fileSystem, randomSalt());
+  }
+
+  TrafficRecorder(BitbucketSettings settings, ServerFileSystem fileSystem, byte[] salt) {
+    this.settings = settings;
+    this.fileSystem = fileSystem;
+    this.salt = salt.clone();
+  }
+
+  private static byte[] randomSalt() {
+    byte[] salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    return salt;
+  }
+
+  public boolean isEnabled() {
+    return settings.recordingEnabled();
+  }
+
+  /**
+   * Reads the whole response to record it. Failures to write the file are logged and ignored.
+   *
+   * @return the stream to be read instead of {@code body}, with the same content
+   */
+  public InputStream record(OAuthRequest request, int code, @Nullable String contentEncoding, @Nullable InputStream body) throws IOException {
+    byte[] raw = readFully(body);
+    String decoded = new ApiResponse(code, contentEncoding, new ByteArrayInputStream(raw)).body();
+    URI uri = URI.create(request.getCompleteUrl());
+    JsonObject exchange = new JsonObject();
+    exchange.addProperty("verb", request.getVerb().name());
+    exchange.addProperty("path", anonymizePath(uri.getRawPath()));
+    exchange.addProperty("query", recordedQuery(uri.getRawQuery(), this::anonymizeFilter));
+    exchange.addProperty("code", code);
+    exchange.add("body", anonymizeBody(decoded));
+    append(exchange.toString());
+    return new ByteArrayInputStream(raw);
+  }
+
+  File file() {
+    return new File(settings.logsDir().map(File::new).orElseGet(() -> new File(fileSystem.getHomeDir(), "logs")), FILENAME);
+  }
+
+  private synchronized void append(String line) {
+    File file = file();
+    if (fileSize < 0L) {
+      fileSize = file.length();
+    }
+    if (fileSize > MAX_FILE_SIZE) {
+      return;
+    }
+    byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+    try {
+      file.getParentFile().mkdirs();
+      try (OutputStream output = new FileOutputStream(file, true)) {
+        output.write(bytes);
+      }
+      fileSize += bytes.length;
+      if (fileSize > MAX_FILE_SIZE) {
+        LOGGER.warn("Recording of Bitbucket traffic is stopped, file {} exceeds {} bytes", file, MAX_FILE_SIZE);
+      }
+    } catch (IOException e) {
+      RATE_LIMITED_LOGGER.warn("Fail to record Bitbucket traffic in " + file, e);
+    }
+  }
+
+  /**
+   * Parameters of {@link #RECORDED_PARAMS}, sorted by name, so that requests can be matched whatever the
+   * order of their parameters
+   */
+  static String recordedQuery(@Nullable String rawQuery) {
+    return recordedQuery(rawQuery, UnaryOperator.identity());
+  }
+
+  /**
+   * @param filterAnonymizer applied to the decoded value of the parameter {@link #FILTER_PARAM}
+   */
+  private static String recordedQuery(@Nullable String rawQuery, UnaryOperator<String> filterAnonymizer) {
+    Map<String, String> params = new TreeMap<>();
+    if (rawQuery != null) {
+      for (String pair : rawQuery.split("&")) {
+        int index = pair.indexOf('=');
+        String name = index < 0 ? pair : pair.substring(0, index);
+        if (RECORDED_PARAMS.contains(name)) {
+          String value = index < 0 ? "" : pair.substring(index + 1);
+          if (FILTER_PARAM.equals(name)) {
+            // encoded again, so that requests are matched whatever the encoding of the filter
+            value = encode(filterAnonymizer.apply(decode(value)));
+          }
+          params.put(name, value);
+        }
+      }
+    }
+    StringBuilder query = new StringBuilder();
+    params.forEach((name, value) -> query.append(query.length() == 0 ? "" : "&").append(name).append('=').append(value));
+    return query.toString();
+  }
+
+  /**
+   * Anonymizes the names of teams and users in paths like /2.0/teams/{team}/members/{member}
+   */
+  String anonymizePath(String rawPath) {
+    String[] segments = rawPath.split("/", -1);
+    for (int i = 1; i < segments.length; i++) {
+      if (PATH_PARENTS.contains(segments[i - 1]) && !PATH_PARENTS.contains(segments[i]) && !segments[i].isEmpty()) {
+        segments[i] = encode(pseudonym(decode(segments[i])));
+      }
+    }
+    return String.join("/", segments);
+  }
+
+  /**
+   * Anonymizes the quoted values of a filter like {@code username="team1" OR username="team2"}
+   */
+  String anonymizeFilter(String filter) {
+    Matcher matcher = QUOTED_VALUE.matcher(filter);
+    StringBuffer result = new StringBuffer(filter.length());
+    while (matcher.find()) {
+      String anonymized = pseudonym(unescape(matcher.group(1))).replace("\\", "\\\\").replace("\"", "\\\"");
+      matcher.appendReplacement(result, Matcher.quoteReplacement("\"" + anonymized + "\""));
+    }
+    matcher.appendTail(result);
+    return result.toString();
+  }
+
+  private static String unescape(String quoted) {
+    StringBuilder result = new StringBuilder(quoted.length());
+    for (int i = 0; i < quoted.length(); i++) {
+      char c = quoted.charAt(i);
+      if (c == '\\' && i + 1 < quoted.length()) {
+        i++;
+        c = quoted.charAt(i);
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  JsonElement anonymizeBody(String body) {
+    try {
+      return anonymize(null, new JsonParser().parse(body));
+    } catch (JsonParseException e) {
+      // not JSON, for example an HTML error page of a proxy
+      return new JsonPrimitive("");
+    }
+  }
+
+  private JsonElement anonymize(@Nullable String field, JsonElement element) {
+    if (element.isJsonObject()) {
+      JsonObject anonymized = new JsonObject();
+      element.getAsJsonObject().entrySet().forEach(e -> anonymized.add(e.getKey(), anonymize(e.getKey(), e.getValue())));
+      return anonymized;
+    }
+    if (element.isJsonArray()) {
+      JsonArray anonymized = new JsonArray();
+      element.getAsJsonArray().forEach(e -> anonymized.add(anonymize(field, e)));
+      return anonymized;
+    }
+    if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString() && field != null) {
+      if (ANONYMIZED_FIELDS.contains(field)) {
+        return new JsonPrimitive(pseudonym(element.getAsString()));
+      }
+      if (LINK_FIELDS.contains(field)) {
+        return new JsonPrimitive(anonymizeLink(element.getAsString()));
+      }
+    }
+    return element;
+  }
+
+  private String anonymizeLink(String link) {
+    URI uri;
+    try {
+      uri = URI.create(link);
+    } catch (IllegalArgumentException e) {
+      return "";
+    }
+    String query = recordedQuery(uri.getRawQuery(), this::anonymizeFilter);
+    String origin = uri.getScheme() == null ? "" : (uri.getScheme() + "://" + uri.getRawAuthority());
+    return origin + anonymizePath(uri.getRawPath()) + (query.isEmpty() ? "" : ("?" + query));
+  }
+
+  /**
+   * Replaces each word of {@code value}, for example the local part and the domain labels of an email, by a word
+   * of the same shape derived from the salt. Other characters, like punctuation and spaces, are kept.
+   */
+  String pseudonym(String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    int start = -1;
+    int i = 0;
+    while (i <= value.length()) {
+      int codePoint = i < value.length() ? value.codePointAt(i) : -1;
+      boolean wordChar = codePoint >= 0 && Character.isLetterOrDigit(codePoint);
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        result.append(pseudonymOfWord(value.substring(start, i)));
+        start = -1;
+      }
+      if (codePoint >= 0 && !wordChar) {
+        result.appendCodePoint(codePoint);
+      }
+      i += codePoint >= 0 ? Character.charCount(codePoint) : 1;
+    }
+    return result.toString();
+  }
+
+  private String pseudonymOfWord(String word) {
+    byte[] random = digest(word, word.length());
+    StringBuilder result = new StringBuilder(word.length());
+    int index = 0;
+    for (int i = 0; i < word.length(); i += Character.charCount(word.codePointAt(i))) {
+      int codePoint = word.codePointAt(i);
+      int r = random[index++] & 0xFF;
+      if (codePoint >= 'a' && codePoint <= 'z') {
+        result.append((char) ('a' + r % 26));
+      } else if (codePoint >= 'A' && codePoint <= 'Z') {
+        result.append((char) ('A' + r % 26));
+      } else if (codePoint >= '0' && codePoint <= '9') {
+        result.append((char) ('0' + r % 10));
+      } else if (codePoint < 0x800) {
+        // Latin-1 lower case letters, encoded on 2 bytes, except the division sign
+        char letter = (char) (0xE0 + r % 31);
+        result.append(letter < 0xF7 ? letter : (char) (letter + 1));
+      } else if (codePoint < 0x10000) {
+        // CJK unified ideographs, encoded on 3 bytes
+        result.append((char) (0x4E00 + r));
+      } else {
+        // CJK unified ideographs extension B, encoded on 4 bytes
+        result.appendCodePoint(0x20000 + r);
+      }
+    }
+    return result.toString();
+  }
+
+  private byte[] digest(String word, int length) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      sha.update(salt);
+      byte[] seed = sha.digest(word.getBytes(StandardCharsets.UTF_8));
+      byte[] bytes = new byte[length];
+      for (int offset = 0, block = 0; offset < length; offset += seed.length, block++) {
+        sha.update(seed);
+        byte[] next = sha.digest(new byte[] {(byte) block});
+        System.arraycopy(next, 0, bytes, offset, Math.min(next.length, length - offset));
+      }
+      return bytes;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] readFully(@CheckForNull InputStream body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (body != null) {
+      try (InputStream input = body) {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+          bytes.write(buffer, 0, read);
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return s;
+    }
+  }
+}
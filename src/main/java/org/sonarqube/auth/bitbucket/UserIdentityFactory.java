@@ -19,11 +19,16 @@
  */
 package org.sonarqube.auth.bitbucket;
 
+import java.util.List;
+import java.util.Set;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import org.sonar.api.server.ServerSide;
 import org.sonar.api.server.authentication.UserIdentity;
 
 import static java.lang.String.format;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_PROVIDER_LOGIN;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_TEMPLATE;
 import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_UNIQUE;
 
 /**
@@ -32,36 +37,104 @@ import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_UNIQ
 @ServerSide
 public class UserIdentityFactory {
 
+  static final String PROVIDER_LOGIN_TEMPLATE = "{username}";
+  static final String UNIQUE_LOGIN_TEMPLATE = "{username}@{provider}";
+
   private final BitbucketSettings settings;
+  // compiled on first use and when the settings are changed
+  private volatile CompiledStrategy compiledStrategy;
+  private volatile TeamGroupMapper teamGroupMapper;
 
   public UserIdentityFactory(BitbucketSettings settings) {
     this.settings = settings;
   }
 
   public UserIdentity create(GsonUser gsonUser, @Nullable GsonEmails gsonEmails) {
-    UserIdentity.Builder builder = builder(gsonUser);
-    if (gsonEmails != null) {
-      builder.setEmail(gsonEmails.extractPrimaryEmail());
+    return create(gsonUser, gsonEmails, null);
+  }
+
+  /**
+   * @param groups the groups to be synchronized, or null if groups must not be changed
+   */
+  public UserIdentity create(GsonUser gsonUser, @Nullable GsonEmails gsonEmails, @Nullable Set<String> groups) {
+    return createWithEmail(gsonUser, gsonEmails == null ? null : gsonEmails.extractPrimaryEmail(), groups);
+  }
+
+  public UserIdentity createWithEmail(GsonUser gsonUser, @Nullable String email) {
+    return createWithEmail(gsonUser, email, null);
+  }
+
+  /**
+   * @param groups the groups to be synchronized, or null if groups must not be changed
+   */
+  public UserIdentity createWithEmail(GsonUser gsonUser, @Nullable String email, @Nullable Set<String> groups) {
+    UserIdentity.Builder builder = builder(gsonUser, email);
+    if (email != null) {
+      builder.setEmail(email);
+    }
+    if (groups != null) {
+      builder.setGroups(groups);
     }
     return builder.build();
   }
 
-  private UserIdentity.Builder builder(GsonUser gsonUser) {
+  /**
+   * Groups to be synchronized from the teams of the user, according to {@link BitbucketSettings#syncGroups()}
+   *
+   * @param teams the teams of the user, null if they could not be fetched
+   * @return null if groups must not be changed
+   */
+  @CheckForNull
+  public Set<String> groupsOf(@Nullable List<String> teams) {
+    if (teams == null || !settings.syncGroups()) {
+      return null;
+    }
+    String[] patterns = settings.syncGroupsTeams();
+    String prefix = settings.syncGroupsPrefix();
+    TeamGroupMapper mapper = teamGroupMapper;
+    if (mapper == null || !mapper.isCompiledFrom(patterns, prefix)) {
+      mapper = TeamGroupMapper.compile(patterns, prefix);
+      teamGroupMapper = mapper;
+    }
+    return mapper.groupsOf(teams);
+  }
+
+  private UserIdentity.Builder builder(GsonUser gsonUser, @Nullable String email) {
     return UserIdentity.builder()
       .setProviderId(gsonUser.getUuid())
       .setProviderLogin(gsonUser.getUsername())
-      .setLogin(generateLogin(gsonUser))
+      .setLogin(generateLogin(gsonUser, email))
       .setName(generateName(gsonUser));
   }
 
-  private String generateLogin(GsonUser gsonUser) {
-    switch (settings.loginStrategy()) {
-      case BitbucketSettings.LOGIN_STRATEGY_PROVIDER_LOGIN:
-        return gsonUser.getUsername();
+  private String generateLogin(GsonUser gsonUser, @Nullable String email) {
+    return loginTemplate().generate(gsonUser, email);
+  }
+
+  LoginTemplate loginTemplate() {
+    String strategy = settings.loginStrategy();
+    String customTemplate = LOGIN_STRATEGY_TEMPLATE.equals(strategy) ? settings.loginTemplate() : null;
+    CompiledStrategy compiled = compiledStrategy;
+    if (compiled == null || !compiled.isCompiledFrom(strategy, customTemplate)) {
+      compiled = new CompiledStrategy(strategy, customTemplate, LoginTemplate.compile(templateOf(strategy, customTemplate)));
+      compiledStrategy = compiled;
+    }
+    return compiled.template;
+  }
+
+  private static String templateOf(String strategy, @Nullable String customTemplate) {
+    switch (strategy) {
+      case LOGIN_STRATEGY_PROVIDER_LOGIN:
+        return PROVIDER_LOGIN_TEMPLATE;
       case LOGIN_STRATEGY_UNIQUE:
-        return generateUniqueLogin(gsonUser);
+        return UNIQUE_LOGIN_TEMPLATE;
+      case LOGIN_STRATEGY_TEMPLATE:
+        if (customTemplate == null || customTemplate.isEmpty()) {
+          throw new IllegalStateException(format("Login template is missing. Please define property %s", BitbucketSettings.LOGIN_TEMPLATE));
+        }
+        return customTemplate;
       default:
-        throw new IllegalStateException(format("Login strategy not supported : %s", settings.loginStrategy()));
+        throw new IllegalStateException(format("Login strategy not supported : %s", strategy));
     }
   }
 
@@ -70,7 +143,20 @@ public class UserIdentityFactory {
     return name == null || name.isEmpty() ? gson.getUsername() : name;
   }
 
-  private static String generateUniqueLogin(GsonUser gsonUser) {
-    return format("%s@%s", gsonUser.getUsername(), BitbucketIdentityProvider.KEY);
+  private static class CompiledStrategy {
+    private final String strategy;
+    @Nullable
+    private final String customTemplate;
+    private final LoginTemplate template;
+
+    CompiledStrategy(String strategy, @Nullable String customTemplate, LoginTemplate template) {
+      this.strategy = strategy;
+      this.customTemplate = customTemplate;
+      this.template = template;
+    }
+
+    boolean isCompiledFrom(String strategy, @Nullable String customTemplate) {
+      return this.strategy.equals(strategy) && (customTemplate == null ? this.customTemplate == null : customTemplate.equals(this.customTemplate));
+    }
   }
 }
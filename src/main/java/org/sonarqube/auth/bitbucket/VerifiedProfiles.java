@@ -0,0 +1,213 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+/**
+ * Keeps, for each Bitbucket user, the last identity fully verified against the Bitbucket API: email,
+ * membership to the restricted teams and synchronized groups. When the API fails after the profile
+ * of the user has been fetched, the user can be authenticated with this identity, as long as it is
+ * younger than {@link BitbucketSettings#degradedGraceMs()}, as long as the restriction of teams has not been
+ * changed since the verification and as long as the email that satisfied the restriction of email domains is
+ * still in the allowed domains.
+ */
+@ServerSide
+public class VerifiedProfiles {
+
+  static final String CACHE_NAME = "verified";
+  private static final int VERSION = 3;
+
+  private final BitbucketSettings settings;
+  private final BitbucketCaches caches;
+  private final System2 system2;
+
+  public VerifiedProfiles(BitbucketSettings settings, BitbucketCaches caches, System2 system2) {
+    this.settings = settings;
+    this.caches = caches;
+    this.system2 = system2;
+  }
+
+  /**
+   * @param allowedEmail the email that satisfied the restriction of email domains, null if emails are not restricted
+   * @param teamsRestriction the restricted teams the user has been checked against
+   */
+  public void record(UserIdentity identity, @Nullable String allowedEmail, String[] teamsRestriction) {
+    if (settings.degradedGraceMs() <= 0L || identity.getProviderId() == null) {
+      return;
+    }
+    Set<String> groups = identity.shouldSyncGroups() ? identity.getGroups() : null;
+    Profile profile = new Profile(system2.now(), identity.getEmail(), allowedEmail, sorted(teamsRestriction), groups);
+    caches.get(CACHE_NAME).put(identity.getProviderId(), profile.encode());
+  }
+
+  /**
+   * @return the profile verified during the grace window, if it satisfies the current restrictions of teams and
+   * of email domains
+   */
+  public Optional<Profile> find(String uuid, String[] teamsRestriction) {
+    long graceMs = settings.degradedGraceMs();
+    if (graceMs <= 0L) {
+      return Optional.empty();
+    }
+    byte[] bytes = caches.get(CACHE_NAME).get(uuid);
+    Profile profile = bytes == null ? null : Profile.decode(bytes);
+    if (profile == null || profile.verifiedAt + graceMs < system2.now()) {
+      return Optional.empty();
+    }
+    if (teamsRestriction.length > 0 && !Arrays.equals(profile.teamsRestriction, sorted(teamsRestriction))) {
+      // membership has been verified against other teams
+      return Optional.empty();
+    }
+    String[] emailDomains = settings.emailDomains();
+    if (emailDomains.length > 0 && !EmailDomainTrie.compile(emailDomains).accepts(profile.allowedEmail)) {
+      // emails were not restricted, or the allowed email is no longer in the allowed domains
+      return Optional.empty();
+    }
+    return Optional.of(profile);
+  }
+
+  public void remove(String uuid) {
+    caches.get(CACHE_NAME).remove(uuid);
+  }
+
+  private static String[] sorted(String[] teams) {
+    String[] copy = teams.clone();
+    Arrays.sort(copy);
+    return copy;
+  }
+
+  public static class Profile {
+    private final long verifiedAt;
+    @Nullable
+    private final String email;
+    @Nullable
+    private final String allowedEmail;
+    private final String[] teamsRestriction;
+    @Nullable
+    private final Set<String> groups;
+
+    Profile(long verifiedAt, @Nullable String email, @Nullable String allowedEmail, String[] teamsRestriction, @Nullable Set<String> groups) {
+      this.verifiedAt = verifiedAt;
+      this.email = email;
+      this.allowedEmail = allowedEmail;
+      this.teamsRestriction = teamsRestriction;
+      this.groups = groups;
+    }
+
+    public long getVerifiedAt() {
+      return verifiedAt;
+    }
+
+    @CheckForNull
+    public String getEmail() {
+      return email;
+    }
+
+    /**
+     * @return null if groups were not synchronized
+     */
+    @CheckForNull
+    public Set<String> getGroups() {
+      return groups;
+    }
+
+    byte[] encode() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      try (DataOutputStream output = new DataOutputStream(bytes)) {
+        output.writeByte(VERSION);
+        output.writeLong(verifiedAt);
+        writeNullable(output, email);
+        writeNullable(output, allowedEmail);
+        writeArray(output, teamsRestriction);
+        output.writeInt(groups == null ? -1 : groups.size());
+        if (groups != null) {
+          for (String group : groups) {
+            output.writeUTF(group);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    @CheckForNull
+    static Profile decode(byte[] bytes) {
+      try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+        if (input.readByte() != VERSION) {
+          return null;
+        }
+        long verifiedAt = input.readLong();
+        String email = input.readBoolean() ? input.readUTF() : null;
+        String allowedEmail = input.readBoolean() ? input.readUTF() : null;
+        String[] teamsRestriction = readArray(input);
+        int groupCount = input.readInt();
+        Set<String> groups = null;
+        if (groupCount >= 0) {
+          groups = new HashSet<>(groupCount);
+          for (int i = 0; i < groupCount; i++) {
+            groups.add(input.readUTF());
+          }
+        }
+        return new Profile(verifiedAt, email, allowedEmail, teamsRestriction, groups);
+      } catch (IOException e) {
+        // corrupted record
+        return null;
+      }
+    }
+
+    private static void writeArray(DataOutputStream output, String[] array) throws IOException {
+      output.writeShort(array.length);
+      for (String s : array) {
+        output.writeUTF(s);
+      }
+    }
+
+    private static String[] readArray(DataInputStream input) throws IOException {
+      String[] array = new String[input.readUnsignedShort()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = input.readUTF();
+      }
+      return array;
+    }
+
+    private static void writeNullable(DataOutputStream output, @Nullable String s) throws IOException {
+      output.writeBoolean(s != null);
+      if (s != null) {
+        output.writeUTF(s);
+      }
+    }
+  }
+}
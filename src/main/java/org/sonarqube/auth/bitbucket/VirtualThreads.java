@@ -0,0 +1,47 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual threads are available since Java 21. This is the implementation for older JVMs, replaced
+ * on Java 21+ by src/main/java21 in the multi-release jar.
+ */
+final class VirtualThreads {
+
+  private VirtualThreads() {
+    // only static methods
+  }
+
+  static boolean isSupported() {
+    return false;
+  }
+
+  /**
+   * Executor starting a new virtual thread for each task. As virtual threads are not available, tasks run
+   * on a bounded pool of platform threads instead, see {@link BitbucketExecutor#newPlatformExecutor(String)}.
+   *
+   * @param prefix prefix of the names of the threads
+   */
+  static ExecutorService newExecutor(String prefix) {
+    return BitbucketExecutor.newPlatformExecutor(prefix);
+  }
+}
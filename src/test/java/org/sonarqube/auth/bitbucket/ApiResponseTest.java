@@ -0,0 +1,92 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ApiResponseTest {
+
+  private static final String JSON = "{\"username\":\"john\", \"display_name\":\"John\"}";
+
+  @Test
+  public void read_uncompressed_body() {
+    byte[] bytes = JSON.getBytes(StandardCharsets.UTF_8);
+    ApiResponse underTest = new ApiResponse(200, null, new ByteArrayInputStream(bytes));
+
+    assertThat(underTest.body()).isEqualTo(JSON);
+    assertThat(underTest.bytesReceived()).isEqualTo(bytes.length);
+  }
+
+  @Test
+  public void decompress_gzip_body() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    write(new GZIPOutputStream(compressed), JSON);
+    ApiResponse underTest = new ApiResponse(200, "gzip", new ByteArrayInputStream(compressed.toByteArray()));
+
+    assertThat(GsonUser.parse(underTest.reader()).getUsername()).isEqualTo("john");
+    assertThat(underTest.bytesReceived()).isEqualTo(compressed.size());
+  }
+
+  @Test
+  public void decompress_deflate_body() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    write(new DeflaterOutputStream(compressed), JSON);
+    ApiResponse underTest = new ApiResponse(200, "deflate", new ByteArrayInputStream(compressed.toByteArray()));
+
+    assertThat(underTest.body()).isEqualTo(JSON);
+  }
+
+  @Test
+  public void abbreviate_long_body() {
+    String html = "<html>" + String.join("", Collections.nCopies(2000, "Bad gateway")) + "</html>";
+    byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+
+    assertThat(new ApiResponse(502, null, new ByteArrayInputStream(bytes)).abbreviatedBody())
+      .hasSize(ApiResponse.ABBREVIATED_BODY_LENGTH + 3)
+      .startsWith("<html>Bad gateway")
+      .endsWith("...");
+    assertThat(new ApiResponse(400, null, new ByteArrayInputStream(JSON.getBytes(StandardCharsets.UTF_8))).abbreviatedBody()).isEqualTo(JSON);
+  }
+
+  @Test
+  public void body_is_empty_if_no_stream() {
+    ApiResponse underTest = new ApiResponse(500, null, null);
+
+    assertThat(underTest.isSuccessful()).isFalse();
+    assertThat(underTest.body()).isEmpty();
+    assertThat(underTest.bytesReceived()).isZero();
+  }
+
+  private static void write(OutputStream output, String s) throws IOException {
+    try (OutputStream o = output) {
+      o.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
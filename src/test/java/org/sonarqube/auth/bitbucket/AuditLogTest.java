@@ -0,0 +1,159 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuditLogTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private System2 system2 = mock(System2.class);
+
+  @Test
+  public void write_events_to_file_in_logs_directory() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.audit.enabled", true);
+    when(system2.now()).thenReturn(0L);
+    AuditLog underTest = new AuditLog(bitbucketSettings, mock(ServerFileSystem.class), metrics, system2);
+
+    underTest.authenticated("{abcd}", "john@bitbucket");
+    underTest.teamDenied("{efgh}", "jane");
+    underTest.upstreamError(null, null, "Can not get Bitbucket user profile.\nHTTP code: 500");
+    underTest.stop();
+
+    List<String> lines = Files.readAllLines(new File(logsDir, "bitbucket-audit.log").toPath(), StandardCharsets.UTF_8);
+    assertThat(lines).containsExactly(
+      "1970-01-01T00:00:00Z\tAUTHENTICATED\t{abcd}\tjohn@bitbucket\t-",
+      "1970-01-01T00:00:00Z\tTEAM_DENIED\t{efgh}\tjane\t-",
+      "1970-01-01T00:00:00Z\tUPSTREAM_ERROR\t-\t-\tCan not get Bitbucket user profile. HTTP code: 500");
+    assertThat(metrics.droppedAuditEvents()).isZero();
+  }
+
+  @Test
+  public void do_nothing_if_disabled() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    AuditLog underTest = new AuditLog(bitbucketSettings, mock(ServerFileSystem.class), metrics, system2);
+
+    underTest.authenticated("{abcd}", "john@bitbucket");
+    underTest.stop();
+
+    assertThat(logsDir.listFiles()).isEmpty();
+  }
+
+  @Test
+  public void write_pending_events_on_release_and_restart_writer_on_next_event() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.audit.enabled", true);
+    when(system2.now()).thenReturn(0L);
+    AuditLog underTest = new AuditLog(bitbucketSettings, mock(ServerFileSystem.class), metrics, system2);
+    assertThat(underTest.isActive()).isFalse();
+
+    underTest.authenticated("{abcd}", "john@bitbucket");
+    assertThat(underTest.isActive()).isTrue();
+    underTest.release();
+    assertThat(underTest.isActive()).isFalse();
+    underTest.teamDenied("{efgh}", "jane");
+    underTest.stop();
+
+    List<String> lines = Files.readAllLines(new File(logsDir, "bitbucket-audit.log").toPath(), StandardCharsets.UTF_8);
+    assertThat(lines).containsExactly(
+      "1970-01-01T00:00:00Z\tAUTHENTICATED\t{abcd}\tjohn@bitbucket\t-",
+      "1970-01-01T00:00:00Z\tTEAM_DENIED\t{efgh}\tjane\t-");
+    assertThat(underTest.isActive()).isFalse();
+  }
+
+  @Test
+  public void write_or_count_as_dropped_events_recorded_during_release() throws Exception {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.audit.enabled", true);
+    AuditLog underTest = new AuditLog(bitbucketSettings, mock(ServerFileSystem.class), metrics, system2);
+    List<Thread> producers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      producers.add(new Thread(() -> {
+        for (int j = 0; j < 5_000; j++) {
+          underTest.authenticated("{abcd}", "john@bitbucket");
+        }
+      }));
+    }
+
+    producers.forEach(Thread::start);
+    while (producers.stream().anyMatch(Thread::isAlive)) {
+      underTest.release();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    underTest.stop();
+
+    List<String> lines = Files.readAllLines(new File(logsDir, "bitbucket-audit.log").toPath(), StandardCharsets.UTF_8);
+    assertThat(lines.size() + metrics.droppedAuditEvents()).isEqualTo(20_000L);
+  }
+
+  @Test
+  public void default_location_is_logs_directory_of_sonarqube_home() throws IOException {
+    ServerFileSystem fileSystem = mock(ServerFileSystem.class);
+    File home = temp.newFolder();
+    when(fileSystem.getHomeDir()).thenReturn(home);
+
+    AuditLog underTest = new AuditLog(bitbucketSettings, fileSystem, metrics, system2);
+
+    assertThat(underTest.file()).isEqualTo(new File(home, "logs/bitbucket-audit.log"));
+  }
+
+  @Test
+  public void count_dropped_events_when_buffer_is_full() throws IOException {
+    settings.setProperty("sonar.path.logs", temp.newFolder().getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.audit.enabled", true);
+    AuditLog underTest = new AuditLog(bitbucketSettings, mock(ServerFileSystem.class), metrics, system2, 2);
+
+    for (int i = 0; i < 10_000; i++) {
+      underTest.authenticated("{abcd}", "john@bitbucket");
+    }
+    underTest.stop();
+
+    // writer thread may not have drained the buffer between events
+    assertThat(metrics.droppedAuditEvents()).isPositive();
+  }
+}
@@ -37,7 +37,7 @@ public class AuthBitbucketPluginTest {
   @Test
   public void test_extensions() {
     underTest.define(context);
-    assertThat(context.getExtensions()).hasSize(11);
+    assertThat(context.getExtensions()).hasSize(50);
   }
 
 }
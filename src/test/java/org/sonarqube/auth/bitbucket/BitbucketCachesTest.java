@@ -0,0 +1,186 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class BitbucketCachesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketCaches underTest = new BitbucketCaches(new BitbucketSettings(settings.asConfig()), mock(ServerFileSystem.class), System2.INSTANCE);
+
+  @Test
+  public void use_heap_backend_by_default() {
+    BitbucketCache cache = underTest.get("profiles");
+
+    assertThat(underTest.instanceOf("profiles")).isInstanceOf(HeapLruCache.class);
+    assertThat(underTest.get("profiles")).isSameAs(cache);
+    assertThat(underTest.all()).containsOnlyKeys("profiles");
+  }
+
+  @Test
+  public void concurrent_lookups_share_the_same_cache() throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    try {
+      List<Callable<BitbucketCache>> lookups = IntStream.range(0, 100).mapToObj(i -> (Callable<BitbucketCache>) () -> underTest.instanceOf("profiles"))
+        .collect(Collectors.toList());
+      List<BitbucketCache> caches = threads.invokeAll(lookups).stream().map(BitbucketCachesTest::get).distinct().collect(Collectors.toList());
+
+      assertThat(caches).hasSize(1);
+      assertThat(underTest.all()).containsOnlyKeys("profiles");
+    } finally {
+      threads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void use_file_backend_in_data_directory() throws IOException {
+    File dataDir = temp.newFolder();
+    settings.setProperty("sonar.path.data", dataDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.cache.backend", BitbucketSettings.CACHE_BACKEND_FILE);
+
+    BitbucketCache cache = underTest.get("profiles");
+    cache.put("foo", new byte[] {1});
+
+    assertThat(underTest.instanceOf("profiles")).isInstanceOf(MappedFileCache.class);
+    assertThat(new File(dataDir, "authbitbucket/profiles.cache")).isFile();
+    underTest.stop();
+  }
+
+  @Test
+  public void recreate_caches_when_backend_is_changed() throws IOException {
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+    BitbucketCache heap = underTest.instanceOf("profiles");
+
+    settings.setProperty("sonar.auth.bitbucket.cache.backend", BitbucketSettings.CACHE_BACKEND_FILE);
+
+    assertThat(underTest.instanceOf("profiles")).isNotSameAs(heap).isInstanceOf(MappedFileCache.class);
+    underTest.stop();
+    assertThat(underTest.all()).isEmpty();
+  }
+
+  @Test
+  public void reopen_cache_on_first_use_after_release() throws IOException {
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.cache.backend", BitbucketSettings.CACHE_BACKEND_FILE);
+    BitbucketCache cache = underTest.get("profiles");
+    cache.put("{john}", new byte[] {1});
+    BitbucketCache released = underTest.instanceOf("profiles");
+
+    underTest.release();
+    assertThat(underTest.all()).isEmpty();
+
+    // the cache kept by caller uses a new instance
+    assertThat(cache.get("{john}")).containsExactly(1);
+    assertThat(underTest.instanceOf("profiles")).isNotSameAs(released);
+    assertThat(underTest.all()).containsOnlyKeys("profiles");
+    underTest.stop();
+  }
+
+  @Test
+  public void keep_a_single_instance_per_file_when_released_during_operations() throws Exception {
+    File dataDir = temp.newFolder();
+    settings.setProperty("sonar.path.data", dataDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.cache.backend", BitbucketSettings.CACHE_BACKEND_FILE);
+    BitbucketCache cache = underTest.get("profiles");
+    ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> writers = IntStream.range(0, 4).mapToObj(t -> threads.submit(() -> {
+        for (int i = 0; i < 500; i++) {
+          cache.put(t + "-" + i, new byte[] {(byte) i});
+        }
+      })).collect(Collectors.toList());
+      while (writers.stream().anyMatch(w -> !w.isDone())) {
+        underTest.release();
+      }
+      writers.forEach(BitbucketCachesTest::get);
+    } finally {
+      threads.shutdownNow();
+    }
+    underTest.stop();
+
+    MappedFileCache reopened = new MappedFileCache(new File(dataDir, "authbitbucket/profiles.cache"), settings.asConfig().getInt("sonar.auth.bitbucket.cache.maxSizeInMB").get() * 1024 * 1024,
+      60_000L, System2.INSTANCE);
+    assertThat(reopened.size()).isEqualTo(2_000);
+    assertThat(reopened.get("3-499")).containsExactly((byte) 499);
+    reopened.close();
+  }
+
+  @Test
+  public void evict_key_from_all_caches() {
+    underTest.get("profiles").put("{john}", new byte[] {1});
+    underTest.get("profiles").put("{jane}", new byte[] {2});
+    underTest.get("members").put("{john}", new byte[] {3});
+
+    underTest.evict("{john}");
+
+    assertThat(underTest.get("profiles").get("{john}")).isNull();
+    assertThat(underTest.get("profiles").get("{jane}")).isNotNull();
+    assertThat(underTest.get("members").get("{john}")).isNull();
+
+    underTest.evictAll();
+    assertThat(underTest.get("profiles").size()).isZero();
+  }
+
+  @Test
+  public void evict_key_from_cache_files_not_opened_since_startup() throws IOException {
+    File dataDir = temp.newFolder();
+    settings.setProperty("sonar.path.data", dataDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.cache.backend", BitbucketSettings.CACHE_BACKEND_FILE);
+    underTest.get("profiles").put("{john}", new byte[] {1});
+    underTest.stop();
+
+    BitbucketCaches restarted = new BitbucketCaches(new BitbucketSettings(settings.asConfig()), mock(ServerFileSystem.class), System2.INSTANCE);
+    restarted.evict("{john}");
+
+    assertThat(restarted.all()).containsOnlyKeys("profiles");
+    assertThat(restarted.get("profiles").get("{john}")).isNull();
+    restarted.stop();
+  }
+
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class BitbucketExecutorTest {
+
+  @Test
+  public void use_virtual_threads_when_supported_by_jvm() {
+    BitbucketExecutor underTest = new BitbucketExecutor();
+
+    assertThat(underTest.usesVirtualThreads()).isEqualTo(VirtualThreads.isSupported());
+    underTest.stop();
+  }
+
+  @Test
+  public void bounded_platform_threads() throws Exception {
+    BitbucketExecutor underTest = new BitbucketExecutor(false);
+
+    ExecutorService executor = underTest.get();
+    Future<String> threadName = executor.submit(() -> Thread.currentThread().getName());
+
+    assertThat(threadName.get()).startsWith("bitbucket-io-");
+    assertThat(underTest.parallelism()).isEqualTo(BitbucketExecutor.MAX_THREADS);
+    underTest.stop();
+    assertThat(executor.isShutdown()).isTrue();
+    assertThat(underTest.isActive()).isFalse();
+  }
+
+  @Test
+  public void create_executor_on_first_use_and_again_after_release() {
+    BitbucketExecutor underTest = new BitbucketExecutor(false);
+    underTest.start();
+    assertThat(underTest.isActive()).isFalse();
+
+    ExecutorService executor = underTest.get();
+    assertThat(underTest.isActive()).isTrue();
+    assertThat(underTest.get()).isSameAs(executor);
+
+    underTest.release();
+    assertThat(underTest.isActive()).isFalse();
+    assertThat(executor.isShutdown()).isTrue();
+    assertThat(underTest.get()).isNotSameAs(executor);
+    underTest.stop();
+  }
+
+  @Test
+  public void unbounded_virtual_threads() throws Exception {
+    assumeTrue(VirtualThreads.isSupported());
+    BitbucketExecutor underTest = new BitbucketExecutor(true);
+
+    Future<String> threadName = underTest.get().submit(() -> Thread.currentThread().getName());
+
+    assertThat(threadName.get()).startsWith("bitbucket-io-");
+    assertThat(underTest.parallelism()).isEqualTo(Integer.MAX_VALUE);
+    underTest.stop();
+  }
+
+  @Test
+  public void fall_back_to_platform_threads_when_virtual_threads_are_not_supported() throws Exception {
+    assumeFalse(VirtualThreads.isSupported());
+    ExecutorService executor = VirtualThreads.newExecutor("test-");
+
+    Future<String> threadName = executor.submit(() -> Thread.currentThread().getName());
+
+    assertThat(threadName.get()).startsWith("test-");
+    executor.shutdownNow();
+  }
+}
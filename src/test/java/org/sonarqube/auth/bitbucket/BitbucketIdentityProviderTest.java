@@ -25,6 +25,7 @@ import org.junit.rules.ExpectedException;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.utils.System2;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -41,7 +42,9 @@ public class BitbucketIdentityProviderTest {
   private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
   private UserIdentityFactory userIdentityFactory = mock(UserIdentityFactory.class);
   private BitbucketScribeApi scribeApi = new BitbucketScribeApi(bitbucketSettings);
-  private BitbucketIdentityProvider underTest = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, scribeApi);
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private BitbucketIdentityProvider underTest = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, scribeApi, new HttpTransport(), metrics,
+    mock(AuditLog.class), mock(AuthenticationPipeline.class), System2.INSTANCE);
 
   @Test
   public void check_fields() {
@@ -0,0 +1,176 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BitbucketProbeTest {
+
+  @Rule
+  public MockWebServer bitbucket = new MockWebServer();
+
+  private System2 system2 = mock(System2.class);
+  private BitbucketProbe underTest = new BitbucketProbe(system2);
+
+  @Test
+  public void measure_steps_of_request() throws Exception {
+    bitbucket.enqueue(new MockResponse().setResponseCode(302));
+    String url = bitbucket.url("/").toString();
+
+    BitbucketProbe.Result result = underTest.probe(url);
+
+    assertThat(result.isReachable()).isTrue();
+    assertThat(result.getError()).isNull();
+    assertThat(result.getUrl()).isEqualTo(url);
+    assertThat(result.getStatus()).isEqualTo(302);
+    assertThat(result.getDnsMs()).isGreaterThanOrEqualTo(0L);
+    assertThat(result.getConnectMs()).isGreaterThanOrEqualTo(0L);
+    assertThat(result.getFirstByteMs()).isGreaterThanOrEqualTo(0L);
+    // no TLS
+    assertThat(result.getTlsMs()).isEqualTo(-1L);
+    assertThat(bitbucket.takeRequest().getMethod()).isEqualTo("HEAD");
+  }
+
+  @Test
+  public void probe_through_proxy_of_jvm() throws Exception {
+    bitbucket.enqueue(new MockResponse().setResponseCode(200));
+    ProxySelector defaultSelector = ProxySelector.getDefault();
+    ProxySelector.setDefault(new ProxySelector() {
+      @Override
+      public List<Proxy> select(URI uri) {
+        return Collections.singletonList(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(bitbucket.getHostName(), bitbucket.getPort())));
+      }
+
+      @Override
+      public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+        // nothing to do
+      }
+    });
+    try {
+      // host can't be resolved, only the proxy can reach it
+      BitbucketProbe.Result result = underTest.probe("http://bitbucket.invalid/");
+
+      assertThat(result.isReachable()).isTrue();
+      assertThat(result.getStatus()).isEqualTo(200);
+      assertThat(result.getDnsMs()).isEqualTo(-1L);
+      assertThat(result.getConnectMs()).isGreaterThanOrEqualTo(0L);
+      assertThat(bitbucket.takeRequest().getRequestLine()).isEqualTo("HEAD http://bitbucket.invalid/ HTTP/1.1");
+    } finally {
+      ProxySelector.setDefault(defaultSelector);
+    }
+  }
+
+  @Test
+  public void probe_results_are_cached() {
+    bitbucket.enqueue(new MockResponse().setResponseCode(200));
+    bitbucket.enqueue(new MockResponse().setResponseCode(503));
+    String url = bitbucket.url("/").toString();
+
+    when(system2.now()).thenReturn(1_000L);
+    assertThat(underTest.probe(url).getStatus()).isEqualTo(200);
+    when(system2.now()).thenReturn(1_000L + BitbucketProbe.CACHE_DURATION_MS - 1);
+    assertThat(underTest.probe(url).getStatus()).isEqualTo(200);
+    assertThat(bitbucket.getRequestCount()).isEqualTo(1);
+
+    when(system2.now()).thenReturn(1_000L + BitbucketProbe.CACHE_DURATION_MS);
+    assertThat(underTest.probe(url).getStatus()).isEqualTo(503);
+    assertThat(bitbucket.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void concurrent_probes_of_same_url_send_a_single_request() throws InterruptedException {
+    AtomicInteger requests = new AtomicInteger();
+    bitbucket.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        requests.incrementAndGet();
+        Thread.sleep(200L);
+        return new MockResponse().setResponseCode(200);
+      }
+    });
+    String url = bitbucket.url("/").toString();
+    // not a mock, stubs of Mockito are not reliable when called concurrently
+    BitbucketProbe probe = new BitbucketProbe(new System2() {
+      @Override
+      public long now() {
+        return 1_000L;
+      }
+    });
+    Queue<BitbucketProbe.Result> results = new ConcurrentLinkedQueue<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread(() -> results.add(probe.probe(url))));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(requests.get()).isEqualTo(1);
+    assertThat(results).hasSize(8).allMatch(result -> result.getStatus() == 200);
+  }
+
+  @Test
+  public void report_connection_failure() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+
+    BitbucketProbe.Result result = underTest.probe("http://localhost:" + port + "/");
+
+    assertThat(result.isReachable()).isFalse();
+    assertThat(result.getError()).startsWith("ConnectException");
+    assertThat(result.getDnsMs()).isGreaterThanOrEqualTo(0L);
+    assertThat(result.getConnectMs()).isEqualTo(-1L);
+    assertThat(result.getStatus()).isEqualTo(-1);
+  }
+
+  @Test
+  public void report_invalid_url() {
+    BitbucketProbe.Result result = underTest.probe("not an url");
+
+    assertThat(result.isReachable()).isFalse();
+    assertThat(result.getError()).startsWith("MalformedURLException");
+  }
+}
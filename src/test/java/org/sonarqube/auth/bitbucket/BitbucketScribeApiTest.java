@@ -19,7 +19,6 @@
  */
 package org.sonarqube.auth.bitbucket;
 
-import com.github.scribejava.core.extractors.JsonTokenExtractor;
 import com.github.scribejava.core.model.OAuthConfig;
 import com.github.scribejava.core.model.Verb;
 import org.junit.Test;
@@ -54,6 +53,6 @@ public class BitbucketScribeApiTest {
 
   @Test
   public void getAccessTokenExtractor() {
-    assertThat(underTest.getAccessTokenExtractor()).isInstanceOf(JsonTokenExtractor.class);
+    assertThat(underTest.getAccessTokenExtractor()).isInstanceOf(BitbucketTokenExtractor.class);
   }
 }
@@ -117,9 +117,28 @@ public class BitbucketSettingsTest {
     assertThat(underTest.webURL()).isEqualTo("https://bitbucket.org/");
   }
 
+  @Test
+  public void default_cache_settings() {
+    assertThat(underTest.cacheBackend()).isEqualTo(BitbucketSettings.CACHE_BACKEND_MEMORY);
+    assertThat(underTest.cacheTtlMs()).isEqualTo(60 * 60 * 1000L);
+    assertThat(underTest.cacheMaxSizeInBytes()).isEqualTo(16 * 1024 * 1024);
+    assertThat(underTest.dataDir()).isEmpty();
+  }
+
+  @Test
+  public void configure_cache() {
+    settings.setProperty("sonar.auth.bitbucket.cache.backend", BitbucketSettings.CACHE_BACKEND_FILE);
+    settings.setProperty("sonar.auth.bitbucket.cache.ttlInMinutes", 2);
+    settings.setProperty("sonar.auth.bitbucket.cache.maxSizeInMB", 1);
+
+    assertThat(underTest.cacheBackend()).isEqualTo(BitbucketSettings.CACHE_BACKEND_FILE);
+    assertThat(underTest.cacheTtlMs()).isEqualTo(2 * 60 * 1000L);
+    assertThat(underTest.cacheMaxSizeInBytes()).isEqualTo(1024 * 1024);
+  }
+
   @Test
   public void definitions() {
-    assertThat(BitbucketSettings.definitions()).hasSize(7);
+    assertThat(BitbucketSettings.definitions()).hasSize(24);
   }
 
 }
@@ -0,0 +1,111 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.exceptions.OAuthException;
+import java.io.StringReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BitbucketTokenExtractorTest {
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  @Test
+  public void extract_token_expiry_refresh_token_and_scopes() {
+    BitbucketToken token = BitbucketTokenExtractor.extract(new StringReader("{\"access_token\":\"the_token\"," +
+      "\"scopes\":\"account email team\",\"expires_in\":7200,\"refresh_token\":\"the_refresh_token\",\"token_type\":\"bearer\"," +
+      "\"extra\":{\"ignored\":[1,2]}}"));
+
+    assertThat(token.getToken()).isEqualTo("the_token");
+    assertThat(token.getExpiresInSeconds()).isEqualTo(7200L);
+    assertThat(token.getRefreshToken()).isEqualTo("the_refresh_token");
+    assertThat(token.getScopes()).containsExactly("account", "email", "team");
+    assertThat(token.hasScope("team")).isTrue();
+    assertThat(token.hasScope("repository")).isFalse();
+  }
+
+  @Test
+  public void all_scopes_are_considered_granted_if_not_returned() {
+    BitbucketToken token = BitbucketTokenExtractor.extract(new StringReader("{\"access_token\":\"the_token\",\"expires_in\":null}"));
+
+    assertThat(token.getExpiresInSeconds()).isEqualTo(-1L);
+    assertThat(token.getRefreshToken()).isNull();
+    assertThat(token.getScopes()).isNull();
+    assertThat(token.hasScope("team")).isTrue();
+  }
+
+  @Test
+  public void write_scopes_imply_read_scopes() {
+    BitbucketToken token = BitbucketTokenExtractor.extract(new StringReader("{\"access_token\":\"the_token\"," +
+      "\"scopes\":\"account:write email team:write repository:admin\"}"));
+
+    assertThat(token.hasScope("team")).isTrue();
+    assertThat(token.hasScope("team:write")).isTrue();
+    assertThat(token.hasScope("account")).isTrue();
+    assertThat(token.hasScope("email")).isTrue();
+    assertThat(token.hasScope("repository")).isFalse();
+    assertThat(token.hasScope("pullrequest")).isFalse();
+  }
+
+  @Test
+  public void read_scopes_do_not_imply_write_scopes() {
+    BitbucketToken token = BitbucketTokenExtractor.extract(new StringReader("{\"access_token\":\"the_token\",\"scopes\":\"team\"}"));
+
+    assertThat(token.hasScope("team")).isTrue();
+    assertThat(token.hasScope("team:write")).isFalse();
+  }
+
+  @Test
+  public void implement_scribe_extractor() {
+    BitbucketToken token = (BitbucketToken) new BitbucketTokenExtractor().extract("{\"scopes\":\"account  email\",\"access_token\":\"the_token\"}");
+
+    assertThat(token.getToken()).isEqualTo("the_token");
+    assertThat(token.getScopes()).containsExactly("account", "email");
+  }
+
+  @Test
+  public void fail_with_error_returned_by_bitbucket() {
+    expectedException.expect(OAuthException.class);
+    expectedException.expectMessage("Bitbucket returned no access token: invalid_grant (The code has expired)");
+
+    BitbucketTokenExtractor.extract(new StringReader("{\"error\":\"invalid_grant\",\"error_description\":\"The code has expired\"}"));
+  }
+
+  @Test
+  public void fail_if_token_is_missing() {
+    expectedException.expect(OAuthException.class);
+    expectedException.expectMessage("Bitbucket returned no access token");
+
+    BitbucketTokenExtractor.extract(new StringReader("{}"));
+  }
+
+  @Test
+  public void fail_if_response_is_malformed() {
+    expectedException.expect(OAuthException.class);
+    expectedException.expectMessage("Fail to parse the access token returned by Bitbucket");
+
+    BitbucketTokenExtractor.extract(new StringReader("access_token=the_token"));
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CachesActionTest {
+
+  private static final String ADMIN = "{\"login\":\"admin\",\"isLoggedIn\":true,\"permissions\":{\"global\":[\"admin\"]}}";
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private System2 system2 = mock(System2.class);
+  private BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), system2);
+  private CachesAction underTest = new CachesAction(bitbucketSettings, caches, system2);
+
+  @Test
+  public void define_ws() {
+    WebService.Context context = new WebService.Context();
+    new BitbucketWs(underTest).define(context);
+
+    WebService.Action action = context.controller("api/authbitbucket").action("caches");
+    assertThat(action).isNotNull();
+    assertThat(action.isPost()).isFalse();
+    assertThat(action.responseExampleAsString()).isNotEmpty();
+  }
+
+  @Test
+  public void report_stats_of_caches() {
+    when(system2.now()).thenReturn(10_000L);
+    BitbucketCache fingerprints = caches.get("fingerprints");
+    fingerprints.put("{john}", new byte[] {1});
+    fingerprints.get("{john}");
+    fingerprints.get("{john}");
+    fingerprints.get("{john}");
+    fingerprints.get("{jane}");
+    // opened by its first operation
+    caches.get("verified").size();
+    when(system2.now()).thenReturn(12_500L);
+    StringWriter json = new StringWriter();
+
+    underTest.handle(newRequest(), newResponse(json));
+
+    assertThat(json.toString()).isEqualTo("{\"backend\":\"Memory\",\"ttlMs\":3600000,\"caches\":[" +
+      "{\"name\":\"fingerprints\",\"size\":1,\"weight\":77,\"hits\":3,\"misses\":1,\"hitRatio\":0.75,\"missRatio\":0.25,\"evictions\":0,\"oldestEntryAge\":2500}," +
+      "{\"name\":\"verified\",\"size\":0,\"weight\":0,\"hits\":0,\"misses\":0,\"hitRatio\":0.0,\"missRatio\":0.0,\"evictions\":0,\"oldestEntryAge\":-1}]}");
+  }
+
+  private static Response newResponse(StringWriter json) {
+    Response response = mock(Response.class);
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+    return response;
+  }
+
+  private static Request newRequest() {
+    LocalConnector.LocalResponse localResponse = mock(LocalConnector.LocalResponse.class);
+    when(localResponse.getStatus()).thenReturn(200);
+    when(localResponse.getBytes()).thenReturn(ADMIN.getBytes(StandardCharsets.UTF_8));
+    LocalConnector connector = mock(LocalConnector.class);
+    when(connector.call(any())).thenReturn(localResponse);
+    Request request = mock(Request.class);
+    when(request.localConnector()).thenReturn(connector);
+    return request;
+  }
+}
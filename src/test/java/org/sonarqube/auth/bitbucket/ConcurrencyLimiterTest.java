@@ -0,0 +1,135 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sonarqube.auth.bitbucket.ConcurrencyLimiter.INITIAL_LIMIT;
+import static org.sonarqube.auth.bitbucket.ConcurrencyLimiter.MIN_LIMIT;
+
+public class ConcurrencyLimiterTest {
+
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private System2 system2 = mock(System2.class);
+  private ConcurrencyLimiter underTest = new ConcurrencyLimiter(metrics, system2);
+
+  @Test
+  public void reject_when_limit_is_reached() {
+    List<ConcurrencyLimiter.Permit> permits = acquire(INITIAL_LIMIT);
+
+    assertThat(underTest.inFlight()).isEqualTo(INITIAL_LIMIT);
+    assertThat(underTest.tryAcquire()).isNull();
+    assertThat(metrics.rejectedCallbacks()).isEqualTo(1);
+
+    permits.get(0).onSuccess();
+    assertThat(underTest.tryAcquire()).isNotNull();
+  }
+
+  @Test
+  public void release_permit_only_once() {
+    ConcurrencyLimiter.Permit permit = underTest.tryAcquire();
+
+    permit.onFailure();
+    permit.onSuccess();
+
+    assertThat(underTest.inFlight()).isZero();
+  }
+
+  @Test
+  public void increase_limit_when_latency_is_stable_and_limit_is_used() {
+    when(system2.now()).thenReturn(0L);
+    List<ConcurrencyLimiter.Permit> permits = acquire(INITIAL_LIMIT);
+    when(system2.now()).thenReturn(100L);
+
+    permits.forEach(ConcurrencyLimiter.Permit::onSuccess);
+
+    // the first half of permits were acquired when less than half of the limit was used
+    assertThat(underTest.limit()).isGreaterThan(INITIAL_LIMIT);
+    assertThat(metrics.concurrencyLimit()).isEqualTo(underTest.limit());
+  }
+
+  @Test
+  public void do_not_increase_limit_when_barely_used() {
+    for (int i = 0; i < 100; i++) {
+      when(system2.now()).thenReturn(i * 1000L);
+      ConcurrencyLimiter.Permit permit = underTest.tryAcquire();
+      when(system2.now()).thenReturn(i * 1000L + 100L);
+      permit.onSuccess();
+    }
+
+    assertThat(underTest.limit()).isEqualTo(INITIAL_LIMIT);
+  }
+
+  @Test
+  public void decrease_limit_when_latency_increases() {
+    completeIn(100L);
+    completeIn(150L);
+    assertThat(underTest.limit()).isEqualTo(INITIAL_LIMIT);
+
+    completeIn(500L);
+
+    assertThat(underTest.limit()).isEqualTo(18);
+    assertThat(metrics.concurrencyLimit()).isEqualTo(18);
+  }
+
+  @Test
+  public void decrease_limit_on_failures_down_to_minimum() {
+    for (int i = 0; i < 100; i++) {
+      underTest.tryAcquire().onFailure();
+    }
+
+    assertThat(underTest.limit()).isEqualTo(MIN_LIMIT);
+    assertThat(underTest.tryAcquire()).isNotNull();
+    assertThat(underTest.tryAcquire()).isNotNull();
+    assertThat(underTest.tryAcquire()).isNull();
+  }
+
+  @Test
+  public void baseline_expires() {
+    completeIn(10L);
+    when(system2.now()).thenReturn(ConcurrencyLimiter.BASELINE_WINDOW_MS + 1L);
+    // the new baseline is 100ms, so that 150ms is not considered as slow
+    completeIn(100L);
+    completeIn(150L);
+
+    assertThat(underTest.limit()).isEqualTo(INITIAL_LIMIT);
+  }
+
+  private void completeIn(long rtt) {
+    long now = system2.now();
+    ConcurrencyLimiter.Permit permit = underTest.tryAcquire();
+    when(system2.now()).thenReturn(now + rtt);
+    permit.onSuccess();
+  }
+
+  private List<ConcurrencyLimiter.Permit> acquire(int count) {
+    List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      permits.add(underTest.tryAcquire());
+    }
+    return permits;
+  }
+}
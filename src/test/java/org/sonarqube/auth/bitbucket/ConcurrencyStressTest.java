@@ -0,0 +1,367 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Parameter;
+import com.github.scribejava.core.model.Token;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static java.lang.String.format;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.CONSUMER_KEY;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.GROUPS_SYNC_PREFIX;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_PROVIDER_LOGIN;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_TEMPLATE;
+import static org.sonarqube.auth.bitbucket.BitbucketSettings.LOGIN_STRATEGY_UNIQUE;
+
+/**
+ * Calls {@link BitbucketIdentityProvider#init(OAuth2IdentityProvider.InitContext)} and
+ * {@link BitbucketIdentityProvider#callback(OAuth2IdentityProvider.CallbackContext)} from 1 to 64 threads,
+ * while settings are changed, and checks that each user gets their own identity. Bitbucket is served
+ * from memory, so that contention is not hidden by network latency. Throughput is measured by
+ * {@code AuthenticationBenchmark} of the profile "benchmarks".
+ */
+public class ConcurrencyStressTest {
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+  private static final long DURATION_MS = 250L;
+  private static final int USERS = 500;
+  private static final String RESTRICTED_TEAM = "shared";
+  private static final String[] LOGIN_STRATEGIES = {LOGIN_STRATEGY_UNIQUE, LOGIN_STRATEGY_PROVIDER_LOGIN, LOGIN_STRATEGY_TEMPLATE};
+  private static final String[] CLIENT_IDS = {"id1", "id2"};
+  private static final String[] GROUP_PREFIXES = {"a-", "b-"};
+  private static final int PROBE_CALLERS = 64;
+  private static final int PROBED_TEAMS = 8;
+  private static final long PROBE_LATENCY_MS = 10L;
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private InMemoryTransport transport = new InMemoryTransport();
+  private BitbucketExecutor executor = new BitbucketExecutor();
+  private HttpServletRequest[] callbackRequests = new HttpServletRequest[USERS];
+  private BitbucketIdentityProvider underTest;
+
+  @Before
+  public void setUp() {
+    settings.setProperty(CONSUMER_KEY, CLIENT_IDS[0]);
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    settings.setProperty(LOGIN_STRATEGY, LOGIN_STRATEGIES[0]);
+    settings.setProperty("sonar.auth.bitbucket.loginTemplate", "{username}-{provider}");
+    settings.setProperty("sonar.auth.bitbucket.teams", RESTRICTED_TEAM);
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    settings.setProperty(GROUPS_SYNC_PREFIX, GROUP_PREFIXES[0]);
+    settings.setProperty("sonar.auth.bitbucket.profileFreshnessInMinutes", 60);
+
+    transport
+      .on("/site/oauth2/access_token", request -> json(format("{\"access_token\":\"token-%s\",\"token_type\":\"bearer\"}",
+        formParam(request.getBodyContents(), "code"))))
+      .on("/2.0/user", request -> {
+        int user = user(request);
+        return json(format("{\"username\":\"user%d\",\"display_name\":\"User %d\",\"uuid\":\"{%d}\"}", user, user, user));
+      })
+      .on("/2.0/user/emails", request -> json(format("{\"values\":[{\"email\":\"user%d@bitbucket.org\",\"is_primary\":true,\"is_confirmed\":true}]}",
+        user(request))))
+      .on("/2.0/teams", request -> json(teams(user(request)).stream()
+        .map(team -> "{\"username\":\"" + team + "\"}")
+        .collect(Collectors.joining(",", "{\"values\":[", "]}"))));
+
+    for (int user = 0; user < USERS; user++) {
+      // stub-only mocks do not record invocations, which would be a point of contention
+      callbackRequests[user] = mock(HttpServletRequest.class, withSettings().stubOnly());
+      when(callbackRequests[user].getParameter("code")).thenReturn(String.valueOf(user));
+    }
+
+    BitbucketMetrics metrics = new BitbucketMetrics();
+    UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+    BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+    underTest = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, new BitbucketScribeApi(bitbucketSettings), transport, metrics,
+      new AuditLog(bitbucketSettings, mock(ServerFileSystem.class), metrics, System2.INSTANCE),
+      new AuthenticationPipeline(userIdentityFactory, metrics, new ConcurrencyLimiter(metrics, System2.INSTANCE),
+        new MembershipSelector(bitbucketSettings, System2.INSTANCE), new MembershipProbe(bitbucketSettings, executor),
+        new MembershipFilter(bitbucketSettings, executor), new TeamMembers(bitbucketSettings, caches, executor, System2.INSTANCE),
+        new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE),
+        new VerifiedProfiles(bitbucketSettings, caches, System2.INSTANCE), System2.INSTANCE),
+      System2.INSTANCE);
+  }
+
+  @After
+  public void tearDown() {
+    executor.stop();
+  }
+
+  @Test
+  public void identities_are_correct_from_1_to_64_threads_while_settings_change() throws InterruptedException {
+    for (int threads : THREADS) {
+      Run run = run(threads);
+      assertThat(run.errors).as("errors with %d threads", threads).isEmpty();
+      assertThat(run.authentications.sum()).as("authentications with %d threads", threads).isPositive();
+    }
+  }
+
+  /**
+   * Each check of membership sends {@link #PROBED_TEAMS} requests in parallel through {@link BitbucketExecutor}.
+   * Bitbucket responds after {@link #PROBE_LATENCY_MS}, so that executor threads are blocked on I/O, and
+   * the throughput is checked to be far above the one of probes sent one at a time.
+   */
+  @Test
+  public void probes_of_membership_on_platform_and_virtual_threads() throws InterruptedException {
+    String[] teams = new String[PROBED_TEAMS];
+    for (int i = 0; i < PROBED_TEAMS; i++) {
+      teams[i] = "probed" + i;
+      transport.on("/2.0/workspaces/" + teams[i] + "/members/{0}", request -> {
+        sleep(PROBE_LATENCY_MS);
+        return new InMemoryTransport.Response(404, "{}".getBytes(StandardCharsets.UTF_8));
+      });
+    }
+    BitbucketApiClient client = new BitbucketApiClient(transport, new ServiceBuilder().provider(new BitbucketScribeApi(bitbucketSettings))
+      .apiKey("id").apiSecret("secret").build(), new Token("token-0", ""), new BitbucketMetrics());
+
+    double sequentialThroughput = 1_000d / (PROBED_TEAMS * PROBE_LATENCY_MS);
+    List<Boolean> modes = VirtualThreads.isSupported() ? Arrays.asList(false, true) : Arrays.asList(false);
+    for (boolean virtualThreads : modes) {
+      BitbucketExecutor modeExecutor = new BitbucketExecutor(virtualThreads);
+      try {
+        MembershipProbe probe = new MembershipProbe(bitbucketSettings, modeExecutor);
+        Run run = new Run();
+        long deadline = System.currentTimeMillis() + 2 * DURATION_MS;
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < PROBE_CALLERS; i++) {
+          callers.add(new Thread(() -> {
+            while (System.currentTimeMillis() < deadline) {
+              if (!Boolean.FALSE.equals(probe.isMemberOfAny(client, "{0}", teams))) {
+                run.error("membership is not denied");
+              }
+              run.authentications.increment();
+            }
+          }, "stress-probe-" + i));
+        }
+        long start = System.nanoTime();
+        callers.forEach(Thread::start);
+        for (Thread caller : callers) {
+          caller.join();
+        }
+        run.durationNs = System.nanoTime() - start;
+
+        assertThat(run.errors).isEmpty();
+        assertThat(run.throughput()).as("checks/s on %s", virtualThreads ? "virtual threads" : "platform threads")
+          .isGreaterThan(10 * sequentialThroughput);
+      } finally {
+        modeExecutor.stop();
+      }
+    }
+  }
+
+  private Run run(int threadCount) throws InterruptedException {
+    Run run = new Run();
+    long deadline = System.currentTimeMillis() + DURATION_MS;
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threadCount; i++) {
+      workers.add(new Thread(() -> {
+        while (System.currentTimeMillis() < deadline) {
+          authenticate(run);
+        }
+      }, "stress-" + i));
+    }
+    Thread settingsChanger = new Thread(() -> {
+      int i = 0;
+      while (System.currentTimeMillis() < deadline) {
+        i++;
+        settings.setProperty(LOGIN_STRATEGY, LOGIN_STRATEGIES[i % LOGIN_STRATEGIES.length]);
+        settings.setProperty(CONSUMER_KEY, CLIENT_IDS[i % CLIENT_IDS.length]);
+        settings.setProperty(GROUPS_SYNC_PREFIX, GROUP_PREFIXES[i % GROUP_PREFIXES.length]);
+        sleep(1L);
+      }
+    }, "stress-settings");
+
+    workers.forEach(Thread::start);
+    settingsChanger.start();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    settingsChanger.join();
+    return run;
+  }
+
+  private void authenticate(Run run) {
+    int user = ThreadLocalRandom.current().nextInt(USERS);
+    try {
+      CapturingInitContext initContext = new CapturingInitContext();
+      underTest.init(initContext);
+      if (Arrays.stream(CLIENT_IDS).noneMatch(id -> initContext.redirectUrl.contains("client_id=" + id + "&"))) {
+        run.error("unexpected authorization URL " + initContext.redirectUrl);
+      }
+
+      DumbCallbackContext context = new DumbCallbackContext(callbackRequests[user]);
+      underTest.callback(context);
+      if (!teams(user).contains(RESTRICTED_TEAM)) {
+        run.error(format("user%d is authenticated but is not member of the restricted team", user));
+      }
+      check(user, context.userIdentity, run);
+      run.authentications.increment();
+    } catch (UnauthorizedException e) {
+      if (e.getMessage().startsWith("Too many users")) {
+        // rejected by the limiter of concurrent authentications
+        return;
+      }
+      if (teams(user).contains(RESTRICTED_TEAM)) {
+        run.error(format("user%d is denied: %s", user, e.getMessage()));
+      } else {
+        run.authentications.increment();
+      }
+    } catch (RuntimeException e) {
+      run.error(format("user%d fails: %s", user, e));
+    }
+  }
+
+  private static void check(int user, UserIdentity identity, Run run) {
+    String username = "user" + user;
+    Set<String> expectedLogins = new HashSet<>(Arrays.asList(username + "@bitbucket", username, username + "-bitbucket"));
+    if (!expectedLogins.contains(identity.getLogin())) {
+      run.error(format("%s gets login %s", username, identity.getLogin()));
+    }
+    if (!(("{" + user + "}").equals(identity.getProviderId()) && (username + "@bitbucket.org").equals(identity.getEmail()))) {
+      run.error(format("%s gets identity of %s", username, identity.getProviderId()));
+    }
+    boolean groupsMatch = Arrays.stream(GROUP_PREFIXES)
+      .anyMatch(prefix -> teams(user).stream().map(team -> prefix + team).collect(Collectors.toSet()).equals(identity.getGroups()));
+    if (!groupsMatch) {
+      run.error(format("%s gets groups %s", username, identity.getGroups()));
+    }
+  }
+
+  /**
+   * One user out of 7 is not member of the restricted team
+   */
+  private static List<String> teams(int user) {
+    List<String> teams = new ArrayList<>();
+    teams.add("team" + (user % 10));
+    if (user % 7 != 0) {
+      teams.add(RESTRICTED_TEAM);
+    }
+    return teams;
+  }
+
+  private static int user(OAuthRequest request) {
+    String token = request.getQueryStringParams().getParams().stream()
+      .filter(p -> "access_token".equals(p.getKey()))
+      .map(Parameter::getValue)
+      .findFirst()
+      .orElseThrow(() -> new IllegalStateException("Missing access token"));
+    return Integer.parseInt(token.substring("token-".length()));
+  }
+
+  @CheckForNull
+  private static String formParam(String form, String key) {
+    return Arrays.stream(form.split("&"))
+      .filter(pair -> pair.startsWith(key + "="))
+      .map(pair -> pair.substring(key.length() + 1))
+      .findFirst()
+      .orElse(null);
+  }
+
+  private static InMemoryTransport.Response json(String json) {
+    return new InMemoryTransport.Response(200, json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class Run {
+    private final LongAdder authentications = new LongAdder();
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private long durationNs;
+
+    void error(String message) {
+      // keep the first errors only
+      if (errors.size() < 10) {
+        errors.add(message);
+      }
+    }
+
+    double throughput() {
+      return authentications.sum() * 1_000_000_000d / durationNs;
+    }
+  }
+
+  private static class CapturingInitContext implements OAuth2IdentityProvider.InitContext {
+    private String redirectUrl;
+
+    @Override
+    public String generateCsrfState() {
+      return "state";
+    }
+
+    @Override
+    public void redirectTo(String url) {
+      this.redirectUrl = url;
+    }
+
+    @Override
+    public String getCallbackUrl() {
+      return "http://localhost/oauth/callback/bitbucket";
+    }
+
+    @Override
+    public HttpServletRequest getRequest() {
+      throw new UnsupportedOperationException("not used");
+    }
+
+    @Override
+    public HttpServletResponse getResponse() {
+      throw new UnsupportedOperationException("not used");
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class DiagnosticsActionTest {
+
+  private static final String ADMIN = "{\"login\":\"admin\",\"isLoggedIn\":true,\"permissions\":{\"global\":[\"admin\",\"profileadmin\"]}}";
+  private static final String NOT_ADMIN = "{\"login\":\"john\",\"isLoggedIn\":true,\"permissions\":{\"global\":[\"profileadmin\"]}}";
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private BitbucketProbe probe = mock(BitbucketProbe.class);
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private ConcurrencyLimiter limiter = new ConcurrencyLimiter(metrics, System2.INSTANCE);
+  private DiagnosticsAction underTest = new DiagnosticsAction(bitbucketSettings, probe, metrics, limiter);
+
+  @Test
+  public void define_ws() {
+    WebService.Context context = new WebService.Context();
+    new BitbucketWs(underTest).define(context);
+
+    WebService.Action action = context.controller("api/authbitbucket").action("diagnostics");
+    assertThat(action).isNotNull();
+    assertThat(action.isPost()).isFalse();
+    assertThat(action.since()).isEqualTo("1.2");
+    assertThat(action.responseExampleAsString()).isNotEmpty();
+  }
+
+  @Test
+  public void report_probes_limiter_and_latencies() {
+    when(probe.probe("https://bitbucket.org/")).thenReturn(new BitbucketProbe.Result("https://bitbucket.org/", 0L));
+    when(probe.probe("https://api.bitbucket.org/")).thenReturn(new BitbucketProbe.Result("https://api.bitbucket.org/", 0L));
+    metrics.onLoginLatency(100L);
+    metrics.onLoginLatency(300L);
+    StringWriter json = new StringWriter();
+    Response response = mock(Response.class);
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+
+    underTest.handle(newRequest(ADMIN), response);
+
+    assertThat(json.toString())
+      .contains("\"web\":{\"url\":\"https://bitbucket.org/\",\"reachable\":false,\"status\":-1,\"dns\":-1")
+      .contains("\"api\":{\"url\":\"https://api.bitbucket.org/\"")
+      .contains("\"concurrency\":{\"limit\":20,\"inFlight\":0,\"rejected\":0}")
+      .contains("\"p50\":100,\"p90\":300,\"p99\":300");
+  }
+
+  @Test
+  public void report_instrumentation_and_traffic_per_endpoint() {
+    settings.setProperty("sonar.auth.bitbucket.instrumentation.enabled", true);
+    when(probe.probe(any())).thenReturn(new BitbucketProbe.Result("https://bitbucket.org/", 0L));
+    metrics.onInstrumentedLogin(2_000L, 3);
+    metrics.onInstrumentedLogin(4_000L, 2);
+    metrics.onResponse("user", 500L);
+    metrics.onResponse("emails", 200L);
+    metrics.onResponse("emails", 300L);
+    StringWriter json = new StringWriter();
+    Response response = mock(Response.class);
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+
+    underTest.handle(newRequest(ADMIN), response);
+
+    assertThat(json.toString())
+      .contains("\"instrumentation\":{\"enabled\":true,\"count\":2,\"allocatedBytes\":{\"p50\":2000,\"p90\":4000,\"p99\":4000}," +
+        "\"requests\":{\"p50\":2,\"p90\":3,\"p99\":3}}")
+      .contains("\"endpoints\":[{\"name\":\"emails\",\"requests\":2,\"bytesReceived\":500},{\"name\":\"user\",\"requests\":1,\"bytesReceived\":500}]");
+  }
+
+  @Test
+  public void fail_if_not_administrator() {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Response.Stream stream = mock(Response.Stream.class);
+    when(stream.setStatus(any(Integer.class))).thenReturn(stream);
+    when(stream.output()).thenReturn(output);
+    Response response = mock(Response.class);
+    when(response.stream()).thenReturn(stream);
+
+    underTest.handle(newRequest(NOT_ADMIN), response);
+
+    verify(stream).setStatus(403);
+    assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).contains("Insufficient privileges");
+    verifyZeroInteractions(probe);
+  }
+
+  @Test
+  public void fail_if_anonymous() {
+    assertThat(Administrators.isAdministrator(newRequest(401, "{\"errors\":[]}"))).isFalse();
+    assertThat(Administrators.isAdministrator(newRequest(200, "{\"isLoggedIn\":false,\"permissions\":{\"global\":[]}}"))).isFalse();
+    assertThat(Administrators.isAdministrator(newRequest(200, "not json"))).isFalse();
+  }
+
+  private static Request newRequest(String currentUser) {
+    return newRequest(200, currentUser);
+  }
+
+  private static Request newRequest(int status, String currentUser) {
+    LocalConnector.LocalResponse localResponse = mock(LocalConnector.LocalResponse.class);
+    when(localResponse.getStatus()).thenReturn(status);
+    when(localResponse.getBytes()).thenReturn(currentUser.getBytes(StandardCharsets.UTF_8));
+    LocalConnector connector = mock(LocalConnector.class);
+    when(connector.call(any())).thenReturn(localResponse);
+    Request request = mock(Request.class);
+    when(request.localConnector()).thenReturn(connector);
+    return request;
+  }
+}
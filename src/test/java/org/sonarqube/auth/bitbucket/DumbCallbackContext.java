@@ -0,0 +1,79 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.server.authentication.UserIdentity;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DumbCallbackContext implements OAuth2IdentityProvider.CallbackContext {
+  final HttpServletRequest request;
+  final AtomicBoolean csrfStateVerified = new AtomicBoolean(false);
+  final AtomicBoolean redirectedToRequestedPage = new AtomicBoolean(false);
+  UserIdentity userIdentity = null;
+
+  public DumbCallbackContext(HttpServletRequest request) {
+    this.request = request;
+  }
+
+  /**
+   * Callback of Bitbucket with the given verifier code
+   */
+  static DumbCallbackContext withVerifierCode(String verifierCode) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("code")).thenReturn(verifierCode);
+    return new DumbCallbackContext(request);
+  }
+
+  @Override
+  public void verifyCsrfState() {
+    this.csrfStateVerified.set(true);
+  }
+
+  @Override
+  public void redirectToRequestedPage() {
+    redirectedToRequestedPage.set(true);
+  }
+
+  @Override
+  public void authenticate(UserIdentity userIdentity) {
+    this.userIdentity = userIdentity;
+  }
+
+  @Override
+  public String getCallbackUrl() {
+    return "http://localhost/oauth/callback/bitbucket";
+  }
+
+  @Override
+  public HttpServletRequest getRequest() {
+    return request;
+  }
+
+  @Override
+  public HttpServletResponse getResponse() {
+    throw new UnsupportedOperationException("not used");
+  }
+}
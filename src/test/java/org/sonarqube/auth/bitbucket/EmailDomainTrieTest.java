@@ -0,0 +1,82 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EmailDomainTrieTest {
+
+  @Test
+  public void accept_emails_of_domains_and_subdomains() {
+    EmailDomainTrie underTest = EmailDomainTrie.compile(new String[] {"corp.com", "corp.co.uk"});
+
+    assertThat(underTest.accepts("john@corp.com")).isTrue();
+    assertThat(underTest.accepts("john@eu.corp.com")).isTrue();
+    assertThat(underTest.accepts("john@dev.eu.corp.com")).isTrue();
+    assertThat(underTest.accepts("john@corp.co.uk")).isTrue();
+    assertThat(underTest.accepts("john@CORP.Com")).isTrue();
+  }
+
+  @Test
+  public void reject_emails_of_other_domains() {
+    EmailDomainTrie underTest = EmailDomainTrie.compile(new String[] {"corp.com", "corp.co.uk"});
+
+    assertThat(underTest.accepts("john@evilcorp.com")).isFalse();
+    assertThat(underTest.accepts("john@corp.com.evil.org")).isFalse();
+    assertThat(underTest.accepts("john@com")).isFalse();
+    assertThat(underTest.accepts("john@co.uk")).isFalse();
+    assertThat(underTest.accepts("john@corp.org")).isFalse();
+    assertThat(underTest.accepts("corp.com")).isFalse();
+    assertThat(underTest.accepts("john@")).isFalse();
+    assertThat(underTest.accepts(null)).isFalse();
+  }
+
+  @Test
+  public void use_domain_of_last_at_sign() {
+    EmailDomainTrie underTest = EmailDomainTrie.compile(new String[] {"corp.com"});
+
+    assertThat(underTest.accepts("\"john@corp.com\"@evil.org")).isFalse();
+    assertThat(underTest.accepts("\"john@evil.org\"@corp.com")).isTrue();
+  }
+
+  @Test
+  public void ignore_case_spaces_and_decorations_of_domains() {
+    EmailDomainTrie underTest = EmailDomainTrie.compile(new String[] {" @Corp.COM ", ".dev.org.", "  "});
+
+    assertThat(underTest.accepts("john@corp.com")).isTrue();
+    assertThat(underTest.accepts("john@eu.dev.org")).isTrue();
+    assertThat(underTest.accepts("john@org")).isFalse();
+  }
+
+  @Test
+  public void accept_nothing_if_no_domains() {
+    assertThat(EmailDomainTrie.compile(new String[0]).accepts("john@corp.com")).isFalse();
+  }
+
+  @Test
+  public void isCompiledFrom() {
+    EmailDomainTrie underTest = EmailDomainTrie.compile(new String[] {"corp.com"});
+
+    assertThat(underTest.isCompiledFrom(new String[] {"corp.com"})).isTrue();
+    assertThat(underTest.isCompiledFrom(new String[] {"corp.org"})).isFalse();
+  }
+}
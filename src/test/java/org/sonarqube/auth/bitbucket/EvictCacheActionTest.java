@@ -0,0 +1,102 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class EvictCacheActionTest {
+
+  private static final String ADMIN = "{\"login\":\"admin\",\"isLoggedIn\":true,\"permissions\":{\"global\":[\"admin\"]}}";
+  private static final String NOT_ADMIN = "{\"login\":\"john\",\"isLoggedIn\":true,\"permissions\":{\"global\":[]}}";
+
+  private BitbucketCaches caches = mock(BitbucketCaches.class);
+  private EvictCacheAction underTest = new EvictCacheAction(caches);
+
+  @Test
+  public void define_ws() {
+    WebService.Context context = new WebService.Context();
+    new BitbucketWs(underTest).define(context);
+
+    WebService.Action action = context.controller("api/authbitbucket").action("evict_cache");
+    assertThat(action).isNotNull();
+    assertThat(action.isPost()).isTrue();
+    assertThat(action.param("uuid").isRequired()).isFalse();
+  }
+
+  @Test
+  public void evict_user() {
+    Response response = mock(Response.class);
+
+    underTest.handle(newRequest(ADMIN, "{john}"), response);
+
+    verify(caches).evict("{john}");
+    verify(response).noContent();
+  }
+
+  @Test
+  public void evict_all_when_user_is_not_specified() {
+    Response response = mock(Response.class);
+
+    underTest.handle(newRequest(ADMIN, null), response);
+
+    verify(caches).evictAll();
+    verify(response).noContent();
+  }
+
+  @Test
+  public void fail_if_not_administrator() {
+    Response.Stream stream = mock(Response.Stream.class);
+    when(stream.setStatus(any(Integer.class))).thenReturn(stream);
+    when(stream.output()).thenReturn(new ByteArrayOutputStream());
+    Response response = mock(Response.class);
+    when(response.stream()).thenReturn(stream);
+
+    underTest.handle(newRequest(NOT_ADMIN, null), response);
+
+    verify(stream).setStatus(403);
+    verifyZeroInteractions(caches);
+  }
+
+  private static Request newRequest(String currentUser, @Nullable String uuid) {
+    LocalConnector.LocalResponse localResponse = mock(LocalConnector.LocalResponse.class);
+    when(localResponse.getStatus()).thenReturn(200);
+    when(localResponse.getBytes()).thenReturn(currentUser.getBytes(StandardCharsets.UTF_8));
+    LocalConnector connector = mock(LocalConnector.class);
+    when(connector.call(any())).thenReturn(localResponse);
+    Request request = mock(Request.class);
+    when(request.localConnector()).thenReturn(connector);
+    when(request.param("uuid")).thenReturn(uuid);
+    return request;
+  }
+}
@@ -0,0 +1,494 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.google.gson.Gson;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import org.junit.rules.ExternalResource;
+
+import static java.lang.String.format;
+
+/**
+ * Local stand-in of Bitbucket (web and API), implementing the OAuth token exchange and the endpoints
+ * user, user/emails and teams, for the users registered with {@link #addUser(String)}. The verifier code
+ * of a user is its username.
+ * <p/>
+ * Upstream trouble can be simulated per endpoint, by scripting the latency of responses with
+ * {@link #latency(String, Latency)} and by injecting {@link Fault}s into the next responses with
+ * {@link #inject(String, Fault...)}.
+ */
+public class FakeBitbucket extends ExternalResource {
+
+  public static final String ACCESS_TOKEN = "/site/oauth2/access_token";
+  public static final String USER = "/2.0/user";
+  public static final String EMAILS = "/2.0/user/emails";
+  public static final String TEAMS = "/2.0/teams";
+  public static final String TEAM_MEMBERS = "/2.0/teams/{team}/members";
+  public static final String WORKSPACE_MEMBER = "/2.0/workspaces/{workspace}/members/{member}";
+
+  private static final Gson GSON = new Gson();
+  private static final Pattern USERNAME_FILTER = Pattern.compile("username=\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private final MockWebServer server = new MockWebServer();
+  private final Map<String, User> usersByCode = new ConcurrentHashMap<>();
+  private final Map<String, User> usersByToken = new ConcurrentHashMap<>();
+  private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+  private final Map<String, Queue<Fault>> faults = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+  private volatile int maxTeamsPageSize = 100;
+  private volatile boolean filtering = true;
+
+  @Override
+  protected void before() throws IOException {
+    server.setDispatcher(new FakeDispatcher());
+    server.start();
+  }
+
+  @Override
+  protected void after() {
+    try {
+      server.shutdown();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Base URL, to be used as web and API URLs
+   */
+  public String url() {
+    return server.url("/").toString();
+  }
+
+  public User addUser(String username) {
+    User user = new User(username);
+    usersByCode.put(username, user);
+    usersByToken.put(user.accessToken(), user);
+    return user;
+  }
+
+  /**
+   * Delays all the responses of the endpoint, before sending headers
+   */
+  public FakeBitbucket latency(String endpoint, Latency latency) {
+    latencies.put(endpoint, latency);
+    return this;
+  }
+
+  /**
+   * Alters the next responses of the endpoint, one fault per response
+   */
+  public FakeBitbucket inject(String endpoint, Fault... faultsToInject) {
+    faults.computeIfAbsent(endpoint, e -> new ConcurrentLinkedQueue<>()).addAll(Arrays.asList(faultsToInject));
+    return this;
+  }
+
+  /**
+   * Maximum number of teams per page, whatever the parameter "pagelen". Default is 100, like Bitbucket.
+   */
+  public FakeBitbucket teamsPageSize(int pageSize) {
+    this.maxTeamsPageSize = pageSize;
+    return this;
+  }
+
+  /**
+   * Whether the parameter "q" of the endpoint teams is applied, for example {@code username="team1" OR username="team2"}.
+   * Default is true. Otherwise the parameter is ignored, like some versions of Bitbucket Server do.
+   */
+  public FakeBitbucket filtering(boolean supported) {
+    this.filtering = supported;
+    return this;
+  }
+
+  public int requestCount(String endpoint) {
+    AtomicInteger count = requestCounts.get(endpoint);
+    return count == null ? 0 : count.get();
+  }
+
+  public int requestCount() {
+    return server.getRequestCount();
+  }
+
+  public RecordedRequest takeRequest() throws InterruptedException {
+    return server.takeRequest();
+  }
+
+  public static class User {
+    private final String username;
+    private String displayName;
+    private String uuid;
+    private List<String> emails = Collections.emptyList();
+    private List<String> teams = Collections.emptyList();
+    private String scopes = "account email team";
+
+    private User(String username) {
+      this.username = username;
+      this.displayName = username;
+      this.uuid = "{" + username + "}";
+    }
+
+    public String username() {
+      return username;
+    }
+
+    public String accessToken() {
+      return "token-" + username;
+    }
+
+    public User setDisplayName(String s) {
+      this.displayName = s;
+      return this;
+    }
+
+    public User setUuid(String s) {
+      this.uuid = s;
+      return this;
+    }
+
+    /**
+     * The first email is the primary one
+     */
+    public User setEmails(String... s) {
+      this.emails = Arrays.asList(s);
+      return this;
+    }
+
+    public User setTeams(String... s) {
+      this.teams = Arrays.asList(s);
+      return this;
+    }
+
+    public User setTeams(List<String> s) {
+      this.teams = new ArrayList<>(s);
+      return this;
+    }
+
+    /**
+     * Scopes granted to the access token, separated by spaces
+     */
+    public User setScopes(String s) {
+      this.scopes = s;
+      return this;
+    }
+  }
+
+  /**
+   * Time to wait before responding, in milliseconds
+   */
+  @FunctionalInterface
+  public interface Latency {
+    long nextMs();
+
+    static Latency fixed(long ms) {
+      return () -> ms;
+    }
+
+    /**
+     * Uniformly distributed between {@code minMs} and {@code maxMs}, repeatable thanks to the seed
+     */
+    static Latency uniform(long minMs, long maxMs, long seed) {
+      Random random = new Random(seed);
+      return () -> {
+        synchronized (random) {
+          return minMs + (long) (random.nextDouble() * (maxMs - minMs));
+        }
+      };
+    }
+
+    /**
+     * The given latencies, in a loop
+     */
+    static Latency scripted(long... ms) {
+      AtomicInteger index = new AtomicInteger();
+      return () -> ms[Math.floorMod(index.getAndIncrement(), ms.length)];
+    }
+  }
+
+  /**
+   * Alteration of a response
+   */
+  @FunctionalInterface
+  public interface Fault {
+    MockResponse apply(MockResponse response);
+
+    /**
+     * Body sent by chunks of {@code bytesPerPeriod} bytes
+     */
+    static Fault slowDrip(long bytesPerPeriod, long period, TimeUnit unit) {
+      return response -> response.throttleBody(bytesPerPeriod, period, unit);
+    }
+
+    /**
+     * Half of the JSON body, with a consistent Content-Length
+     */
+    static Fault truncated() {
+      return response -> {
+        String body = response.getBody().readUtf8();
+        return response.setBody(body.substring(0, body.length() / 2));
+      };
+    }
+
+    static Fault malformed() {
+      return response -> response.setBody("{\"values\": [{\"username\": oops");
+    }
+
+    static Fault tooManyRequests(int retryAfterSeconds) {
+      return response -> new MockResponse()
+        .setResponseCode(429)
+        .setHeader("Retry-After", retryAfterSeconds)
+        .setBody("{\"type\": \"error\", \"error\": {\"message\": \"Rate limit for this resource has been exceeded\"}}");
+    }
+
+    static Fault status(int code) {
+      return response -> new MockResponse()
+        .setResponseCode(code)
+        .setBody(format("{\"type\": \"error\", \"error\": {\"message\": \"HTTP %d\"}}", code));
+    }
+
+    /**
+     * Connection closed after reading the request, before sending the response
+     */
+    static Fault connectionReset() {
+      return response -> response.setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+    }
+
+    /**
+     * Connection closed in the middle of the body
+     */
+    static Fault resetDuringBody() {
+      return response -> response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+    }
+  }
+
+  private class FakeDispatcher extends Dispatcher {
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+      String path = request.getPath();
+      int queryIndex = path.indexOf('?');
+      Map<String, String> params = parseQuery(queryIndex < 0 ? "" : path.substring(queryIndex + 1));
+      String endpoint = queryIndex < 0 ? path : path.substring(0, queryIndex);
+      String[] segments = endpoint.split("/");
+      if (endpoint.startsWith("/2.0/workspaces/") && segments.length == 6 && "members".equals(segments[4])) {
+        params.put("workspace", decode(segments[3]));
+        params.put("member", decode(segments[5]));
+        endpoint = WORKSPACE_MEMBER;
+      } else if (endpoint.startsWith(TEAMS + "/") && segments.length == 5 && "members".equals(segments[4])) {
+        params.put("team", decode(segments[3]));
+        endpoint = TEAM_MEMBERS;
+      }
+      requestCounts.computeIfAbsent(endpoint, e -> new AtomicInteger()).incrementAndGet();
+
+      Latency latency = latencies.get(endpoint);
+      if (latency != null) {
+        Thread.sleep(latency.nextMs());
+      }
+      MockResponse response = respond(request, endpoint, params);
+      Queue<Fault> endpointFaults = faults.get(endpoint);
+      Fault fault = endpointFaults == null ? null : endpointFaults.poll();
+      return fault == null ? response : fault.apply(response);
+    }
+
+    private MockResponse respond(RecordedRequest request, String endpoint, Map<String, String> params) {
+      if (ACCESS_TOKEN.equals(endpoint)) {
+        return respondAccessToken(parseQuery(request.getUtf8Body()));
+      }
+      User user = usersByToken.get(params.getOrDefault("access_token", ""));
+      if (user == null) {
+        return json(401, error("Access token expired or invalid"));
+      }
+      switch (endpoint) {
+        case USER:
+          Map<String, Object> profile = new LinkedHashMap<>();
+          profile.put("username", user.username);
+          profile.put("display_name", user.displayName);
+          profile.put("uuid", user.uuid);
+          return json(200, profile);
+        case EMAILS:
+          List<Map<String, Object>> emails = new ArrayList<>();
+          for (int i = 0; i < user.emails.size(); i++) {
+            Map<String, Object> email = new LinkedHashMap<>();
+            email.put("email", user.emails.get(i));
+            email.put("is_primary", i == 0);
+            email.put("is_confirmed", true);
+            emails.add(email);
+          }
+          return json(200, Collections.singletonMap("values", emails));
+        case TEAMS:
+          return respondTeams(user, params);
+        case TEAM_MEMBERS:
+          return respondTeamMembers(params);
+        case WORKSPACE_MEMBER:
+          String member = params.get("member");
+          if (user.teams.contains(params.get("workspace")) && member.equals(user.uuid)) {
+            return json(200, Collections.singletonMap("user", Collections.singletonMap("uuid", user.uuid)));
+          }
+          return json(404, error(member + " is not a member of " + params.get("workspace")));
+        default:
+          return json(404, error("Resource not found"));
+      }
+    }
+
+    private MockResponse respondAccessToken(Map<String, String> form) {
+      User user = usersByCode.get(form.getOrDefault("code", ""));
+      if (user == null) {
+        return json(400, Collections.singletonMap("error", "invalid_grant"));
+      }
+      Map<String, Object> token = new LinkedHashMap<>();
+      token.put("access_token", user.accessToken());
+      token.put("scopes", user.scopes);
+      token.put("expires_in", 7200);
+      token.put("refresh_token", "refresh-" + user.username);
+      token.put("token_type", "bearer");
+      return json(200, token);
+    }
+
+    private MockResponse respondTeams(User user, Map<String, String> params) {
+      List<Map<String, Object>> teams = new ArrayList<>();
+      List<String> filter = filtering && params.containsKey("q") ? usernames(params.get("q")) : null;
+      for (String team : user.teams) {
+        if (filter != null && !filter.contains(team)) {
+          continue;
+        }
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("username", team);
+        value.put("display_name", team);
+        value.put("type", "team");
+        teams.add(value);
+      }
+      return json(200, page(TEAMS, teams, maxTeamsPageSize, params));
+    }
+
+    private List<String> usernames(String query) {
+      List<String> usernames = new ArrayList<>();
+      Matcher matcher = USERNAME_FILTER.matcher(query);
+      while (matcher.find()) {
+        usernames.add(matcher.group(1).replaceAll("\\\\(.)", "$1"));
+      }
+      return usernames;
+    }
+
+    private MockResponse respondTeamMembers(Map<String, String> params) {
+      String team = params.remove("team");
+      List<Map<String, Object>> members = new ArrayList<>();
+      usersByCode.values().stream()
+        .filter(u -> u.teams.contains(team))
+        .sorted(Comparator.comparing(u -> u.username))
+        .forEach(u -> {
+          Map<String, Object> value = new LinkedHashMap<>();
+          value.put("username", u.username);
+          value.put("display_name", u.displayName);
+          value.put("uuid", u.uuid);
+          value.put("type", "user");
+          members.add(value);
+        });
+      return json(200, page(TEAMS + "/" + team + "/members", members, 100, params));
+    }
+
+    private Map<String, Object> page(String path, List<Map<String, Object>> all, int maxPageSize, Map<String, String> params) {
+      int page = Integer.parseInt(params.getOrDefault("page", "1"));
+      int pageSize = Math.min(Integer.parseInt(params.getOrDefault("pagelen", "10")), maxPageSize);
+      int from = Math.min((page - 1) * pageSize, all.size());
+      int to = Math.min(from + pageSize, all.size());
+      Map<String, Object> body = new LinkedHashMap<>();
+      body.put("pagelen", pageSize);
+      body.put("page", page);
+      body.put("size", all.size());
+      body.put("values", all.subList(from, to));
+      if (to < all.size()) {
+        Map<String, String> nextParams = new LinkedHashMap<>(params);
+        nextParams.remove("access_token");
+        nextParams.put("page", String.valueOf(page + 1));
+        StringBuilder next = new StringBuilder(server.url(path).toString()).append('?');
+        nextParams.forEach((key, value) -> next.append(key).append('=').append(value).append('&'));
+        next.setLength(next.length() - 1);
+        body.put("next", next.toString());
+      }
+      return body;
+    }
+
+    private MockResponse json(int code, Object body) {
+      return new MockResponse()
+        .setResponseCode(code)
+        .setHeader("Content-Type", "application/json")
+        .setBody(GSON.toJson(body));
+    }
+
+    private Map<String, Object> error(String message) {
+      Map<String, Object> error = new LinkedHashMap<>();
+      error.put("type", "error");
+      error.put("error", Collections.singletonMap("message", message));
+      return error;
+    }
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Map<String, String> parseQuery(@CheckForNull String query) {
+    Map<String, String> params = new HashMap<>();
+    if (query == null || query.isEmpty()) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int equal = pair.indexOf('=');
+      try {
+        if (equal < 0) {
+          params.put(URLDecoder.decode(pair, StandardCharsets.UTF_8.name()), "");
+        } else {
+          params.put(URLDecoder.decode(pair.substring(0, equal), StandardCharsets.UTF_8.name()),
+            URLDecoder.decode(pair.substring(equal + 1), StandardCharsets.UTF_8.name()));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return params;
+  }
+}
@@ -19,6 +19,7 @@
  */
 package org.sonarqube.auth.bitbucket;
 
+import java.io.StringReader;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -98,4 +99,47 @@ public class GsonEmailsTest {
     String email = GsonEmails.parse(json).extractPrimaryEmail();
     assertThat(email).isNull();
   }
+
+  @Test
+  public void stop_streaming_at_first_allowed_confirmed_email() {
+    String json = "{\"values\": [" +
+      "{\"is_primary\": true, \"is_confirmed\": true, \"email\": \"john@gmail.com\"}," +
+      "{\"is_primary\": false, \"is_confirmed\": false, \"email\": \"john@corp.com\"}," +
+      "{\"is_primary\": false, \"is_confirmed\": true, \"email\": \"john@eu.corp.com\"}," +
+      // not read
+      "malformed";
+
+    GsonEmails emails = GsonEmails.parse(new StringReader(json), email -> email.endsWith("corp.com"));
+
+    assertThat(emails.getAllowedEmail()).isEqualTo("john@eu.corp.com");
+    assertThat(emails.extractPrimaryEmail()).isEqualTo("john@gmail.com");
+    assertThat(emails.getEmails()).hasSize(3);
+  }
+
+  @Test
+  public void read_until_primary_email_when_allowed_email_is_found_first() {
+    String json = "{\"values\": [" +
+      "{\"is_primary\": false, \"is_confirmed\": true, \"email\": \"john@corp.com\"}," +
+      "{\"is_primary\": false, \"is_confirmed\": true, \"email\": \"john@gmail.com\"}," +
+      "{\"is_primary\": true, \"is_confirmed\": true, \"email\": \"john@github.com\"}" +
+      "], \"page\": 1}";
+
+    GsonEmails emails = GsonEmails.parse(new StringReader(json), email -> email.endsWith("corp.com"));
+
+    assertThat(emails.getAllowedEmail()).isEqualTo("john@corp.com");
+    assertThat(emails.extractPrimaryEmail()).isEqualTo("john@github.com");
+  }
+
+  @Test
+  public void no_allowed_email() {
+    String json = "{\"pagelen\": 10, \"values\": [" +
+      "{\"is_primary\": true, \"is_confirmed\": true, \"email\": \"john@gmail.com\"}," +
+      "{\"is_primary\": false, \"is_confirmed\": false, \"email\": \"john@corp.com\"}" +
+      "], \"page\": 1}";
+
+    GsonEmails emails = GsonEmails.parse(new StringReader(json), email -> email.endsWith("corp.com"));
+
+    assertThat(emails.getAllowedEmail()).isNull();
+    assertThat(emails.getEmails()).hasSize(2);
+  }
 }
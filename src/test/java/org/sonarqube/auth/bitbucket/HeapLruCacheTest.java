@@ -0,0 +1,166 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HeapLruCacheTest {
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  private System2 system2 = mock(System2.class);
+
+  @Test
+  public void put_and_get() {
+    HeapLruCache underTest = new HeapLruCache(1_000_000L, 1_000L, system2);
+
+    underTest.put("foo", new byte[] {1, 2});
+
+    assertThat(underTest.get("foo")).containsExactly(1, 2);
+    assertThat(underTest.get("bar")).isNull();
+    assertThat(underTest.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void expire_entries_older_than_ttl() {
+    HeapLruCache underTest = new HeapLruCache(1_000_000L, 1_000L, system2);
+    when(system2.now()).thenReturn(10_000L);
+    underTest.put("foo", new byte[] {1});
+
+    when(system2.now()).thenReturn(11_000L);
+    assertThat(underTest.get("foo")).isNotNull();
+
+    when(system2.now()).thenReturn(11_001L);
+    assertThat(underTest.get("foo")).isNull();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void evict_least_recently_used_entries_when_max_weight_is_exceeded() {
+    // a single key fits in each segment
+    HeapLruCache underTest = new HeapLruCache(HeapLruCache.SEGMENTS * 150L, 1_000L, system2);
+
+    underTest.put("foo", new byte[50]);
+    underTest.put("foo", new byte[60]);
+    assertThat(underTest.get("foo")).hasSize(60);
+
+    for (int i = 0; i < 100; i++) {
+      underTest.put("key" + i, new byte[50]);
+    }
+    assertThat(underTest.size()).isLessThanOrEqualTo(HeapLruCache.SEGMENTS);
+    assertThat(underTest.weight()).isLessThanOrEqualTo(HeapLruCache.SEGMENTS * 150L);
+    assertThat(underTest.get("key99")).isNotNull();
+  }
+
+  @Test
+  public void do_not_cache_entries_heavier_than_a_segment() {
+    HeapLruCache underTest = new HeapLruCache(HeapLruCache.SEGMENTS * 100L, 1_000L, system2);
+
+    underTest.put("foo", new byte[200]);
+
+    assertThat(underTest.get("foo")).isNull();
+    assertThat(underTest.weight()).isZero();
+  }
+
+  @Test
+  public void remove_and_clear() {
+    HeapLruCache underTest = new HeapLruCache(1_000_000L, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+    underTest.put("bar", new byte[] {2});
+
+    underTest.remove("foo");
+    assertThat(underTest.get("foo")).isNull();
+    assertThat(underTest.get("bar")).isNotNull();
+
+    underTest.clear();
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.weight()).isZero();
+  }
+
+  @Test
+  public void fail_when_used_after_close() {
+    HeapLruCache underTest = new HeapLruCache(1_000_000L, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+
+    underTest.close();
+
+    assertThat(underTest.size()).isZero();
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Cache is closed");
+    underTest.put("foo", new byte[] {2});
+  }
+
+  @Test
+  public void count_hits_misses_and_evictions() {
+    HeapLruCache underTest = new HeapLruCache(HeapLruCache.SEGMENTS * 150L, 1_000L, system2);
+    when(system2.now()).thenReturn(10_000L);
+    underTest.put("foo", new byte[] {1});
+    when(system2.now()).thenReturn(10_500L);
+    underTest.put("bar", new byte[] {2});
+
+    underTest.get("foo");
+    underTest.get("foo");
+    underTest.get("baz");
+    CacheStats stats = underTest.stats();
+    assertThat(stats.getSize()).isEqualTo(2);
+    assertThat(stats.getWeight()).isEqualTo(underTest.weight());
+    assertThat(stats.getHits()).isEqualTo(2L);
+    assertThat(stats.getMisses()).isEqualTo(1L);
+    assertThat(stats.getHitRatio()).isEqualTo(2.0 / 3);
+    assertThat(stats.getEvictions()).isZero();
+    assertThat(stats.getOldestEntryCreatedAt()).isEqualTo(10_000L);
+
+    // foo expires
+    when(system2.now()).thenReturn(11_200L);
+    assertThat(underTest.get("foo")).isNull();
+    stats = underTest.stats();
+    assertThat(stats.getMisses()).isEqualTo(2L);
+    assertThat(stats.getEvictions()).isEqualTo(1L);
+    assertThat(stats.getOldestEntryCreatedAt()).isEqualTo(10_500L);
+  }
+
+  @Test
+  public void count_evictions_of_least_recently_used_entries() {
+    // a single key fits in each segment
+    HeapLruCache underTest = new HeapLruCache(HeapLruCache.SEGMENTS * 150L, 1_000L, system2);
+    for (int i = 0; i < 100; i++) {
+      underTest.put("key" + i, new byte[] {1});
+    }
+
+    assertThat(underTest.stats().getEvictions()).isEqualTo(100L - underTest.size());
+  }
+
+  @Test
+  public void stats_of_empty_cache() {
+    CacheStats stats = new HeapLruCache(1_000_000L, 1_000L, system2).stats();
+
+    assertThat(stats.getSize()).isZero();
+    assertThat(stats.getHitRatio()).isZero();
+    assertThat(stats.getOldestEntryCreatedAt()).isEqualTo(-1L);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IdentityFingerprintsTest {
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private System2 system2 = mock(System2.class);
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+  private IdentityFingerprints underTest = new IdentityFingerprints(bitbucketSettings,
+    new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), system2), userIdentityFactory, metrics, system2);
+
+  @Test
+  public void disabled_by_default() {
+    GsonUser user = new GsonUser("john", "John", "ABCD");
+    underTest.record(userIdentityFactory.createWithEmail(user, "john@bitbucket.org"));
+
+    assertThat(underTest.findUnchanged(user, null)).isEmpty();
+  }
+
+  @Test
+  public void find_unchanged_identity_during_freshness_window() {
+    settings.setProperty(BitbucketSettings.PROFILE_FRESHNESS_IN_MINUTES, 1);
+    GsonUser user = new GsonUser("john", "John", "ABCD");
+    when(system2.now()).thenReturn(1_000L);
+    underTest.record(userIdentityFactory.createWithEmail(user, "john@bitbucket.org"));
+
+    when(system2.now()).thenReturn(61_000L);
+    UserIdentity identity = underTest.findUnchanged(user, null).get();
+    assertThat(identity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(identity.getEmail()).isEqualTo("john@bitbucket.org");
+    assertThat(metrics.unchangedProfiles()).isEqualTo(1);
+
+    when(system2.now()).thenReturn(61_001L);
+    assertThat(underTest.findUnchanged(user, null)).isEmpty();
+  }
+
+  @Test
+  public void ignore_changed_identity() {
+    settings.setProperty(BitbucketSettings.PROFILE_FRESHNESS_IN_MINUTES, 1);
+    underTest.record(userIdentityFactory.createWithEmail(new GsonUser("john", "John", "ABCD"), null));
+
+    assertThat(underTest.findUnchanged(new GsonUser("john", "John Doe", "ABCD"), null)).isEmpty();
+    assertThat(underTest.findUnchanged(new GsonUser("johnd", "John", "ABCD"), null)).isEmpty();
+    assertThat(underTest.findUnchanged(new GsonUser("john", "John", "EFGH"), null)).isEmpty();
+    assertThat(underTest.findUnchanged(new GsonUser("john", "John", "ABCD"), null)).isPresent();
+  }
+
+  @Test
+  public void ignore_identity_with_changed_groups() {
+    settings.setProperty(BitbucketSettings.PROFILE_FRESHNESS_IN_MINUTES, 1);
+    GsonUser user = new GsonUser("john", "John", "ABCD");
+    underTest.record(userIdentityFactory.createWithEmail(user, null, new HashSet<>(asList("dev", "qa"))));
+
+    assertThat(underTest.findUnchanged(user, new HashSet<>(asList("dev")))).isEmpty();
+    assertThat(underTest.findUnchanged(user, new HashSet<>(asList("qa", "dev")))).isPresent();
+  }
+
+  @Test
+  public void ignore_removed_identity() {
+    settings.setProperty(BitbucketSettings.PROFILE_FRESHNESS_IN_MINUTES, 1);
+    GsonUser user = new GsonUser("john", "John", "ABCD");
+    underTest.record(userIdentityFactory.createWithEmail(user, null));
+
+    underTest.remove("ABCD");
+
+    assertThat(underTest.findUnchanged(user, null)).isEmpty();
+  }
+
+  @Test
+  public void fingerprint_depends_on_fields_but_not_on_order_of_groups() {
+    UserIdentity identity = UserIdentity.builder().setProviderLogin("john").setLogin("john").setName("John")
+      .setGroups(new HashSet<>(asList("a", "b"))).build();
+    UserIdentity sameIdentity = UserIdentity.builder().setProviderLogin("john").setLogin("john").setName("John")
+      .setGroups(new LinkedHashSet<>(asList("b", "a"))).build();
+    UserIdentity otherIdentity = UserIdentity.builder().setProviderLogin("john").setLogin("joh").setName("nJohn")
+      .setGroups(new HashSet<>(asList("a", "b"))).build();
+
+    assertThat(IdentityFingerprints.fingerprint(identity))
+      .isEqualTo(IdentityFingerprints.fingerprint(sameIdentity))
+      .isNotEqualTo(IdentityFingerprints.fingerprint(otherIdentity));
+  }
+
+  @Test
+  public void ignore_identity_recorded_with_expired_token() {
+    settings.setProperty(BitbucketSettings.PROFILE_FRESHNESS_IN_MINUTES, 60);
+    GsonUser user = new GsonUser("john", "John", "ABCD");
+    when(system2.now()).thenReturn(1_000L);
+    underTest.record(userIdentityFactory.createWithEmail(user, "john@bitbucket.org"), 10L);
+
+    when(system2.now()).thenReturn(11_000L);
+    assertThat(underTest.findUnchanged(user, null)).isPresent();
+
+    when(system2.now()).thenReturn(11_001L);
+    assertThat(underTest.findUnchanged(user, null)).isEmpty();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuthService;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class InMemoryTransportTest {
+
+  private InMemoryTransport underTest = new InMemoryTransport();
+
+  @Test
+  public void serve_response_of_path() {
+    underTest.on("/2.0/user", 200, "{\"username\":\"john\"}");
+
+    ApiResponse response = underTest.send(new OAuthRequest(Verb.GET, "https://api.bitbucket.org/2.0/user?fields=username", scribe()));
+
+    assertThat(response.getCode()).isEqualTo(200);
+    assertThat(response.body()).isEqualTo("{\"username\":\"john\"}");
+    assertThat(underTest.requestCount("/2.0/user")).isEqualTo(1L);
+  }
+
+  @Test
+  public void serve_response_of_handler() {
+    underTest.on("/2.0/user", request -> new InMemoryTransport.Response(200, request.getVerb().name().getBytes(StandardCharsets.UTF_8)));
+
+    ApiResponse response = underTest.send(new OAuthRequest(Verb.GET, "https://api.bitbucket.org/2.0/user", scribe()));
+
+    assertThat(response.body()).isEqualTo("GET");
+  }
+
+  @Test
+  public void return_404_on_unknown_path() {
+    ApiResponse response = underTest.send(new OAuthRequest(Verb.GET, "https://api.bitbucket.org/2.0/unknown", scribe()));
+
+    assertThat(response.getCode()).isEqualTo(404);
+    assertThat(underTest.requestCount("/2.0/unknown")).isEqualTo(1L);
+    assertThat(underTest.requestCount("/2.0/user")).isZero();
+  }
+
+  @Test
+  public void authenticate_without_network() {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+    UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+    BitbucketMetrics metrics = new BitbucketMetrics();
+    BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+    underTest
+      .on("/site/oauth2/access_token", 200, "{\"access_token\":\"the_token\",\"token_type\":\"bearer\"}")
+      .on("/2.0/user", 200, "{\"username\":\"john\",\"display_name\":\"John\",\"uuid\":\"{john}\"}")
+      .on("/2.0/user/emails", 200, "{\"values\":[{\"email\":\"john@bitbucket.org\",\"is_primary\":true,\"is_confirmed\":true}]}");
+    BitbucketIdentityProvider provider = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, new BitbucketScribeApi(bitbucketSettings),
+      underTest, metrics, mock(AuditLog.class), new AuthenticationPipeline(userIdentityFactory, metrics, new ConcurrencyLimiter(metrics, System2.INSTANCE),
+        mock(MembershipSelector.class), mock(MembershipProbe.class), mock(MembershipFilter.class), mock(TeamMembers.class),
+        new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE),
+        new VerifiedProfiles(bitbucketSettings, caches, System2.INSTANCE), System2.INSTANCE),
+      System2.INSTANCE);
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("the_code");
+    provider.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(context.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+    assertThat(underTest.requestCount("/site/oauth2/access_token")).isEqualTo(1L);
+  }
+
+  private static OAuthService scribe() {
+    return new ServiceBuilder().provider(new BitbucketScribeApi(null)).apiKey("id").apiSecret("secret").build();
+  }
+}
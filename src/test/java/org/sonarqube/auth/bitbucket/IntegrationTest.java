@@ -22,26 +22,31 @@ package org.sonarqube.auth.bitbucket;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import okio.Buffer;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UnauthorizedException;
-import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
 
 import static java.lang.String.format;
 import static java.net.URLEncoder.encode;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 public class IntegrationTest {
@@ -59,7 +64,15 @@ public class IntegrationTest {
   private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
   private UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
   private BitbucketScribeApi scribeApi = new BitbucketScribeApi(bitbucketSettings);
-  private BitbucketIdentityProvider underTest = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, scribeApi);
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+  private IdentityFingerprints fingerprints = new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE);
+  private AuditLog auditLog = mock(AuditLog.class);
+  private ConcurrencyLimiter limiter = new ConcurrencyLimiter(metrics, System2.INSTANCE);
+  private AuthenticationPipeline pipeline = new AuthenticationPipeline(userIdentityFactory, metrics, limiter, new MembershipSelector(bitbucketSettings, System2.INSTANCE),
+    mock(MembershipProbe.class), mock(MembershipFilter.class), mock(TeamMembers.class), fingerprints, mock(VerifiedProfiles.class), System2.INSTANCE);
+  private BitbucketIdentityProvider underTest = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, scribeApi, new HttpTransport(), metrics,
+    auditLog, pipeline, System2.INSTANCE);
 
   @Before
   public void setUp() {
@@ -68,6 +81,8 @@ public class IntegrationTest {
     settings.setProperty("sonar.auth.bitbucket.enabled", true);
     settings.setProperty("sonar.auth.bitbucket.apiUrl", format("http://%s:%d", bitbucket.getHostName(), bitbucket.getPort()));
     settings.setProperty("sonar.auth.bitbucket.webUrl", format("http://%s:%d", bitbucket.getHostName(), bitbucket.getPort()));
+    // responses are queued in the order of the requests listing teams. Probes of teams are tested by ResilienceTest.
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
   }
 
   /**
@@ -109,6 +124,7 @@ public class IntegrationTest {
     assertThat(callbackContext.userIdentity.getName()).isEqualTo("John");
     assertThat(callbackContext.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
     assertThat(callbackContext.redirectedToRequestedPage.get()).isTrue();
+    verify(auditLog).authenticated(null, "john@bitbucket");
 
     // Verify the requests sent to Bitbucket
     RecordedRequest accessTokenRequest = bitbucket.takeRequest();
@@ -121,6 +137,114 @@ public class IntegrationTest {
     assertThat(bitbucket.getRequestCount()).isEqualTo(3);
   }
 
+  @Test
+  public void request_and_decompress_gzip_responses() throws Exception {
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(gzip(newUserResponse("john", "John")));
+    bitbucket.enqueue(gzip(newPrimaryEmailResponse("john@bitbucket.org")));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newRequest("the-verifier-code"));
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(callbackContext.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+
+    bitbucket.takeRequest();
+    assertThat(bitbucket.takeRequest().getHeader("Accept-Encoding")).isEqualTo("gzip, deflate");
+    assertThat(bitbucket.takeRequest().getHeader("Accept-Encoding")).isEqualTo("gzip, deflate");
+    assertThat(metrics.logins()).isEqualTo(1);
+    assertThat(metrics.requests("user")).isEqualTo(1);
+    assertThat(metrics.bytesReceived("emails")).isPositive();
+  }
+
+  @Test
+  public void request_only_the_fields_bound_by_the_models() throws Exception {
+    settings.setProperty("sonar.auth.bitbucket.teams", new String[] {"team1"});
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(newUserResponse("john", "John"));
+    bitbucket.enqueue(newTeamsResponse("team1"));
+    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
+
+    underTest.callback(new DumbCallbackContext(newRequest("the-verifier-code")));
+
+    bitbucket.takeRequest();
+    assertThat(bitbucket.takeRequest().getPath()).isEqualTo("/2.0/user?fields=username,display_name,uuid&access_token=e72e16c7e42f292c6912e7710c838347ae178b4a");
+    assertThat(bitbucket.takeRequest().getPath()).startsWith("/2.0/teams?role=member&pagelen=100&fields=values.username,next&");
+    assertThat(bitbucket.takeRequest().getPath()).startsWith("/2.0/user/emails?fields=values.email,values.is_primary,values.is_confirmed,next&");
+  }
+
+  @Test
+  public void request_full_responses_if_partial_responses_are_not_supported() throws Exception {
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(new MockResponse().setResponseCode(400).setBody("{\"error\": {\"message\": \"unknown parameter fields\"}}"));
+    bitbucket.enqueue(newUserResponse("john", "John"));
+    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
+    // second login
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(newUserResponse("john", "John"));
+    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newRequest("the-verifier-code"));
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+
+    bitbucket.takeRequest();
+    assertThat(bitbucket.takeRequest().getPath()).startsWith("/2.0/user?fields=");
+    assertThat(bitbucket.takeRequest().getPath()).startsWith("/2.0/user?access_token=");
+    assertThat(bitbucket.takeRequest().getPath()).startsWith("/2.0/user/emails?fields=");
+    assertThat(metrics.partialResponseFallbacks("user")).isEqualTo(1);
+
+    // fields are not requested anymore on the user endpoint
+    underTest.callback(new DumbCallbackContext(newRequest("the-verifier-code")));
+    bitbucket.takeRequest();
+    assertThat(bitbucket.takeRequest().getPath()).startsWith("/2.0/user?access_token=");
+    assertThat(bitbucket.getRequestCount()).isEqualTo(7);
+  }
+
+  @Test
+  public void reject_authentication_when_too_many_are_waiting_on_bitbucket() {
+    for (int i = 0; i < limiter.limit(); i++) {
+      limiter.tryAcquire();
+    }
+
+    expectedException.expect(UnauthorizedException.class);
+    expectedException.expectMessage("Too many users are currently authenticating with Bitbucket. Please try again in a few seconds.");
+    try {
+      underTest.callback(new DumbCallbackContext(newRequest("the-verifier-code")));
+    } finally {
+      assertThat(bitbucket.getRequestCount()).isZero();
+      assertThat(metrics.rejectedCallbacks()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void do_not_request_emails_of_unchanged_profile_during_freshness_window() throws Exception {
+    settings.setProperty("sonar.auth.bitbucket.profileFreshnessInMinutes", 10);
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(newUserResponse("john", "John", "{abcd}"));
+    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
+    // second login, profile is unchanged
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(newUserResponse("john", "John", "{abcd}"));
+    // third login, name is changed
+    bitbucket.enqueue(newSuccessfulAccessTokenResponse());
+    bitbucket.enqueue(newUserResponse("john", "John Doe", "{abcd}"));
+    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
+
+    underTest.callback(new DumbCallbackContext(newRequest("the-verifier-code")));
+    DumbCallbackContext secondContext = new DumbCallbackContext(newRequest("the-verifier-code"));
+    underTest.callback(secondContext);
+    assertThat(bitbucket.getRequestCount()).isEqualTo(5);
+    assertThat(secondContext.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+    assertThat(secondContext.userIdentity.getProviderId()).isEqualTo("{abcd}");
+    assertThat(metrics.unchangedProfiles()).isEqualTo(1);
+
+    DumbCallbackContext thirdContext = new DumbCallbackContext(newRequest("the-verifier-code"));
+    underTest.callback(thirdContext);
+    assertThat(bitbucket.getRequestCount()).isEqualTo(8);
+    assertThat(thirdContext.userIdentity.getName()).isEqualTo("John Doe");
+  }
+
   @Test
   public void callback_throws_ISE_if_error_when_requesting_user_profile() {
     bitbucket.enqueue(newSuccessfulAccessTokenResponse());
@@ -130,11 +254,13 @@ public class IntegrationTest {
     DumbCallbackContext callbackContext = new DumbCallbackContext(newRequest("the-verifier-code"));
     expectedException.expect(IllegalStateException.class);
     expectedException.expectMessage("Can not get Bitbucket user profile. HTTP code: 500, response: {error}");
-    underTest.callback(callbackContext);
-
-    assertThat(callbackContext.csrfStateVerified.get()).isTrue();
-    assertThat(callbackContext.userIdentity).isNull();
-    assertThat(callbackContext.redirectedToRequestedPage.get()).isFalse();
+    try {
+      underTest.callback(callbackContext);
+    } finally {
+      assertThat(callbackContext.userIdentity).isNull();
+      assertThat(callbackContext.redirectedToRequestedPage.get()).isFalse();
+      verify(auditLog).upstreamError(null, null, "Can not get Bitbucket user profile. HTTP code: 500, response: {error}");
+    }
   }
 
   @Test
@@ -143,8 +269,8 @@ public class IntegrationTest {
 
     bitbucket.enqueue(newSuccessfulAccessTokenResponse());
     bitbucket.enqueue(newUserResponse("john", "John"));
-    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
     bitbucket.enqueue(newTeamsResponse("team3", "team2"));
+    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
 
     HttpServletRequest request = newRequest("the-verifier-code");
     DumbCallbackContext callbackContext = new DumbCallbackContext(request);
@@ -160,13 +286,19 @@ public class IntegrationTest {
 
     bitbucket.enqueue(newSuccessfulAccessTokenResponse());
     bitbucket.enqueue(newUserResponse("john", "John"));
-    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
     bitbucket.enqueue(newTeamsResponse("team3"));
 
     expectedException.expect(UnauthorizedException.class);
 
     DumbCallbackContext context = new DumbCallbackContext(newRequest("the-verifier-code"));
-    underTest.callback(context);
+    try {
+      underTest.callback(context);
+    } finally {
+      verify(auditLog).teamDenied(null, "john");
+      verifyNoMoreInteractions(auditLog);
+      // emails are not requested
+      assertThat(bitbucket.getRequestCount()).isEqualTo(3);
+    }
   }
 
   @Test
@@ -175,7 +307,6 @@ public class IntegrationTest {
 
     bitbucket.enqueue(newSuccessfulAccessTokenResponse());
     bitbucket.enqueue(newUserResponse("john", "John"));
-    bitbucket.enqueue(newPrimaryEmailResponse("john@bitbucket.org"));
     bitbucket.enqueue(newTeamsResponse(/* no teams */));
 
     expectedException.expect(UnauthorizedException.class);
@@ -198,6 +329,10 @@ public class IntegrationTest {
     return new MockResponse().setBody("{\"username\":\"" + login + "\", \"display_name\":\"" + name + "\"}");
   }
 
+  private static MockResponse newUserResponse(String login, String name, String uuid) {
+    return new MockResponse().setBody("{\"username\":\"" + login + "\", \"display_name\":\"" + name + "\", \"uuid\":\"" + uuid + "\"}");
+  }
+
   /**
    * Response of https://api.bitbucket.org/2.0/teams/{username}
    */
@@ -215,53 +350,20 @@ public class IntegrationTest {
     return new MockResponse().setBody("{\"values\":[{\"active\": true,\"email\":\"" + email + "\",\"is_primary\": true}]}");
   }
 
+  private static MockResponse gzip(MockResponse response) throws IOException {
+    Buffer compressed = new Buffer();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed.outputStream())) {
+      gzip.write(response.getBody().readByteArray());
+    }
+    return response.setBody(compressed).setHeader("Content-Encoding", "gzip");
+  }
+
   private static HttpServletRequest newRequest(String verifierCode) {
     HttpServletRequest request = mock(HttpServletRequest.class);
     when(request.getParameter("code")).thenReturn(verifierCode);
     return request;
   }
 
-  private static class DumbCallbackContext implements OAuth2IdentityProvider.CallbackContext {
-    final HttpServletRequest request;
-    final AtomicBoolean csrfStateVerified = new AtomicBoolean(false);
-    final AtomicBoolean redirectedToRequestedPage = new AtomicBoolean(false);
-    UserIdentity userIdentity = null;
-
-    public DumbCallbackContext(HttpServletRequest request) {
-      this.request = request;
-    }
-
-    @Override
-    public void verifyCsrfState() {
-      this.csrfStateVerified.set(true);
-    }
-
-    @Override
-    public void redirectToRequestedPage() {
-      redirectedToRequestedPage.set(true);
-    }
-
-    @Override
-    public void authenticate(UserIdentity userIdentity) {
-      this.userIdentity = userIdentity;
-    }
-
-    @Override
-    public String getCallbackUrl() {
-      return CALLBACK_URL;
-    }
-
-    @Override
-    public HttpServletRequest getRequest() {
-      return request;
-    }
-
-    @Override
-    public HttpServletResponse getResponse() {
-      throw new UnsupportedOperationException("not used");
-    }
-  }
-
   private static class DumbInitContext implements OAuth2IdentityProvider.InitContext {
     String redirectedTo = null;
     private final String generatedCsrfState;
@@ -0,0 +1,91 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoginTemplateTest {
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  private GsonUser user = new GsonUser("john", "John", "{ABCD}");
+
+  @Test
+  public void generate_login_from_placeholders_and_literals() {
+    assertThat(LoginTemplate.compile("{username}").generate(user, null)).isEqualTo("john");
+    assertThat(LoginTemplate.compile("{username}@{provider}").generate(user, null)).isEqualTo("john@bitbucket");
+    assertThat(LoginTemplate.compile("bb-{uuid}").generate(user, null)).isEqualTo("bb-{ABCD}");
+    assertThat(LoginTemplate.compile("{email-local-part}.ext").generate(user, "jdoe@corp.com")).isEqualTo("jdoe.ext");
+    assertThat(LoginTemplate.compile("{email-local-part}").generate(user, "jdoe")).isEqualTo("jdoe");
+  }
+
+  @Test
+  public void same_as_legacy_strategies_on_missing_username() {
+    GsonUser userWithoutName = new GsonUser(null, null, "ABCD");
+
+    assertThat(LoginTemplate.compile(UserIdentityFactory.PROVIDER_LOGIN_TEMPLATE).generate(userWithoutName, null)).isNull();
+    assertThat(LoginTemplate.compile(UserIdentityFactory.UNIQUE_LOGIN_TEMPLATE).generate(userWithoutName, null)).isEqualTo("null@bitbucket");
+  }
+
+  @Test
+  public void fail_if_email_is_required_but_missing() {
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Email is required by login template '{email-local-part}'");
+
+    LoginTemplate.compile("{email-local-part}").generate(user, null);
+  }
+
+  @Test
+  public void fail_if_uuid_is_required_but_missing() {
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("UUID is required by login template 'bb-{uuid}'");
+
+    LoginTemplate.compile("bb-{uuid}").generate(new GsonUser("john", "John", null), null);
+  }
+
+  @Test
+  public void fail_to_compile_unknown_placeholder() {
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Invalid login template '{login}': unknown placeholder {login}");
+
+    LoginTemplate.compile("{login}");
+  }
+
+  @Test
+  public void fail_to_compile_unclosed_placeholder() {
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Invalid login template '{username': missing '}'");
+
+    LoginTemplate.compile("{username");
+  }
+
+  @Test
+  public void fail_to_compile_empty_template() {
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Login template is empty");
+
+    LoginTemplate.compile("");
+  }
+}
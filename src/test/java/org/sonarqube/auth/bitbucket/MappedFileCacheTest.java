@@ -0,0 +1,236 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MappedFileCacheTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  private System2 system2 = mock(System2.class);
+
+  @Test
+  public void put_and_get() throws IOException {
+    MappedFileCache underTest = new MappedFileCache(temp.newFile(), 1024, 1_000L, system2);
+
+    underTest.put("foo", new byte[] {1, 2});
+    underTest.put("bar", new byte[0]);
+
+    assertThat(underTest.get("foo")).containsExactly(1, 2);
+    assertThat(underTest.get("bar")).isEmpty();
+    assertThat(underTest.get("other")).isNull();
+    assertThat(underTest.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void entries_survive_reopening_of_file() throws IOException {
+    File file = new File(temp.newFolder(), "sub/test.cache");
+    MappedFileCache underTest = new MappedFileCache(file, 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+    underTest.put("bar", new byte[] {2});
+    underTest.put("foo", new byte[] {3});
+    underTest.remove("bar");
+    underTest.close();
+
+    MappedFileCache reopened = new MappedFileCache(file, 1024, 1_000L, system2);
+
+    assertThat(reopened.get("foo")).containsExactly(3);
+    assertThat(reopened.get("bar")).isNull();
+    assertThat(reopened.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void truncate_log_at_record_with_negative_value_length() throws IOException {
+    File file = temp.newFile();
+    MappedFileCache underTest = new MappedFileCache(file, 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+    underTest.put("bar", new byte[] {2});
+    underTest.put("baz", new byte[] {3});
+    underTest.close();
+    // header (4) + record "foo" (4 + 23), then length (4), fixed fields (15) and key (3) of "bar"
+    corrupt(file, 4 + 27 + 4 + 15 + 3, -5);
+
+    MappedFileCache reopened = new MappedFileCache(file, 1024, 1_000L, system2);
+
+    assertThat(reopened.get("foo")).containsExactly(1);
+    assertThat(reopened.get("bar")).isNull();
+    assertThat(reopened.get("baz")).isNull();
+    assertThat(reopened.usedBytes()).isEqualTo(4 + 27);
+
+    // the log is appended after the last valid record
+    reopened.put("qix", new byte[] {4});
+    reopened.close();
+    reopened = new MappedFileCache(file, 1024, 1_000L, system2);
+    assertThat(reopened.get("foo")).containsExactly(1);
+    assertThat(reopened.get("qix")).containsExactly(4);
+  }
+
+  @Test
+  public void truncate_log_at_record_with_invalid_record_length() throws IOException {
+    File file = temp.newFile();
+    MappedFileCache underTest = new MappedFileCache(file, 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+    underTest.put("bar", new byte[] {2});
+    underTest.close();
+    corrupt(file, 4 + 27, Integer.MAX_VALUE);
+
+    MappedFileCache reopened = new MappedFileCache(file, 1024, 1_000L, system2);
+
+    assertThat(reopened.get("foo")).containsExactly(1);
+    assertThat(reopened.get("bar")).isNull();
+    assertThat(reopened.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void truncate_log_at_record_with_invalid_checksum() throws IOException {
+    File file = temp.newFile();
+    MappedFileCache underTest = new MappedFileCache(file, 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+    underTest.put("bar", new byte[] {2, 3, 4, 5});
+    underTest.close();
+    // value of "bar" partially written, its length prefix is intact
+    corrupt(file, 4 + 27 + 4 + 15 + 3 + 4, 0);
+
+    MappedFileCache reopened = new MappedFileCache(file, 1024, 1_000L, system2);
+
+    assertThat(reopened.get("foo")).containsExactly(1);
+    assertThat(reopened.get("bar")).isNull();
+    assertThat(reopened.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void fail_when_used_after_close() throws IOException {
+    MappedFileCache underTest = new MappedFileCache(temp.newFile(), 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+
+    underTest.close();
+
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.usedBytes()).isZero();
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("is closed");
+    underTest.get("foo");
+  }
+
+  @Test
+  public void fail_if_key_is_too_long() throws IOException {
+    MappedFileCache underTest = new MappedFileCache(temp.newFile(), 1024 * 1024, 1_000L, system2);
+
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Cache key is too long: 32768 bytes");
+    underTest.put(new String(new char[Short.MAX_VALUE + 1]).replace((char) 0, 'a'), new byte[] {1});
+  }
+
+  @Test
+  public void expire_entries_older_than_ttl() throws IOException {
+    File file = temp.newFile();
+    when(system2.now()).thenReturn(10_000L);
+    MappedFileCache underTest = new MappedFileCache(file, 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+
+    when(system2.now()).thenReturn(11_001L);
+    assertThat(underTest.get("foo")).isNull();
+    underTest.close();
+
+    // expired entries are not loaded
+    assertThat(new MappedFileCache(file, 1024, 1_000L, system2).size()).isZero();
+  }
+
+  @Test
+  public void compact_log_when_file_is_full() throws IOException {
+    MappedFileCache underTest = new MappedFileCache(temp.newFile(), 256, 1_000L, system2);
+
+    for (int i = 0; i < 100; i++) {
+      underTest.put("foo", new byte[] {(byte) i});
+      underTest.put("bar", new byte[] {(byte) -i});
+    }
+
+    assertThat(underTest.get("foo")).containsExactly(99);
+    assertThat(underTest.get("bar")).containsExactly(-99);
+    assertThat(underTest.usedBytes()).isLessThan(256);
+  }
+
+  @Test
+  public void do_not_cache_values_larger_than_file() throws IOException {
+    MappedFileCache underTest = new MappedFileCache(temp.newFile(), 256, 1_000L, system2);
+
+    underTest.put("foo", new byte[300]);
+
+    assertThat(underTest.get("foo")).isNull();
+  }
+
+  @Test
+  public void clear() throws IOException {
+    File file = temp.newFile();
+    MappedFileCache underTest = new MappedFileCache(file, 1024, 1_000L, system2);
+    underTest.put("foo", new byte[] {1});
+
+    underTest.clear();
+    underTest.close();
+
+    assertThat(new MappedFileCache(file, 1024, 1_000L, system2).get("foo")).isNull();
+  }
+
+  @Test
+  public void count_hits_misses_and_evictions() throws IOException {
+    MappedFileCache underTest = new MappedFileCache(temp.newFile(), 1024, 1_000L, system2);
+    when(system2.now()).thenReturn(10_000L);
+    underTest.put("foo", new byte[] {1});
+    when(system2.now()).thenReturn(10_500L);
+    underTest.put("bar", new byte[] {2});
+
+    underTest.get("foo");
+    underTest.get("baz");
+    CacheStats stats = underTest.stats();
+    assertThat(stats.getSize()).isEqualTo(2);
+    assertThat(stats.getWeight()).isEqualTo(underTest.usedBytes());
+    assertThat(stats.getHits()).isEqualTo(1L);
+    assertThat(stats.getMisses()).isEqualTo(1L);
+    assertThat(stats.getOldestEntryCreatedAt()).isEqualTo(10_000L);
+
+    when(system2.now()).thenReturn(11_200L);
+    assertThat(underTest.get("foo")).isNull();
+    stats = underTest.stats();
+    assertThat(stats.getEvictions()).isEqualTo(1L);
+    assertThat(stats.getOldestEntryCreatedAt()).isEqualTo(10_500L);
+  }
+
+  private static void corrupt(File file, int offset, int value) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(offset);
+      raf.writeInt(value);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.sonarqube.auth.bitbucket.MembershipFilter.CHUNK_SIZE;
+
+public class MembershipFilterTest {
+
+  @Test
+  public void split_teams_in_chunks() {
+    assertThat(MembershipFilter.chunks(new String[0])).isEmpty();
+    assertThat(MembershipFilter.chunks(new String[] {"team1"})).containsExactly(asList("team1"));
+
+    String[] teams = new String[2 * CHUNK_SIZE + 1];
+    for (int i = 0; i < teams.length; i++) {
+      teams[i] = "team" + i;
+    }
+    List<List<String>> chunks = MembershipFilter.chunks(teams);
+
+    assertThat(chunks).extracting(List::size).containsExactly(CHUNK_SIZE, CHUNK_SIZE, 1);
+    assertThat(chunks.get(2)).containsExactly("team" + (2 * CHUNK_SIZE));
+  }
+
+  @Test
+  public void query_matches_any_team() {
+    assertThat(MembershipFilter.query(asList("team1"))).isEqualTo("username=\"team1\"");
+    assertThat(MembershipFilter.query(asList("team1", "team2"))).isEqualTo("username=\"team1\" OR username=\"team2\"");
+  }
+
+  @Test
+  public void escape_quotes_in_query() {
+    assertThat(MembershipFilter.query(asList("a\"b", "c\\d"))).isEqualTo("username=\"a\\\"b\" OR username=\"c\\\\d\"");
+  }
+}
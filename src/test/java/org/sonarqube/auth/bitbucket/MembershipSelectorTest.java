@@ -0,0 +1,121 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sonarqube.auth.bitbucket.MembershipSelector.EXPLORATION_INTERVAL;
+import static org.sonarqube.auth.bitbucket.MembershipSelector.MAX_PROBED_TEAMS;
+
+public class MembershipSelectorTest {
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private System2 system2 = mock(System2.class);
+  private MembershipSelector underTest = new MembershipSelector(new BitbucketSettings(settings.asConfig()), system2);
+
+  @Before
+  public void setUp() {
+    settings.setProperty(BitbucketSettings.MEMBERSHIP_CHECK, BitbucketSettings.MEMBERSHIP_CHECK_AUTO);
+  }
+
+  @Test
+  public void list_teams_by_default() {
+    settings.removeProperty(BitbucketSettings.MEMBERSHIP_CHECK);
+
+    assertThat(underTest.shouldProbe(1)).isFalse();
+    assertThat(underTest.shouldFilter()).isFalse();
+  }
+
+  @Test
+  public void forced_mode() {
+    settings.setProperty(BitbucketSettings.MEMBERSHIP_CHECK, BitbucketSettings.MEMBERSHIP_CHECK_PROBE);
+    assertThat(underTest.shouldProbe(1_000)).isTrue();
+
+    settings.setProperty(BitbucketSettings.MEMBERSHIP_CHECK, BitbucketSettings.MEMBERSHIP_CHECK_LIST);
+    assertThat(underTest.shouldProbe(1)).isFalse();
+  }
+
+  @Test
+  public void do_not_probe_too_many_teams() {
+    assertThat(underTest.shouldProbe(MAX_PROBED_TEAMS)).isTrue();
+    assertThat(underTest.shouldProbe(MAX_PROBED_TEAMS + 1)).isFalse();
+  }
+
+  @Test
+  public void measure_each_strategy_then_select_the_fastest() {
+    assertThat(underTest.shouldProbe(3)).isTrue();
+    probeIn(100L, true);
+    assertThat(underTest.shouldProbe(3)).isFalse();
+    listIn(300L);
+
+    assertThat(underTest.shouldProbe(3)).isTrue();
+
+    // listing becomes faster
+    for (int i = 0; i < 10; i++) {
+      listIn(10L);
+    }
+    assertThat(underTest.averageListingMs()).isLessThan(100.0);
+    assertThat(underTest.shouldProbe(3)).isFalse();
+  }
+
+  @Test
+  public void explore_other_strategy_periodically() {
+    probeIn(100L, true);
+    listIn(300L);
+
+    int listings = 0;
+    for (int i = 0; i < EXPLORATION_INTERVAL * 2; i++) {
+      if (!underTest.shouldProbe(3)) {
+        listings++;
+      }
+    }
+
+    assertThat(listings).isEqualTo(2);
+  }
+
+  @Test
+  public void do_not_select_failing_probes() {
+    probeIn(10L, null);
+    listIn(300L);
+
+    assertThat(underTest.shouldProbe(3)).isFalse();
+
+    // until explored again successfully
+    probeIn(10L, true);
+    assertThat(underTest.averageProbeMs()).isEqualTo(10.0);
+  }
+
+  private void probeIn(long durationMs, Boolean result) {
+    when(system2.now()).thenReturn(0L, durationMs);
+    underTest.timeProbe(() -> result);
+  }
+
+  private void listIn(long durationMs) {
+    when(system2.now()).thenReturn(0L, durationMs);
+    underTest.timeListing(() -> null);
+  }
+}
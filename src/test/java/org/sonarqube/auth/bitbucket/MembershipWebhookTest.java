@@ -0,0 +1,196 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class MembershipWebhookTest {
+
+  private static final String SECRET = "s3cr3t";
+  private static final String MEMBER_REMOVED = "{\"workspace\":{\"slug\":\"team1\",\"uuid\":\"{w1}\"},\"member\":{\"uuid\":\"{john}\",\"username\":\"john\"}}";
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private TeamMembers teamMembers = mock(TeamMembers.class);
+  private IdentityFingerprints fingerprints = mock(IdentityFingerprints.class);
+  private VerifiedProfiles verifiedProfiles = mock(VerifiedProfiles.class);
+  private HttpServletResponse response = mock(HttpServletResponse.class);
+  private MembershipWebhook underTest = new MembershipWebhook(bitbucketSettings, teamMembers, fingerprints, verifiedProfiles);
+
+  @Before
+  public void setUp() {
+    settings.setProperty(BitbucketSettings.WEBHOOK_SECRET, SECRET);
+  }
+
+  @Test
+  public void url_pattern() {
+    assertThat(underTest.doGetPattern().matches("/authbitbucket/webhook")).isTrue();
+    assertThat(underTest.doGetPattern().matches("/api/authbitbucket/diagnostics")).isFalse();
+  }
+
+  @Test
+  public void remove_member_and_invalidate_their_profile() throws Exception {
+    post(MembershipWebhook.MEMBER_REMOVED, MEMBER_REMOVED, signature(MEMBER_REMOVED));
+
+    verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+    verify(teamMembers).removeMember("{john}", "team1");
+    verify(fingerprints).remove("{john}");
+    verify(verifiedProfiles).remove("{john}");
+  }
+
+  @Test
+  public void never_grant_membership_of_added_member() throws Exception {
+    String payload = "{\"workspace\":{\"slug\":\"team3\"},\"member\":{\"uuid\":\"{jane}\"}}";
+
+    post("workspace:member_added", payload, signature(payload));
+
+    verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+    verifyZeroInteractions(teamMembers, fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void reject_invalid_signature() throws Exception {
+    post(MembershipWebhook.MEMBER_REMOVED, MEMBER_REMOVED, "sha256=" + MembershipWebhook.sign("other", MEMBER_REMOVED.getBytes(StandardCharsets.UTF_8)));
+    post(MembershipWebhook.MEMBER_REMOVED, MEMBER_REMOVED, MembershipWebhook.sign(SECRET, MEMBER_REMOVED.getBytes(StandardCharsets.UTF_8)));
+    post(MembershipWebhook.MEMBER_REMOVED, MEMBER_REMOVED, null);
+
+    verify(response, times(3)).sendError(HttpServletResponse.SC_UNAUTHORIZED);
+    verifyZeroInteractions(teamMembers, fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void reject_tampered_payload() throws Exception {
+    String tampered = MEMBER_REMOVED.replace("{john}", "{jane}");
+
+    post(MembershipWebhook.MEMBER_REMOVED, tampered, signature(MEMBER_REMOVED));
+
+    verify(response).sendError(HttpServletResponse.SC_UNAUTHORIZED);
+    verifyZeroInteractions(fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void not_found_if_secret_is_not_defined() throws Exception {
+    settings.removeProperty(BitbucketSettings.WEBHOOK_SECRET);
+
+    post(MembershipWebhook.MEMBER_REMOVED, MEMBER_REMOVED, signature(MEMBER_REMOVED));
+
+    verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+    verifyZeroInteractions(fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void ignore_other_events() throws Exception {
+    String payload = "{\"repository\":{\"full_name\":\"team1/repo\"}}";
+
+    post("repo:push", payload, signature(payload));
+
+    verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+    verifyZeroInteractions(fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void reject_event_without_member() throws Exception {
+    String payload = "{\"workspace\":{\"slug\":\"team1\"}}";
+
+    post(MembershipWebhook.MEMBER_REMOVED, payload, signature(payload));
+
+    verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST, "Workspace slug and member UUID are required");
+    verifyZeroInteractions(fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void reject_malformed_payload() throws Exception {
+    String payload = "{\"workspace\":";
+
+    post(MembershipWebhook.MEMBER_REMOVED, payload, signature(payload));
+
+    verify(response).sendError(anyInt(), anyString());
+    verifyZeroInteractions(fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void reject_too_large_payload() throws Exception {
+    char[] chars = new char[MembershipWebhook.MAX_PAYLOAD_BYTES + 1];
+    Arrays.fill(chars, ' ');
+    String payload = new String(chars);
+
+    post(MembershipWebhook.MEMBER_REMOVED, payload, signature(payload));
+
+    verify(response).sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    verifyZeroInteractions(fingerprints, verifiedProfiles);
+  }
+
+  @Test
+  public void reject_get_requests() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+
+    underTest.doFilter(request, response, mock(FilterChain.class));
+
+    verify(response).sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+    verify(request, never()).getInputStream();
+  }
+
+  private void post(String event, String payload, @Nullable String signature) throws IOException {
+    ByteArrayInputStream body = new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader(MembershipWebhook.EVENT_HEADER)).thenReturn(event);
+    when(request.getHeader(MembershipWebhook.SIGNATURE_HEADER)).thenReturn(signature);
+    when(request.getInputStream()).thenReturn(new ServletInputStream() {
+      @Override
+      public int read() {
+        return body.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        return body.read(b, off, len);
+      }
+    });
+    underTest.doFilter(request, response, mock(FilterChain.class));
+  }
+
+  private static String signature(String payload) {
+    return "sha256=" + MembershipWebhook.sign(SECRET, payload.getBytes(StandardCharsets.UTF_8));
+  }
+}
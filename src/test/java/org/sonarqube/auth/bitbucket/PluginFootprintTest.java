@@ -0,0 +1,192 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.Plugin;
+import org.sonar.api.SonarQubeSide;
+import org.sonar.api.Startable;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.GlobalPropertyChangeHandler.PropertyChange;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.PluginContextImpl;
+import org.sonar.api.internal.SonarRuntimeImpl;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.Version;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Starts all the extensions of the plugin, like the server does, and checks that threads, buffers and caches
+ * are created only by the first authentication, then released when authentication is disabled.
+ */
+public class PluginFootprintTest {
+
+  @Rule
+  public FakeBitbucket bitbucket = new FakeBitbucket();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private Container container;
+
+  @After
+  public void tearDown() {
+    if (container != null) {
+      container.stop();
+    }
+  }
+
+  @Test
+  public void heavy_components_are_created_on_first_authentication_and_released_when_disabled() throws Exception {
+    settings.setProperty("sonar.path.logs", temp.newFolder().getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.apiUrl", bitbucket.url());
+    settings.setProperty("sonar.auth.bitbucket.webUrl", bitbucket.url());
+    settings.setProperty("sonar.auth.bitbucket.audit.enabled", true);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Probe teams");
+    bitbucket.addUser("john").setTeams("team1");
+
+    container = new Container(settings).start();
+    assertThat(bitbucketThreads()).isEmpty();
+    assertReleased();
+
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    BitbucketIdentityProvider provider = container.get(BitbucketIdentityProvider.class);
+    provider.callback(DumbCallbackContext.withVerifierCode("john"));
+    assertThat(container.get(BitbucketExecutor.class).isActive()).isTrue();
+    assertThat(container.get(BitbucketCaches.class).all()).isNotEmpty();
+    assertThat(container.get(AuditLog.class).isActive()).isTrue();
+
+    settings.setProperty("sonar.auth.bitbucket.enabled", false);
+    container.get(ProviderDisabledHandler.class).onChange(PropertyChange.create(BitbucketSettings.ENABLED, "false"));
+    assertReleased();
+    for (Thread thread : bitbucketThreads()) {
+      thread.join(5_000L);
+    }
+    assertThat(bitbucketThreads()).isEmpty();
+  }
+
+  private void assertReleased() {
+    assertThat(container.get(BitbucketExecutor.class).isActive()).isFalse();
+    assertThat(container.get(BitbucketCaches.class).all()).isEmpty();
+    assertThat(container.get(AuditLog.class).isActive()).isFalse();
+  }
+
+  private static List<Thread> bitbucketThreads() {
+    List<Thread> threads = new ArrayList<>();
+    Thread.getAllStackTraces().keySet().stream()
+      .filter(t -> t.isAlive() && t.getName().startsWith("bitbucket-"))
+      .forEach(threads::add);
+    return threads;
+  }
+
+  /**
+   * Minimal stand-in of the container of the server: extensions are instantiated with their greediest
+   * public constructor, and are started in the order of registration.
+   */
+  private static class Container {
+    private final Map<Class<?>, Object> components = new LinkedHashMap<>();
+    private final List<Class<?>> extensions = new ArrayList<>();
+
+    Container(MapSettings settings) {
+      Plugin.Context context = new PluginContextImpl.Builder()
+        .setSonarRuntime(SonarRuntimeImpl.forSonarQube(Version.create(7, 2), SonarQubeSide.SERVER))
+        .build();
+      new AuthBitbucketPlugin().define(context);
+      context.getExtensions().stream()
+        .filter(Class.class::isInstance)
+        .forEach(e -> extensions.add((Class<?>) e));
+      components.put(Configuration.class, settings.asConfig());
+      components.put(System2.class, System2.INSTANCE);
+      components.put(ServerFileSystem.class, mock(ServerFileSystem.class));
+    }
+
+    Container start() {
+      extensions.forEach(this::get);
+      extensions.stream().map(this::get).filter(Startable.class::isInstance).forEach(c -> ((Startable) c).start());
+      return this;
+    }
+
+    void stop() {
+      List<Object> started = new ArrayList<>();
+      extensions.stream().map(components::get).filter(Startable.class::isInstance).forEach(started::add);
+      for (int i = started.size() - 1; i >= 0; i--) {
+        ((Startable) started.get(i)).stop();
+      }
+    }
+
+    <T> T get(Class<T> type) {
+      for (Map.Entry<Class<?>, Object> component : components.entrySet()) {
+        if (type.isAssignableFrom(component.getKey())) {
+          return type.cast(component.getValue());
+        }
+      }
+      Class<?> implementation = extensions.stream()
+        .filter(type::isAssignableFrom)
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException("No component of type " + type));
+      Object component = instantiate(implementation);
+      components.put(implementation, component);
+      return type.cast(component);
+    }
+
+    private Object instantiate(Class<?> implementation) {
+      Constructor<?> constructor = Arrays.stream(implementation.getConstructors())
+        .max(Comparator.comparingInt(Constructor::getParameterCount))
+        .orElseThrow(() -> new IllegalStateException("No public constructor in " + implementation));
+      Object[] args = Arrays.stream(constructor.getParameterTypes()).map(this::argument).toArray();
+      try {
+        return constructor.newInstance(args);
+      } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+        throw new IllegalStateException("Fail to instantiate " + implementation, e);
+      }
+    }
+
+    private Object argument(Class<?> type) {
+      if (!type.isArray()) {
+        return get(type);
+      }
+      Class<?> elementType = type.getComponentType();
+      Object[] elements = extensions.stream().filter(elementType::isAssignableFrom).map(this::get).toArray();
+      Object array = Array.newInstance(elementType, elements.length);
+      System.arraycopy(elements, 0, array, 0, elements.length);
+      return array;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class PreloadMembersActionTest {
+
+  private static final String ADMIN = "{\"login\":\"admin\",\"isLoggedIn\":true,\"permissions\":{\"global\":[\"admin\"]}}";
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private TeamMembers teamMembers = mock(TeamMembers.class);
+  private PreloadMembersAction underTest = new PreloadMembersAction(bitbucketSettings, new BitbucketScribeApi(bitbucketSettings),
+    new HttpTransport(),     new BitbucketMetrics(), teamMembers);
+
+  @Test
+  public void define_ws() {
+    WebService.Context context = new WebService.Context();
+    new BitbucketWs(underTest).define(context);
+
+    WebService.Action action = context.controller("api/authbitbucket").action("preload_members");
+    assertThat(action).isNotNull();
+    assertThat(action.isPost()).isTrue();
+    assertThat(action.param("accessToken").isRequired()).isTrue();
+    assertThat(action.responseExampleAsString()).isNotEmpty();
+  }
+
+  @Test
+  public void preload_members_of_restricted_teams() {
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1,team2");
+    when(teamMembers.preload(any(), eq(new String[] {"team1", "team2"}))).thenReturn(singletonList(
+      new TeamMembers.TeamResult("team1", singletonList("{john}"), null)));
+    StringWriter json = new StringWriter();
+
+    underTest.handle(newRequest(), newResponse(json));
+
+    assertThat(json.toString()).isEqualTo("{\"teams\":[{\"team\":\"team1\",\"members\":1}]}");
+  }
+
+  @Test
+  public void do_nothing_without_team_restriction() {
+    StringWriter json = new StringWriter();
+
+    underTest.handle(newRequest(), newResponse(json));
+
+    assertThat(json.toString()).isEqualTo("{\"teams\":[]}");
+    verifyZeroInteractions(teamMembers);
+  }
+
+  private static Response newResponse(StringWriter json) {
+    Response response = mock(Response.class);
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+    return response;
+  }
+
+  private static Request newRequest() {
+    LocalConnector.LocalResponse localResponse = mock(LocalConnector.LocalResponse.class);
+    when(localResponse.getStatus()).thenReturn(200);
+    when(localResponse.getBytes()).thenReturn(ADMIN.getBytes(StandardCharsets.UTF_8));
+    LocalConnector connector = mock(LocalConnector.class);
+    when(connector.call(any())).thenReturn(localResponse);
+    Request request = mock(Request.class);
+    when(request.localConnector()).thenReturn(connector);
+    when(request.mandatoryParam("accessToken")).thenReturn("token-admin");
+    return request;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.GlobalPropertyChangeHandler.PropertyChange;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class ProviderDisabledHandlerTest {
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketExecutor executor = mock(BitbucketExecutor.class);
+  private BitbucketCaches caches = mock(BitbucketCaches.class);
+  private AuditLog auditLog = mock(AuditLog.class);
+  private AuthenticationPipeline pipeline = new AuthenticationPipeline(mock(UserIdentityFactory.class), new BitbucketMetrics(),
+    mock(ConcurrencyLimiter.class), mock(MembershipSelector.class), mock(MembershipProbe.class), mock(MembershipFilter.class),
+    mock(TeamMembers.class), mock(IdentityFingerprints.class), mock(VerifiedProfiles.class), System2.INSTANCE);
+  private ProviderDisabledHandler underTest = new ProviderDisabledHandler(new BitbucketSettings(settings.asConfig()), executor, caches, auditLog,
+    pipeline);
+
+  @Before
+  public void setUp() {
+    settings
+      .setProperty("sonar.auth.bitbucket.enabled", true)
+      .setProperty("sonar.auth.bitbucket.clientId.secured", "id")
+      .setProperty("sonar.auth.bitbucket.clientSecret.secured", "secret");
+  }
+
+  @Test
+  public void release_resources_when_authentication_is_disabled() {
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.enabled", "false"));
+
+    verify(executor).release();
+    verify(caches).release();
+    verify(auditLog).release();
+  }
+
+  @Test
+  public void wait_for_running_authentications_before_releasing_resources() throws InterruptedException {
+    pipeline.onCallbackStarted();
+    Thread disabling = new Thread(() -> underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.enabled", "false")));
+    disabling.start();
+
+    disabling.join(200L);
+    assertThat(disabling.isAlive()).isTrue();
+    verify(executor, never()).release();
+
+    pipeline.onCallbackFinished();
+    disabling.join();
+    verify(executor).release();
+    verify(caches).release();
+    verify(auditLog).release();
+  }
+
+  @Test
+  public void release_resources_if_authentications_are_still_running_after_timeout_of_api() {
+    settings.setProperty("sonar.auth.bitbucket.apiTimeoutInSeconds", 1);
+    pipeline.onCallbackStarted();
+
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.enabled", "false"));
+
+    verify(executor).release();
+    verify(caches).release();
+    verify(auditLog).release();
+  }
+
+  @Test
+  public void release_resources_when_setting_is_reset_to_default_value() {
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.enabled", null));
+
+    verify(executor).release();
+  }
+
+  @Test
+  public void release_resources_when_consumer_key_or_secret_is_removed() {
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.clientId.secured", null));
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.clientSecret.secured", ""));
+
+    verify(executor, times(2)).release();
+  }
+
+  @Test
+  public void release_resources_on_change_of_other_setting_when_authentication_is_disabled() {
+    settings.removeProperty("sonar.auth.bitbucket.clientSecret.secured");
+
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.teams", "team1"));
+
+    verify(executor).release();
+    verify(caches).release();
+    verify(auditLog).release();
+  }
+
+  @Test
+  public void ignore_changes_when_authentication_is_enabled() {
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.enabled", "true"));
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.clientId.secured", "other"));
+    underTest.onChange(PropertyChange.create("sonar.auth.bitbucket.audit.enabled", "false"));
+
+    verifyZeroInteractions(executor, caches, auditLog);
+  }
+
+  @Test
+  public void ignore_settings_of_other_plugins() {
+    settings.setProperty("sonar.auth.bitbucket.enabled", false);
+
+    underTest.onChange(PropertyChange.create("sonar.auth.github.enabled", "false"));
+
+    verifyZeroInteractions(executor, caches, auditLog);
+  }
+}
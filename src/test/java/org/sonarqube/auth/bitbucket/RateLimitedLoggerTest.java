@@ -0,0 +1,139 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class RateLimitedLoggerTest {
+
+  private Logger logger = mock(Logger.class);
+  private AtomicLong now = new AtomicLong(1_000L);
+  // not a mock, stubs of Mockito are not reliable when called concurrently
+  private System2 system2 = new System2() {
+    @Override
+    public long now() {
+      return now.get();
+    }
+  };
+  private RateLimitedLogger underTest = new RateLimitedLogger(logger, system2, 100L);
+
+  @Test
+  public void collapse_identical_warnings_of_window() {
+    underTest.warn("Fail to retrieve the teams: {}", "first");
+    now.addAndGet(50L);
+    underTest.warn("Fail to retrieve the teams: {}", "second");
+    underTest.warn("Fail to retrieve the teams: {}", "third");
+    now.addAndGet(50L);
+    underTest.warn("Fail to retrieve the teams: {}", "fourth");
+    underTest.warn("Fail to retrieve the teams: {}", "fifth");
+
+    verify(logger).warn("Fail to retrieve the teams: {}", new Object[] {"first"});
+    verify(logger).warn("Fail to retrieve the teams: {} ({} similar messages suppressed)", new Object[] {"fourth", 2L});
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test
+  public void do_not_collapse_different_warnings() {
+    underTest.warn("Fail to retrieve the teams: {}", "error");
+    underTest.warn("Fail to retrieve the members: {}", "error");
+    underTest.warn("Webhook event rejected");
+
+    verify(logger).warn("Fail to retrieve the teams: {}", new Object[] {"error"});
+    verify(logger).warn("Fail to retrieve the members: {}", new Object[] {"error"});
+    verify(logger).warn("Webhook event rejected", new Object[0]);
+  }
+
+  @Test
+  public void collapse_identical_warnings_with_exception() {
+    IOException error = new IOException("disk full");
+
+    underTest.warn("Fail to write", error);
+    underTest.warn("Fail to write", error);
+    now.addAndGet(100L);
+    underTest.warn("Fail to write", error);
+
+    verify(logger).warn("Fail to write", error);
+    verify(logger).warn("Fail to write (1 similar messages suppressed)", error);
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test
+  public void log_once_per_window_when_called_concurrently() throws InterruptedException {
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < 1_000; j++) {
+          underTest.warn("Fail to retrieve the teams: {}", "error");
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    now.addAndGet(100L);
+    underTest.warn("Fail to retrieve the teams: {}", "error");
+
+    verify(logger).warn("Fail to retrieve the teams: {}", new Object[] {"error"});
+    verify(logger).warn("Fail to retrieve the teams: {} ({} similar messages suppressed)", new Object[] {"error", 7_999L});
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test
+  public void collapse_warnings_per_subject() {
+    String pattern = "Groups of Bitbucket user {} are not synchronized";
+    underTest.warnFor("john", pattern, "john");
+    underTest.warnFor("jane", pattern, "jane");
+    underTest.warnFor("john", pattern, "john");
+    now.addAndGet(100L);
+    underTest.warnFor("john", pattern, "john");
+
+    verify(logger).warn(pattern, new Object[] {"john"});
+    verify(logger).warn(pattern, new Object[] {"jane"});
+    verify(logger).warn(pattern + " ({} similar messages suppressed)", new Object[] {"john", 1L});
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test
+  public void remove_expired_windows_when_too_many_subjects() {
+    for (int i = 0; i < RateLimitedLogger.MAX_WINDOWS; i++) {
+      underTest.warnFor("user" + i, "Warning about {}", "user" + i);
+    }
+    underTest.warnFor("user0", "Warning about {}", "user0");
+    assertThat(underTest.size()).isEqualTo(RateLimitedLogger.MAX_WINDOWS);
+
+    now.addAndGet(100L);
+    underTest.warnFor("other", "Warning about {}", "other");
+
+    // the window of user0 is kept to report its suppressed occurrence
+    assertThat(underTest.size()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuthService;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ReplayTransportTest {
+
+  @Rule
+  public FakeBitbucket bitbucket = new FakeBitbucket();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+
+  @Test
+  public void replay_anonymized_traffic_of_bitbucket() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    settings.setProperty("sonar.auth.bitbucket.apiUrl", bitbucket.url());
+    settings.setProperty("sonar.auth.bitbucket.webUrl", bitbucket.url());
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    settings.setProperty("sonar.auth.bitbucket.recording.enabled", true);
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    bitbucket.addUser("j\u00fcrgen").setDisplayName("J\u00fcrgen M\u00fcller").setEmails("jurgen@example.com", "jm@example.org")
+      .setTeams(IntStream.range(0, 250).mapToObj(i -> "team" + i).collect(Collectors.toList()));
+    bitbucket.teamsPageSize(100);
+    TrafficRecorder recorder = new TrafficRecorder(bitbucketSettings, mock(ServerFileSystem.class));
+
+    UserIdentity recorded = authenticate(new HttpTransport(recorder), "j\u00fcrgen");
+    String recording = new String(Files.readAllBytes(recorder.file().toPath()), StandardCharsets.UTF_8);
+    ReplayTransport replay = ReplayTransport.load(recorder.file().toPath());
+    int requests = bitbucket.requestCount();
+    UserIdentity replayed = authenticate(replay, "j\u00fcrgen");
+
+    assertThat(recording).doesNotContain("rgen", "M\u00fcller", "example", "team1");
+    assertThat(replay.size()).isEqualTo(requests);
+    assertThat(bitbucket.requestCount()).isEqualTo(requests);
+    assertThat(replayed.getLogin()).isNotEqualTo(recorded.getLogin()).hasSameSizeAs(recorded.getLogin());
+    assertThat(replayed.getName()).hasSameSizeAs(recorded.getName());
+    assertThat(replayed.getEmail()).endsWith(recorder.pseudonym("@example.com"));
+    assertThat(replayed.getGroups()).hasSize(250).contains(recorder.pseudonym("team0"), recorder.pseudonym("team249"));
+  }
+
+  @Test
+  public void serve_exchanges_of_same_request_in_turn() throws IOException {
+    ReplayTransport underTest = new ReplayTransport(new StringReader(
+      "{\"verb\":\"GET\",\"path\":\"/2.0/user\",\"query\":\"\",\"code\":200,\"body\":{\"username\":\"first\"}}\n" +
+        "\n" +
+        "{\"verb\":\"GET\",\"path\":\"/2.0/user\",\"query\":\"\",\"code\":200,\"body\":{\"username\":\"second\"}}\n" +
+        "{\"verb\":\"GET\",\"path\":\"/2.0/teams\",\"query\":\"page=2\",\"code\":500,\"body\":\"\"}\n"));
+
+    assertThat(underTest.size()).isEqualTo(3);
+    assertThat(send(underTest, "https://api.bitbucket.org/2.0/user?access_token=token").body()).isEqualTo("{\"username\":\"first\"}");
+    assertThat(send(underTest, "https://localhost/2.0/user").body()).isEqualTo("{\"username\":\"second\"}");
+    assertThat(send(underTest, "https://localhost/2.0/user").body()).isEqualTo("{\"username\":\"first\"}");
+    assertThat(send(underTest, "https://localhost/2.0/teams?page=2").getCode()).isEqualTo(500);
+    assertThat(send(underTest, "https://localhost/2.0/teams").getCode()).isEqualTo(404);
+  }
+
+  @Test
+  public void serve_requests_filtering_different_teams_with_their_own_exchanges() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.auth.bitbucket.recording.enabled", true);
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    TrafficRecorder recorder = new TrafficRecorder(bitbucketSettings, mock(ServerFileSystem.class));
+    List<String> firstChunk = Arrays.asList("team1", "team2");
+    List<String> secondChunk = Arrays.asList("team3", "team4");
+    recorder.record(filterRequest(firstChunk), 200, null, new ByteArrayInputStream("{\"values\":[{\"username\":\"team2\"}]}".getBytes(StandardCharsets.UTF_8)));
+    recorder.record(filterRequest(secondChunk), 200, null, new ByteArrayInputStream("{\"values\":[]}".getBytes(StandardCharsets.UTF_8)));
+
+    ReplayTransport underTest = ReplayTransport.load(recorder.file().toPath());
+
+    // replayed requests filter the pseudonyms of the teams
+    List<String> replayedFirstChunk = firstChunk.stream().map(recorder::pseudonym).collect(Collectors.toList());
+    List<String> replayedSecondChunk = secondChunk.stream().map(recorder::pseudonym).collect(Collectors.toList());
+    for (int i = 0; i < 3; i++) {
+      assertThat(underTest.send(filterRequest(replayedFirstChunk)).body()).contains(recorder.pseudonym("team2"));
+      assertThat(underTest.send(filterRequest(replayedSecondChunk)).body()).isEqualTo("{\"values\":[]}");
+    }
+  }
+
+  @Test
+  public void fail_if_line_is_not_a_recorded_exchange() throws IOException {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Missing field 'path' in recorded exchange");
+
+    new ReplayTransport(new StringReader("{\"verb\":\"GET\",\"query\":\"\",\"code\":200,\"body\":\"\"}"));
+  }
+
+  private UserIdentity authenticate(BitbucketTransport transport, String code) {
+    UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+    BitbucketMetrics metrics = new BitbucketMetrics();
+    BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+    BitbucketIdentityProvider provider = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory, new BitbucketScribeApi(bitbucketSettings),
+      transport, metrics, mock(AuditLog.class), new AuthenticationPipeline(userIdentityFactory, metrics, new ConcurrencyLimiter(metrics, System2.INSTANCE),
+        mock(MembershipSelector.class), mock(MembershipProbe.class), mock(MembershipFilter.class), mock(TeamMembers.class),
+        new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE),
+        new VerifiedProfiles(bitbucketSettings, caches, System2.INSTANCE), System2.INSTANCE),
+      System2.INSTANCE);
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode(code);
+    provider.callback(context);
+    return context.userIdentity;
+  }
+
+  private static OAuthRequest filterRequest(List<String> teams) {
+    OAuthRequest request = new OAuthRequest(Verb.GET, "https://api.bitbucket.org/2.0/teams", scribe());
+    request.addQuerystringParameter("role", "member");
+    request.addQuerystringParameter("q", MembershipFilter.query(teams));
+    return request;
+  }
+
+  private static ApiResponse send(ReplayTransport transport, String url) {
+    return transport.send(new OAuthRequest(Verb.GET, url, scribe()));
+  }
+
+  private static OAuthService scribe() {
+    return new ServiceBuilder().provider(new BitbucketScribeApi(null)).apiKey("id").apiSecret("secret").build();
+  }
+}
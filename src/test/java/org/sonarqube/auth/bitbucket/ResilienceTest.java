@@ -0,0 +1,720 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.exceptions.OAuthConnectionException;
+import com.github.scribejava.core.model.Token;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.EMAILS;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.Fault;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.Latency;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.TEAMS;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.WORKSPACE_MEMBER;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.USER;
+
+/**
+ * Behavior of the authentication when Bitbucket is slow or fails
+ */
+public class ResilienceTest {
+
+  @Rule
+  public FakeBitbucket bitbucket = new FakeBitbucket();
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+  private BitbucketMetrics metrics = new BitbucketMetrics();
+  private BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+  private AuditLog auditLog = mock(AuditLog.class);
+  private ConcurrencyLimiter limiter = new ConcurrencyLimiter(metrics, System2.INSTANCE);
+  private BitbucketExecutor executor = new BitbucketExecutor();
+  private MembershipSelector membershipSelector = new MembershipSelector(bitbucketSettings, System2.INSTANCE);
+  private VerifiedProfiles verifiedProfiles = new VerifiedProfiles(bitbucketSettings, caches, System2.INSTANCE);
+  private TeamMembers teamMembers = new TeamMembers(bitbucketSettings, caches, executor, System2.INSTANCE);
+  private AuthenticationPipeline pipeline = new AuthenticationPipeline(userIdentityFactory, metrics, limiter, membershipSelector,
+    new MembershipProbe(bitbucketSettings, executor), new MembershipFilter(bitbucketSettings, executor), teamMembers,
+    new IdentityFingerprints(bitbucketSettings, caches, userIdentityFactory, metrics, System2.INSTANCE), verifiedProfiles, System2.INSTANCE);
+  private BitbucketIdentityProvider underTest = new BitbucketIdentityProvider(bitbucketSettings, userIdentityFactory,
+    new BitbucketScribeApi(bitbucketSettings), new HttpTransport(), metrics, auditLog, pipeline, System2.INSTANCE);
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.bitbucket.clientId.secured", "the_id");
+    settings.setProperty("sonar.auth.bitbucket.clientSecret.secured", "the_secret");
+    settings.setProperty("sonar.auth.bitbucket.enabled", true);
+    settings.setProperty("sonar.auth.bitbucket.apiUrl", bitbucket.url());
+    settings.setProperty("sonar.auth.bitbucket.webUrl", bitbucket.url());
+    bitbucket.addUser("john").setDisplayName("John").setEmails("john@bitbucket.org", "john@example.com").setTeams("team1", "team2");
+  }
+
+  @After
+  public void tearDown() {
+    executor.stop();
+  }
+
+  @Test
+  public void authenticate_through_fake_bitbucket() {
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(context.userIdentity.getName()).isEqualTo("John");
+    assertThat(context.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+    assertThat(bitbucket.requestCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void latency_of_bitbucket_is_reported_in_login_latency() {
+    bitbucket.latency(USER, Latency.fixed(200L));
+
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+
+    assertThat(metrics.loginLatencyPercentile(50)).isGreaterThanOrEqualTo(200L);
+  }
+
+  @Test
+  public void cost_of_login_is_reported_when_instrumentation_is_enabled() {
+    settings.setProperty("sonar.auth.bitbucket.instrumentation.enabled", true);
+
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+
+    assertThat(metrics.instrumentedLogins()).isEqualTo(1L);
+    assertThat(metrics.loginRequestsPercentile(50)).isEqualTo(2L);
+    if (ThreadAllocation.allocatedBytes() >= 0L) {
+      assertThat(metrics.loginAllocationPercentile(50)).isPositive();
+    }
+    assertThat(metrics.endpoints()).containsExactly("emails", "user");
+  }
+
+  @Test
+  public void allocations_are_not_measured_when_disabled_in_jvm() {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+    settings.setProperty("sonar.auth.bitbucket.instrumentation.enabled", true);
+
+    threads.setThreadAllocatedMemoryEnabled(false);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+
+      assertThat(threads.isThreadAllocatedMemoryEnabled()).isFalse();
+    } finally {
+      threads.setThreadAllocatedMemoryEnabled(true);
+    }
+    assertThat(metrics.instrumentedLogins()).isEqualTo(1L);
+    assertThat(metrics.loginRequestsPercentile(50)).isEqualTo(2L);
+    assertThat(metrics.loginAllocationPercentile(50)).isZero();
+  }
+
+  @Test
+  public void cost_of_login_is_not_reported_when_instrumentation_is_disabled() {
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+
+    assertThat(metrics.instrumentedLogins()).isZero();
+    assertThat(metrics.loginAllocationPercentile(50)).isZero();
+  }
+
+  @Test
+  public void authenticate_when_emails_are_slowly_sent() {
+    bitbucket.inject(EMAILS, Fault.slowDrip(16, 10, TimeUnit.MILLISECONDS));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+  }
+
+  @Test
+  public void authenticate_without_email_when_emails_are_rate_limited() {
+    bitbucket.inject(EMAILS, Fault.tooManyRequests(60));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(context.userIdentity.getEmail()).isNull();
+  }
+
+  @Test
+  public void fail_when_profile_is_rate_limited() {
+    bitbucket.inject(USER, Fault.tooManyRequests(60));
+
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Can not get Bitbucket user profile. HTTP code: 429");
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      verify(auditLog).upstreamError(eq(null), eq(null), startsWith("Can not get Bitbucket user profile. HTTP code: 429"));
+      assertThat(limiter.inFlight()).isZero();
+    }
+  }
+
+  @Test
+  public void fail_when_profile_is_truncated() {
+    bitbucket.inject(USER, Fault.truncated());
+
+    expectedException.expect(RuntimeException.class);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+  }
+
+  @Test
+  public void fail_when_emails_are_malformed() {
+    bitbucket.inject(EMAILS, Fault.malformed());
+
+    expectedException.expect(RuntimeException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      verify(auditLog).upstreamError(eq("{john}"), eq("john"), any());
+    }
+  }
+
+  @Test
+  public void retry_once_when_connection_is_reset() {
+    // idempotent requests are retried once by HttpURLConnection
+    bitbucket.inject(USER, Fault.connectionReset());
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(USER)).isEqualTo(2);
+  }
+
+  @Test
+  public void fail_when_connection_is_reset_twice() {
+    bitbucket.inject(USER, Fault.connectionReset(), Fault.connectionReset());
+
+    expectedException.expect(OAuthConnectionException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(limiter.inFlight()).isZero();
+    }
+  }
+
+  @Test
+  public void fail_when_connection_is_reset_during_body() {
+    bitbucket.inject(EMAILS, Fault.resetDuringBody());
+
+    expectedException.expect(RuntimeException.class);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+  }
+
+  @Test
+  public void accept_user_member_of_restricted_team_in_second_page_of_teams() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    bitbucket.teamsPageSize(1);
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(2);
+  }
+
+  @Test
+  public void stop_paging_teams_when_restricted_team_is_found() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    bitbucket.teamsPageSize(1);
+
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(1);
+  }
+
+  @Test
+  public void synchronize_all_pages_of_teams_as_groups() {
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    settings.setProperty("sonar.auth.bitbucket.groupsSync.prefix", "bb-");
+    bitbucket.addUser("jane").setTeams(IntStream.range(0, 250).mapToObj(i -> "team" + i).collect(Collectors.toList()));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("jane");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getGroups()).hasSize(250).contains("bb-team0", "bb-team249");
+    // 100 teams per page
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(3);
+  }
+
+  @Test
+  public void do_not_change_groups_when_teams_can_not_be_fetched() {
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    bitbucket.teamsPageSize(1);
+    bitbucket.inject(TEAMS, request -> request, Fault.status(500));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.shouldSyncGroups()).isFalse();
+  }
+
+  @Test
+  public void probe_membership_of_restricted_teams_in_parallel() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team5,team1,team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Probe teams");
+    bitbucket.latency(WORKSPACE_MEMBER, Latency.fixed(300L));
+
+    long start = System.currentTimeMillis();
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(TEAMS)).isZero();
+    // sequential probes would take at least 600ms
+    assertThat(System.currentTimeMillis() - start).isLessThan(600L);
+  }
+
+  @Test
+  public void deny_user_if_probe_of_restricted_team_is_negative() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Probe teams");
+    bitbucket.addUser("jane").setTeams("team3");
+
+    expectedException.expect(UnauthorizedException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("jane"));
+    } finally {
+      assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isEqualTo(1);
+      assertThat(bitbucket.requestCount(TEAMS)).isZero();
+    }
+  }
+
+  @Test
+  public void deny_user_if_restricted_workspaces_are_not_found() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team5,team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Probe teams");
+    // for example workspace renamed
+    bitbucket.inject(WORKSPACE_MEMBER, Fault.status(404), Fault.status(404));
+
+    expectedException.expect(UnauthorizedException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isEqualTo(2);
+      assertThat(bitbucket.requestCount(TEAMS)).isZero();
+    }
+  }
+
+  @Test
+  public void list_teams_if_some_probes_fail() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team5,team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Probe teams");
+    bitbucket.inject(WORKSPACE_MEMBER, Fault.status(403), Fault.status(403));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isEqualTo(2);
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(1);
+  }
+
+  @Test
+  public void filter_teams_of_user_on_server_side() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team5,team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Filter teams");
+    bitbucket.addUser("jane").setTeams(IntStream.range(0, 500).mapToObj(i -> "other" + i).collect(Collectors.toList()));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(1);
+    assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isZero();
+    assertThat(metrics.requests(MembershipFilter.FILTERED_TEAMS_ENDPOINT)).isEqualTo(1);
+
+    expectedException.expect(UnauthorizedException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("jane"));
+    } finally {
+      // filtered response is empty, whatever the number of teams of the user
+      assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(2);
+      assertThat(metrics.bytesReceived(MembershipFilter.FILTERED_TEAMS_ENDPOINT)).isLessThan(500L);
+    }
+  }
+
+  @Test
+  public void filter_long_list_of_teams_by_chunks_in_parallel() {
+    List<String> restriction = IntStream.range(0, 2 * MembershipFilter.CHUNK_SIZE + 1).mapToObj(i -> "restricted" + i).collect(Collectors.toList());
+    settings.setProperty("sonar.auth.bitbucket.teams", String.join(",", restriction));
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Filter teams");
+    bitbucket.latency(TEAMS, Latency.fixed(300L));
+
+    long start = System.currentTimeMillis();
+    expectedException.expect(UnauthorizedException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(3);
+      // sequential requests would take at least 900ms
+      assertThat(System.currentTimeMillis() - start).isLessThan(900L);
+    }
+  }
+
+  @Test
+  public void list_all_teams_if_filter_is_ignored_by_bitbucket() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team5,team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Filter teams");
+    bitbucket.addUser("jane").setTeams("team1", "team3", "team2");
+    bitbucket.filtering(false);
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("jane");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("jane@bitbucket");
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(2);
+    assertThat(metrics.requests(MembershipFilter.FILTERED_TEAMS_ENDPOINT)).isEqualTo(1);
+  }
+
+  @Test
+  public void list_all_teams_if_filter_is_rejected_by_bitbucket() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Filter teams");
+    bitbucket.inject(TEAMS, Fault.status(400));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(2);
+  }
+
+  @Test
+  public void select_listing_of_teams_when_probes_are_slower() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team2");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "Auto");
+    bitbucket.latency(WORKSPACE_MEMBER, Latency.fixed(200L));
+
+    // first check measures probes, second check measures listing
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+
+    assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isEqualTo(1);
+    assertThat(bitbucket.requestCount(TEAMS)).isEqualTo(2);
+  }
+
+  @Test
+  public void authenticate_recently_verified_user_when_teams_can_not_be_fetched() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    bitbucket.inject(TEAMS, Fault.connectionReset(), Fault.connectionReset());
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(context.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+    assertThat(metrics.degradedLogins()).isEqualTo(1L);
+    verify(auditLog, never()).upstreamError(any(), any(), any());
+  }
+
+  @Test
+  public void authenticate_recently_verified_user_when_teams_are_unavailable() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    bitbucket.inject(TEAMS, Fault.status(503));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(metrics.degradedLogins()).isEqualTo(1L);
+    verify(auditLog, never()).teamDenied(any(), any());
+  }
+
+  @Test
+  public void deny_user_when_teams_are_unavailable_and_user_was_not_recently_verified() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    bitbucket.inject(TEAMS, Fault.status(503));
+
+    expectedException.expect(UnauthorizedException.class);
+    expectedException.expectMessage("Can not get the teams of Bitbucket user john. HTTP code: 503");
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      verify(auditLog, never()).teamDenied(any(), any());
+      verify(auditLog).upstreamError("{john}", "john", "Can not get the teams of Bitbucket user john. HTTP code: 503");
+    }
+  }
+
+  @Test
+  public void deny_user_when_teams_can_not_be_fetched() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    bitbucket.inject(TEAMS, Fault.status(403));
+
+    expectedException.expect(UnauthorizedException.class);
+    expectedException.expectMessage("Can not get the teams of Bitbucket user john");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+  }
+
+  @Test
+  public void never_degrade_when_response_is_malformed() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    bitbucket.inject(TEAMS, Fault.malformed());
+
+    expectedException.expect(RuntimeException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(metrics.degradedLogins()).isZero();
+    }
+  }
+
+  @Test
+  public void never_degrade_when_scope_is_no_longer_granted() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    bitbucket.addUser("jane").setTeams("team1");
+    underTest.callback(DumbCallbackContext.withVerifierCode("jane"));
+    bitbucket.addUser("jane").setTeams("team1").setScopes("account email");
+
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Bitbucket did not grant the scope 'team' for user jane");
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("jane"));
+    } finally {
+      assertThat(metrics.degradedLogins()).isZero();
+    }
+  }
+
+  @Test
+  public void fail_when_email_domains_changed_since_last_verification() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.emailDomains", "example.com");
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    settings.setProperty("sonar.auth.bitbucket.emailDomains", "corp.com");
+    bitbucket.inject(TEAMS, Fault.status(503));
+
+    expectedException.expect(RuntimeException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(metrics.degradedLogins()).isZero();
+    }
+  }
+
+  @Test
+  public void authenticate_recently_verified_user_when_bitbucket_times_out() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.apiTimeoutInSeconds", 1);
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    bitbucket.latency(TEAMS, Latency.fixed(2_000L));
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getGroups()).containsOnly("team1", "team2");
+    assertThat(metrics.degradedLogins()).isEqualTo(1L);
+  }
+
+  @Test
+  public void fail_when_bitbucket_fails_and_degraded_authentication_is_disabled() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    bitbucket.inject(TEAMS, Fault.status(503));
+
+    expectedException.expect(RuntimeException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(metrics.degradedLogins()).isZero();
+    }
+  }
+
+  @Test
+  public void fail_when_restricted_teams_changed_since_last_verification() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    settings.setProperty("sonar.auth.bitbucket.teams.membershipCheck", "List teams");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    settings.setProperty("sonar.auth.bitbucket.teams", "team3");
+    bitbucket.inject(TEAMS, Fault.status(503));
+
+    expectedException.expect(RuntimeException.class);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+  }
+
+  @Test
+  public void never_degrade_when_profile_can_not_be_fetched() {
+    settings.setProperty("sonar.auth.bitbucket.degradedGraceInMinutes", 60);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    bitbucket.inject(USER, Fault.status(500));
+
+    expectedException.expect(IllegalStateException.class);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+  }
+
+  @Test
+  public void do_not_request_membership_of_preloaded_members() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    bitbucket.addUser("admin").setTeams("team1");
+    teamMembers.preload(new BitbucketApiClient(new HttpTransport(), new ServiceBuilder().provider(new BitbucketScribeApi(bitbucketSettings)).apiKey("id").apiSecret("secret").build(),
+      new Token("token-admin", ""), metrics), new String[] {"team1"});
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("john@bitbucket");
+    assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isZero();
+    assertThat(bitbucket.requestCount(TEAMS)).isZero();
+  }
+
+  @Test
+  public void authenticate_user_with_confirmed_email_in_allowed_domains() {
+    settings.setProperty("sonar.auth.bitbucket.emailDomains", "corp.com,example.com");
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("john");
+    underTest.callback(context);
+
+    // primary email is kept
+    assertThat(context.userIdentity.getEmail()).isEqualTo("john@bitbucket.org");
+  }
+
+  @Test
+  public void deny_user_without_confirmed_email_in_allowed_domains() {
+    settings.setProperty("sonar.auth.bitbucket.emailDomains", "corp.com");
+
+    expectedException.expect(UnauthorizedException.class);
+    expectedException.expectMessage("User john has no confirmed email in the allowed domains");
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      verify(auditLog).emailDenied("{john}", "john");
+    }
+  }
+
+  @Test
+  public void check_email_domains_even_if_profile_is_unchanged() {
+    settings.setProperty("sonar.auth.bitbucket.profileFreshnessInMinutes", 60);
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    settings.setProperty("sonar.auth.bitbucket.emailDomains", "corp.com");
+
+    expectedException.expect(UnauthorizedException.class);
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+    } finally {
+      assertThat(bitbucket.requestCount(EMAILS)).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void fail_when_emails_can_not_be_checked() {
+    settings.setProperty("sonar.auth.bitbucket.emailDomains", "example.com");
+    bitbucket.inject(EMAILS, Fault.status(500));
+
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Can not get the emails of Bitbucket user john");
+    underTest.callback(DumbCallbackContext.withVerifierCode("john"));
+  }
+
+  @Test
+  public void do_not_request_emails_if_scope_is_not_granted() {
+    bitbucket.addUser("jane").setEmails("jane@bitbucket.org").setScopes("account");
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("jane");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getEmail()).isNull();
+    assertThat(bitbucket.requestCount(EMAILS)).isZero();
+  }
+
+  @Test
+  public void fail_without_requesting_teams_if_scope_is_not_granted() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    bitbucket.addUser("jane").setTeams("team1").setScopes("account email");
+
+    try {
+      underTest.callback(DumbCallbackContext.withVerifierCode("jane"));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Bitbucket did not grant the scope 'team' for user jane. Check the permissions of the OAuth consumer.");
+    }
+    assertThat(bitbucket.requestCount(TEAMS)).isZero();
+    assertThat(bitbucket.requestCount(WORKSPACE_MEMBER)).isZero();
+  }
+
+  @Test
+  public void authenticate_user_who_granted_write_scope() {
+    settings.setProperty("sonar.auth.bitbucket.teams", "team1");
+    bitbucket.addUser("jane").setTeams("team1").setScopes("account:write email team:write");
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("jane");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.getLogin()).isEqualTo("jane@bitbucket");
+  }
+
+  @Test
+  public void do_not_synchronize_groups_if_scope_is_not_granted() {
+    settings.setProperty("sonar.auth.bitbucket.groupsSync", true);
+    bitbucket.addUser("jane").setTeams("team1").setScopes("account email");
+
+    DumbCallbackContext context = DumbCallbackContext.withVerifierCode("jane");
+    underTest.callback(context);
+
+    assertThat(context.userIdentity.shouldSyncGroups()).isFalse();
+    assertThat(bitbucket.requestCount(TEAMS)).isZero();
+  }
+}
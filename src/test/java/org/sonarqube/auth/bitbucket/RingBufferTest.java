@@ -0,0 +1,129 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RingBufferTest {
+
+  @Test
+  public void capacity_is_rounded_to_power_of_two() {
+    assertThat(new RingBuffer<>(1).capacity()).isEqualTo(2);
+    assertThat(new RingBuffer<>(4).capacity()).isEqualTo(4);
+    assertThat(new RingBuffer<>(5).capacity()).isEqualTo(8);
+  }
+
+  @Test
+  public void offer_and_poll_in_fifo_order() {
+    RingBuffer<String> underTest = new RingBuffer<>(4);
+
+    assertThat(underTest.poll()).isNull();
+    assertThat(underTest.offer("a")).isTrue();
+    assertThat(underTest.offer("b")).isTrue();
+    assertThat(underTest.size()).isEqualTo(2);
+
+    assertThat(underTest.poll()).isEqualTo("a");
+    assertThat(underTest.poll()).isEqualTo("b");
+    assertThat(underTest.poll()).isNull();
+  }
+
+  @Test
+  public void reject_elements_when_full() {
+    RingBuffer<Integer> underTest = new RingBuffer<>(4);
+    for (int i = 0; i < 4; i++) {
+      assertThat(underTest.offer(i)).isTrue();
+    }
+
+    assertThat(underTest.offer(4)).isFalse();
+
+    // slots are re-used on next lap
+    List<Integer> drained = new ArrayList<>();
+    assertThat(underTest.drainTo(drained, 3)).isEqualTo(3);
+    assertThat(drained).containsExactly(0, 1, 2);
+    assertThat(underTest.offer(5)).isTrue();
+    drained.clear();
+    underTest.drainTo(drained, 10);
+    assertThat(drained).containsExactly(3, 5);
+  }
+
+  @Test
+  public void reject_elements_when_closed() {
+    RingBuffer<Integer> underTest = new RingBuffer<>(4);
+    underTest.offer(0);
+
+    underTest.close();
+
+    assertThat(underTest.isClosed()).isTrue();
+    assertThat(underTest.offer(1)).isFalse();
+    assertThat(underTest.isDrained()).isFalse();
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(underTest.poll()).isEqualTo(0);
+    assertThat(underTest.isDrained()).isTrue();
+  }
+
+  @Test
+  public void concurrent_producers_never_lose_accepted_elements() throws Exception {
+    RingBuffer<Integer> underTest = new RingBuffer<>(1024);
+    int producers = 8;
+    int elementsPerProducer = 10_000;
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger rejected = new AtomicInteger();
+    for (int p = 0; p < producers; p++) {
+      int producer = p;
+      executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < elementsPerProducer; i++) {
+          if (!underTest.offer(producer * elementsPerProducer + i)) {
+            rejected.incrementAndGet();
+          }
+        }
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+
+    Set<Integer> consumed = new HashSet<>();
+    List<Integer> batch = new ArrayList<>();
+    while (!executor.isTerminated() || underTest.size() > 0) {
+      batch.clear();
+      underTest.drainTo(batch, 100);
+      consumed.addAll(batch);
+    }
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+    batch.clear();
+    underTest.drainTo(batch, Integer.MAX_VALUE);
+    consumed.addAll(batch);
+
+    assertThat(consumed.size() + rejected.get()).isEqualTo(producers * elementsPerProducer);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TeamGroupMapperTest {
+
+  private static final List<String> TEAMS = asList("dev", "dev-backend", "qa", "ops.team", "opsXteam");
+
+  @Test
+  public void map_all_teams_if_no_patterns() {
+    assertThat(TeamGroupMapper.compile(new String[0], "").groupsOf(TEAMS)).containsOnlyElementsOf(TEAMS);
+  }
+
+  @Test
+  public void add_prefix() {
+    assertThat(TeamGroupMapper.compile(new String[0], "bb-").groupsOf(asList("dev", "qa"))).containsOnly("bb-dev", "bb-qa");
+  }
+
+  @Test
+  public void filter_teams_with_wildcards() {
+    assertThat(TeamGroupMapper.compile(new String[] {"dev*", "qa"}, "").groupsOf(TEAMS)).containsOnly("dev", "dev-backend", "qa");
+    assertThat(TeamGroupMapper.compile(new String[] {"*-backend"}, "").groupsOf(TEAMS)).containsOnly("dev-backend");
+    assertThat(TeamGroupMapper.compile(new String[] {"d*v*"}, "").groupsOf(TEAMS)).containsOnly("dev", "dev-backend");
+  }
+
+  @Test
+  public void characters_other_than_wildcard_are_literal() {
+    assertThat(TeamGroupMapper.compile(new String[] {"ops.team"}, "").groupsOf(TEAMS)).containsOnly("ops.team");
+    assertThat(TeamGroupMapper.compile(new String[] {"(dev|qa)"}, "").groupsOf(TEAMS)).isEmpty();
+  }
+
+  @Test
+  public void ignore_blank_patterns() {
+    assertThat(TeamGroupMapper.compile(new String[] {" ", " qa "}, "").groupsOf(TEAMS)).containsOnly("qa");
+  }
+
+  @Test
+  public void is_compiled_from() {
+    TeamGroupMapper underTest = TeamGroupMapper.compile(new String[] {"dev*"}, "bb-");
+
+    assertThat(underTest.isCompiledFrom(new String[] {"dev*"}, "bb-")).isTrue();
+    assertThat(underTest.isCompiledFrom(new String[] {"dev*"}, "")).isFalse();
+    assertThat(underTest.isCompiledFrom(new String[] {"qa"}, "bb-")).isFalse();
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.Token;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.mock;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.Fault;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.Latency;
+import static org.sonarqube.auth.bitbucket.FakeBitbucket.TEAM_MEMBERS;
+
+public class TeamMembersTest {
+
+  @Rule
+  public FakeBitbucket bitbucket = new FakeBitbucket();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private BitbucketCaches caches = new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), System2.INSTANCE);
+  private BitbucketExecutor executor = new BitbucketExecutor();
+  private AtomicLong now = new AtomicLong(1_000_000L);
+  // not a mock, stubs of Mockito are not reliable when called concurrently
+  private System2 system2 = new System2() {
+    @Override
+    public long now() {
+      return now.get();
+    }
+  };
+  private TeamMembers underTest = new TeamMembers(bitbucketSettings, caches, executor, system2);
+  private BitbucketApiClient client;
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.bitbucket.apiUrl", bitbucket.url());
+    bitbucket.addUser("admin").setTeams("team1", "team2", "team3");
+    bitbucket.addUser("john").setTeams("team1");
+    bitbucket.addUser("jane").setTeams("team2", "team3");
+    client = new BitbucketApiClient(new HttpTransport(), new ServiceBuilder().provider(new BitbucketScribeApi(bitbucketSettings)).apiKey("id").apiSecret("secret").build(),
+      new Token("token-admin", ""), new BitbucketMetrics());
+  }
+
+  @After
+  public void tearDown() {
+    executor.stop();
+  }
+
+  @Test
+  public void nobody_is_preloaded_by_default() {
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isFalse();
+  }
+
+  @Test
+  public void preload_members_of_teams() {
+    List<TeamMembers.TeamResult> results = underTest.preload(client, new String[] {"team1", "team2", "team4"});
+
+    assertThat(results)
+      .extracting(TeamMembers.TeamResult::getTeam, r -> r.getMembers().size(), TeamMembers.TeamResult::getError)
+      .containsExactlyInAnyOrder(tuple("team1", 2, null), tuple("team2", 2, null), tuple("team4", 0, null));
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isTrue();
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team2", "team3"})).isFalse();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team1", "team2"})).isTrue();
+    // team3 has not been preloaded
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team3"})).isFalse();
+  }
+
+  @Test
+  public void follow_pages_of_members() {
+    List<String> usernames = IntStream.range(0, 250).mapToObj(i -> "user" + i).collect(Collectors.toList());
+    usernames.forEach(u -> bitbucket.addUser(u).setTeams("big"));
+
+    List<TeamMembers.TeamResult> results = underTest.preload(client, new String[] {"big"});
+
+    assertThat(results.get(0).getMembers()).hasSize(250);
+    assertThat(bitbucket.requestCount(TEAM_MEMBERS)).isEqualTo(3);
+    assertThat(underTest.isMemberOfAny("{user249}", new String[] {"big"})).isTrue();
+  }
+
+  @Test
+  public void report_teams_that_can_not_be_fetched() {
+    bitbucket.inject(TEAM_MEMBERS, Fault.status(403));
+
+    List<TeamMembers.TeamResult> results = underTest.preload(client, new String[] {"team1"});
+
+    assertThat(results.get(0).getError()).isEqualTo("Fail to retrieve the members of team team1");
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isFalse();
+  }
+
+  @Test
+  public void drop_members_who_left_teams_since_last_preload() {
+    underTest.preload(client, new String[] {"team1", "team2"});
+    bitbucket.addUser("john").setTeams("team3");
+    bitbucket.addUser("jane").setTeams("team1");
+
+    underTest.preload(client, new String[] {"team1", "team2"});
+
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1", "team2"})).isFalse();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team1"})).isTrue();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team2"})).isFalse();
+  }
+
+  @Test
+  public void keep_members_of_last_preload_of_teams_that_can_not_be_fetched() {
+    underTest.preload(client, new String[] {"team1", "team2"});
+    bitbucket.addUser("john").setTeams("team3");
+    bitbucket.addUser("jane").setTeams("team3");
+    bitbucket.inject(TEAM_MEMBERS, Fault.status(503));
+
+    List<TeamMembers.TeamResult> results = underTest.preload(client, new String[] {"team2"});
+
+    assertThat(results.get(0).getError()).isNotNull();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team2"})).isTrue();
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isTrue();
+  }
+
+  @Test
+  public void keep_members_of_teams_not_preloaded_again() {
+    underTest.preload(client, new String[] {"team1", "team2"});
+    bitbucket.addUser("john").setTeams("team3");
+    bitbucket.addUser("jane").setTeams("team1");
+
+    underTest.preload(client, new String[] {"team2"});
+
+    // team1 is not preloaded again, so john stays preloaded, while jane left team2
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isTrue();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team2"})).isFalse();
+  }
+
+  @Test
+  public void members_expire_after_time_to_live_of_preload() {
+    settings.setProperty("sonar.auth.bitbucket.preloadedMembers.ttlInMinutes", 5);
+    underTest.preload(client, new String[] {"team1"});
+
+    now.addAndGet(TimeUnit.MINUTES.toMillis(5));
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isTrue();
+
+    now.incrementAndGet();
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isFalse();
+  }
+
+  @Test
+  public void members_are_dropped_when_key_of_team_is_evicted() {
+    underTest.preload(client, new String[] {"team1", "team2"});
+
+    caches.get(TeamMembers.CACHE_NAME).remove(TeamMembers.TEAM_KEY_PREFIX + "team1");
+
+    assertThat(underTest.isMemberOfAny("{john}", new String[] {"team1"})).isFalse();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team1"})).isFalse();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team2"})).isTrue();
+  }
+
+  @Test
+  public void remove_preloaded_member() {
+    underTest.preload(client, new String[] {"team2", "team3"});
+
+    underTest.removeMember("{jane}", "team2");
+
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team2"})).isFalse();
+    assertThat(underTest.isMemberOfAny("{jane}", new String[] {"team3"})).isTrue();
+
+    underTest.removeMember("{jane}", "team3");
+    assertThat(caches.get(TeamMembers.CACHE_NAME).get("{jane}")).isNull();
+  }
+
+  @Test
+  public void fetch_a_bounded_number_of_teams_in_parallel() {
+    String[] teams = IntStream.range(0, 2 * TeamMembers.PARALLELISM).mapToObj(i -> "team" + i).toArray(String[]::new);
+    bitbucket.latency(TEAM_MEMBERS, Latency.fixed(200L));
+
+    long start = System.currentTimeMillis();
+    underTest.preload(client, teams);
+    long duration = System.currentTimeMillis() - start;
+
+    // two waves of requests
+    assertThat(duration).isGreaterThanOrEqualTo(400L).isLessThan(800L);
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuthService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TrafficRecorderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private TrafficRecorder underTest = new TrafficRecorder(bitbucketSettings, mock(ServerFileSystem.class), new byte[] {1, 2, 3});
+
+  @Test
+  public void pseudonym_has_the_shape_of_value() {
+    String value = "J\u00fcrgen D\u0153-42 \u7530\u4e2d";
+
+    String pseudonym = underTest.pseudonym(value);
+
+    assertThat(pseudonym).isNotEqualTo(value).hasSameSizeAs(value);
+    assertThat(pseudonym.getBytes(StandardCharsets.UTF_8)).hasSameSizeAs(value.getBytes(StandardCharsets.UTF_8));
+    assertThat(pseudonym).matches("[A-Z]\\S{5} \\S\\S-[0-9]{2} \\S\\S");
+    assertThat(underTest.pseudonym(value)).isEqualTo(pseudonym);
+    assertThat(new TrafficRecorder(bitbucketSettings, mock(ServerFileSystem.class), new byte[] {4, 5, 6}).pseudonym(value)).isNotEqualTo(pseudonym);
+  }
+
+  @Test
+  public void pseudonyms_of_same_words_are_equal() {
+    String john = underTest.pseudonym("john@example.com");
+    String jane = underTest.pseudonym("jane@example.com");
+
+    assertThat(john.substring(0, 4)).isNotEqualTo(jane.substring(0, 4));
+    assertThat(john.substring(4)).isEqualTo(jane.substring(4)).isEqualTo("@" + underTest.pseudonym("example.com"));
+  }
+
+  @Test
+  public void anonymize_names_identifiers_and_links_of_body() {
+    String body = underTest.anonymizeBody("{\"values\":[{\"username\":\"team1\",\"type\":\"team\",\"is_primary\":true}]," +
+      "\"next\":\"https://api.bitbucket.org/2.0/teams?access_token=secret&role=member&page=2\",\"access_token\":\"secret\"}").toString();
+
+    assertThat(body)
+      .contains("\"username\":\"" + underTest.pseudonym("team1") + "\"", "\"type\":\"team\"", "\"is_primary\":true")
+      .contains("\"next\":\"https://api.bitbucket.org/2.0/teams?page=2&role=member\"")
+      .doesNotContain("team1", "secret");
+    assertThat(underTest.anonymizeBody("<html>Bad gateway</html>").getAsString()).isEmpty();
+  }
+
+  @Test
+  public void anonymize_teams_and_members_of_paths() {
+    assertThat(underTest.anonymizePath("/2.0/teams")).isEqualTo("/2.0/teams");
+    assertThat(underTest.anonymizePath("/2.0/teams/my-team/members/john"))
+      .isEqualTo("/2.0/teams/" + underTest.pseudonym("my-team") + "/members/" + underTest.pseudonym("john"));
+  }
+
+  @Test
+  public void keep_only_pagination_partial_response_and_filter_parameters() {
+    assertThat(TrafficRecorder.recordedQuery("access_token=secret&pagelen=10&q=username%3D%22team1%22&page=2&fields=values.username"))
+      .isEqualTo("fields=values.username&page=2&pagelen=10&q=username%3D%22team1%22");
+    // filter is matched whatever its encoding
+    assertThat(TrafficRecorder.recordedQuery("q=username=%22team1%22")).isEqualTo("q=username%3D%22team1%22");
+    assertThat(TrafficRecorder.recordedQuery(null)).isEmpty();
+  }
+
+  @Test
+  public void anonymize_quoted_values_of_filter() {
+    assertThat(underTest.anonymizeFilter("username=\"team1\" OR username=\"my \\\"team\\\"\""))
+      .isEqualTo("username=\"" + underTest.pseudonym("team1") + "\" OR username=\"" + underTest.pseudonym("my \"team\"").replace("\"", "\\\"") + "\"");
+  }
+
+  @Test
+  public void anonymize_filter_of_recorded_request() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.recording.enabled", true);
+    OAuthRequest request = new OAuthRequest(Verb.GET, "https://api.bitbucket.org/2.0/teams", scribe());
+    request.addQuerystringParameter("role", "member");
+    request.addQuerystringParameter("q", "username=\"team1\" OR username=\"team2\"");
+
+    underTest.record(request, 200, null, new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)));
+
+    String line = Files.readAllLines(new File(logsDir, TrafficRecorder.FILENAME).toPath(), StandardCharsets.UTF_8).get(0);
+    assertThat(line)
+      .contains("\"query\":\"" + TrafficRecorder.recordedQuery("q=" + URLEncoder.encode(underTest.anonymizeFilter("username=\"team1\" OR username=\"team2\""), "UTF-8")
+        + "&role=member") + "\"")
+      .doesNotContain("team1", "team2");
+  }
+
+  @Test
+  public void record_exchange_in_logs_directory() throws IOException {
+    File logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.bitbucket.recording.enabled", true);
+    byte[] gzipped = gzip("{\"username\":\"john\",\"type\":\"user\"}");
+    OAuthRequest request = new OAuthRequest(Verb.GET, "https://api.bitbucket.org/2.0/user", scribe());
+    request.addQuerystringParameter("access_token", "secret");
+
+    InputStream body = underTest.record(request, 200, "gzip", new ByteArrayInputStream(gzipped));
+
+    assertThat(underTest.isEnabled()).isTrue();
+    assertThat(IOUtils.toByteArray(body)).isEqualTo(gzipped);
+    List<String> lines = Files.readAllLines(new File(logsDir, TrafficRecorder.FILENAME).toPath(), StandardCharsets.UTF_8);
+    assertThat(lines).containsExactly("{\"verb\":\"GET\",\"path\":\"/2.0/user\",\"query\":\"\",\"code\":200," +
+      "\"body\":{\"username\":\"" + underTest.pseudonym("john") + "\",\"type\":\"user\"}}");
+  }
+
+  @Test
+  public void is_disabled_by_default() {
+    assertThat(underTest.isEnabled()).isFalse();
+  }
+
+  private static byte[] gzip(String s) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+
+  private static OAuthService scribe() {
+    return new ServiceBuilder().provider(new BitbucketScribeApi(null)).apiKey("id").apiSecret("secret").build();
+  }
+}
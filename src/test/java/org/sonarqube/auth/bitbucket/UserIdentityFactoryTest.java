@@ -26,6 +26,7 @@ import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.server.authentication.UserIdentity;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class UserIdentityFactoryTest {
@@ -62,6 +63,41 @@ public class UserIdentityFactoryTest {
     assertThat(identity.getProviderId()).isEqualTo("ABCD");
   }
 
+  @Test
+  public void create_login_for_template_strategy() {
+    settings.setProperty(BitbucketSettings.LOGIN_STRATEGY, BitbucketSettings.LOGIN_STRATEGY_TEMPLATE);
+    settings.setProperty(BitbucketSettings.LOGIN_TEMPLATE, "{email-local-part}@{provider}");
+
+    UserIdentity identity = underTest.createWithEmail(new GsonUser("john", "John", "ABCD"), "jdoe@corp.com");
+    assertThat(identity.getLogin()).isEqualTo("jdoe@bitbucket");
+    assertThat(identity.getEmail()).isEqualTo("jdoe@corp.com");
+  }
+
+  @Test
+  public void recompile_template_when_settings_are_changed() {
+    GsonUser gson = new GsonUser("john", "John", "ABCD");
+    settings.setProperty(BitbucketSettings.LOGIN_STRATEGY, BitbucketSettings.LOGIN_STRATEGY_TEMPLATE);
+    settings.setProperty(BitbucketSettings.LOGIN_TEMPLATE, "{uuid}");
+    LoginTemplate template = underTest.loginTemplate();
+    assertThat(underTest.loginTemplate()).isSameAs(template);
+    assertThat(underTest.create(gson, null).getLogin()).isEqualTo("ABCD");
+
+    settings.setProperty(BitbucketSettings.LOGIN_TEMPLATE, "{username}-{uuid}");
+    assertThat(underTest.create(gson, null).getLogin()).isEqualTo("john-ABCD");
+
+    settings.setProperty(BitbucketSettings.LOGIN_STRATEGY, BitbucketSettings.LOGIN_STRATEGY_UNIQUE);
+    assertThat(underTest.create(gson, null).getLogin()).isEqualTo("john@bitbucket");
+  }
+
+  @Test
+  public void throw_ISE_if_template_is_missing() {
+    settings.setProperty(BitbucketSettings.LOGIN_STRATEGY, BitbucketSettings.LOGIN_STRATEGY_TEMPLATE);
+
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Login template is missing. Please define property sonar.auth.bitbucket.loginTemplate");
+    underTest.create(new GsonUser("john", "john", "ABCD"), null);
+  }
+
   @Test
   public void empty_name_is_replaced_by_provider_login() {
     GsonUser gson = new GsonUser("john", "", "ABCD");
@@ -86,4 +122,34 @@ public class UserIdentityFactoryTest {
     expectedException.expectMessage("Login strategy not supported : xxx");
     underTest.create(new GsonUser("john", "john", "ABCD"), null);
   }
+
+  @Test
+  public void do_not_sync_groups_by_default() {
+    assertThat(underTest.groupsOf(asList("dev", "qa"))).isNull();
+
+    UserIdentity identity = underTest.create(new GsonUser("john", "John", "ABCD"), null, underTest.groupsOf(asList("dev", "qa")));
+    assertThat(identity.shouldSyncGroups()).isFalse();
+  }
+
+  @Test
+  public void sync_groups_of_filtered_teams() {
+    settings.setProperty(BitbucketSettings.GROUPS_SYNC, true);
+    settings.setProperty(BitbucketSettings.GROUPS_SYNC_TEAMS, "dev*");
+    settings.setProperty(BitbucketSettings.GROUPS_SYNC_PREFIX, "bb-");
+
+    UserIdentity identity = underTest.create(new GsonUser("john", "John", "ABCD"), null, underTest.groupsOf(asList("dev", "dev-ops", "qa")));
+    assertThat(identity.shouldSyncGroups()).isTrue();
+    assertThat(identity.getGroups()).containsOnly("bb-dev", "bb-dev-ops");
+
+    // mapping is re-compiled when settings change
+    settings.setProperty(BitbucketSettings.GROUPS_SYNC_TEAMS, "qa");
+    assertThat(underTest.groupsOf(asList("dev", "dev-ops", "qa"))).containsOnly("bb-qa");
+  }
+
+  @Test
+  public void do_not_sync_groups_if_teams_are_unknown() {
+    settings.setProperty(BitbucketSettings.GROUPS_SYNC, true);
+
+    assertThat(underTest.groupsOf(null)).isNull();
+  }
 }
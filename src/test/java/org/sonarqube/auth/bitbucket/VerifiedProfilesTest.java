@@ -0,0 +1,139 @@
+/*
+ * Bitbucket Authentication for SonarQube
+ * Copyright (C) 2016-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.auth.bitbucket;
+
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class VerifiedProfilesTest {
+
+  private static final String[] NO_TEAMS = new String[0];
+
+  private MapSettings settings = new MapSettings(new PropertyDefinitions(BitbucketSettings.definitions()));
+  private BitbucketSettings bitbucketSettings = new BitbucketSettings(settings.asConfig());
+  private System2 system2 = mock(System2.class);
+  private UserIdentityFactory userIdentityFactory = new UserIdentityFactory(bitbucketSettings);
+  private VerifiedProfiles underTest = new VerifiedProfiles(bitbucketSettings,
+    new BitbucketCaches(bitbucketSettings, mock(ServerFileSystem.class), system2), system2);
+
+  @Test
+  public void disabled_by_default() {
+    underTest.record(identity(null), null, NO_TEAMS);
+
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isEmpty();
+  }
+
+  @Test
+  public void find_profile_during_grace_window() {
+    settings.setProperty(BitbucketSettings.DEGRADED_GRACE_IN_MINUTES, 1);
+    when(system2.now()).thenReturn(1_000L);
+    underTest.record(identity(null), null, NO_TEAMS);
+
+    when(system2.now()).thenReturn(61_000L);
+    VerifiedProfiles.Profile profile = underTest.find("ABCD", NO_TEAMS).get();
+    assertThat(profile.getVerifiedAt()).isEqualTo(1_000L);
+    assertThat(profile.getEmail()).isEqualTo("john@bitbucket.org");
+    assertThat(profile.getGroups()).isNull();
+
+    when(system2.now()).thenReturn(61_001L);
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isEmpty();
+    assertThat(underTest.find("EFGH", NO_TEAMS)).isEmpty();
+  }
+
+  @Test
+  public void keep_synchronized_groups() {
+    settings.setProperty(BitbucketSettings.DEGRADED_GRACE_IN_MINUTES, 1);
+    settings.setProperty(BitbucketSettings.GROUPS_SYNC, true);
+    underTest.record(identity(asList("team1", "team2")), null, NO_TEAMS);
+
+    assertThat(underTest.find("ABCD", NO_TEAMS).get().getGroups()).containsOnly("team1", "team2");
+  }
+
+  @Test
+  public void ignore_profile_verified_against_other_restricted_teams() {
+    settings.setProperty(BitbucketSettings.DEGRADED_GRACE_IN_MINUTES, 1);
+    underTest.record(identity(null), null, new String[] {"team2", "team1"});
+
+    assertThat(underTest.find("ABCD", new String[] {"team1", "team2"})).isPresent();
+    assertThat(underTest.find("ABCD", new String[] {"team1"})).isEmpty();
+    assertThat(underTest.find("ABCD", new String[] {"team1", "team3"})).isEmpty();
+    // restriction has been removed
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isPresent();
+  }
+
+  @Test
+  public void ignore_profile_if_allowed_email_is_no_longer_in_allowed_domains() {
+    settings.setProperty(BitbucketSettings.DEGRADED_GRACE_IN_MINUTES, 1);
+    settings.setProperty(BitbucketSettings.EMAIL_DOMAINS, "example.com,corp.com");
+    // primary email is not the one in the allowed domains
+    underTest.record(identity(null), "john@eu.corp.com", NO_TEAMS);
+
+    settings.setProperty(BitbucketSettings.EMAIL_DOMAINS, "corp.com");
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isPresent();
+    settings.setProperty(BitbucketSettings.EMAIL_DOMAINS, "example.com");
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isEmpty();
+    settings.setProperty(BitbucketSettings.EMAIL_DOMAINS, "bitbucket.org");
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isEmpty();
+    // restriction has been removed
+    settings.removeProperty(BitbucketSettings.EMAIL_DOMAINS);
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isPresent();
+  }
+
+  @Test
+  public void ignore_profile_verified_without_email_restriction_when_emails_are_restricted() {
+    settings.setProperty(BitbucketSettings.DEGRADED_GRACE_IN_MINUTES, 1);
+    underTest.record(identity(null), null, NO_TEAMS);
+
+    settings.setProperty(BitbucketSettings.EMAIL_DOMAINS, "bitbucket.org");
+
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isEmpty();
+  }
+
+  @Test
+  public void remove_profile() {
+    settings.setProperty(BitbucketSettings.DEGRADED_GRACE_IN_MINUTES, 1);
+    underTest.record(identity(null), null, NO_TEAMS);
+
+    underTest.remove("ABCD");
+
+    assertThat(underTest.find("ABCD", NO_TEAMS)).isEmpty();
+  }
+
+  @Test
+  public void ignore_corrupted_record() {
+    assertThat(VerifiedProfiles.Profile.decode(new byte[] {1, 2})).isNull();
+  }
+
+  private UserIdentity identity(@Nullable List<String> teams) {
+    GsonUser user = new GsonUser("john", "John", "ABCD");
+    return userIdentityFactory.createWithEmail(user, "john@bitbucket.org", userIdentityFactory.groupsOf(teams));
+  }
+}